@@ -22,6 +22,8 @@ def usage(err=None):
     print('\tbuild: builds jchain')
     print('\tdocgen: compiles documentation')
     print('\ttest: runs TestBC')
+    print('\tbench: runs the core benchmarks')
+    print('\tcontention: runs the contention benchmarks')
     print('Additionally passing -h or --help will show this message.')
     print('-'*80)
     if err:
@@ -74,6 +76,18 @@ def test_script():
     '''
     os.execlp('java' 'java', '-cp', class_d, 'jchain.TestBC')
 
+def bench_script():
+    '''
+    Runs the core benchmarks inside the jchain src root directory.
+    '''
+    os.execlp('java', 'java', '-cp', class_d, 'jchain.bench.CoreBenchmarks')
+
+def contention_script():
+    '''
+    Runs the contention benchmarks inside the jchain src root directory.
+    '''
+    os.execlp('java', 'java', '-cp', class_d, 'jchain.bench.ContentionBenchmarks')
+
 def invoke(script):
     '''
     Attempts to invoke the script specified by \'script\'.
@@ -86,6 +100,10 @@ def invoke(script):
             docgen_script()
         elif script == 'test':
             test_script()
+        elif script == 'bench':
+            bench_script()
+        elif script == 'contention':
+            contention_script()
         else:
             raise OSError('Specified script does not exist!')
     except OSError as e:
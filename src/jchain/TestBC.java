@@ -22,6 +22,27 @@ public class TestBC {
      * @param args The arguments to passes to main.
      */
     public static void main(String[] args) {
+        // test that hashing stays correct across threads
+        try {
+            outputTest(testHashThroughput(200000), "Hash Throughput");
+        } catch (Exception ex) {
+            System.err.println(ex.toString());
+            System.err.println(ex.getMessage());
+        }
+        // test that the mempool loses no transactions under concurrent producers and consumers
+        try {
+            outputTest(testMempoolContention(20000), "Mempool Contention");
+        } catch (Exception ex) {
+            System.err.println(ex.toString());
+            System.err.println(ex.getMessage());
+        }
+        // test that a reorganization connects a branch spending its own outputs and rolls back a failed one
+        try {
+            outputTest(testReorg(), "Reorg");
+        } catch (Exception ex) {
+            System.err.println(ex.toString());
+            System.err.println(ex.getMessage());
+        }
         // test mining functionality
         // 1 miner, 91 transactions
         try {
@@ -40,6 +61,18 @@ public class TestBC {
         }
     }
     
+    public static boolean testHashThroughput(int hashes) throws InterruptedException {
+        return new HashThroughputTest(hashes).run();
+    }
+
+    public static boolean testMempoolContention(int txs) throws InterruptedException {
+        return new MempoolContentionTest(txs).run();
+    }
+
+    public static boolean testReorg() throws InterruptedException {
+        return new ReorgTest().run();
+    }
+
     public static boolean testMining(int miners, int txs) {
         if (miners < 1) {
             throw new IllegalArgumentException("Error: Cannot test mining! Must specify at least 1 miner!");
@@ -59,7 +92,7 @@ public class TestBC {
         };
         LinkedList<Transaction> testTxs = new LinkedList<>();
         testTxs.add(new Transaction(testInputs, testOutputs));
-        Header testHeader = new Header(BCUtil.padString(64, '0', ""), testTxs, 0);
+        Header testHeader = new Header(Hash256.ZERO, testTxs, 0);
         BC testBC = new BC(new Block(testTxs, testHeader));
         // Subscribe the miners to receive transactions
         for (; miners > 0; miners--) {
@@ -76,6 +109,7 @@ public class TestBC {
             return false;
         }
         System.out.println(String.format("Height of lead block is: %d", testBC.getHeight()));
+        System.out.println(String.format("Stale mining jobs cancelled: %d", MiningScheduler.getInstance().getStaleCount()));
         return true;
     }
 
@@ -1,25 +1,75 @@
 package jchain.bc;
 
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import jchain.bc.Block;
 import jchain.bc.Transaction;
+import jchain.util.Hash256;
 import jchain.util.NoSuchBlockException;
 import jchain.util.NoSuchTransactionException;
 
 /**
- * Implements a means to create an (currently) in-memory blockchain.
+ * Implements a means to create a blockchain. The blocks are either kept in
+ * memory or, when the chain is backed by a BlockStore, kept on disk and read
+ * back on demand.<br>
+ * The chain is a tree of blocks. A block is accepted if its parent is any
+ * known block, and every block knows the cumulative work of the branch it
+ * ends. The active chain is the branch with the most work. When a block
+ * gives another branch more work, the chain reorganizes: only the blocks
+ * above the fork point are disconnected and the blocks of the new branch
+ * are connected, and the indexes (transaction index, UTXO set) are updated
+ * for just those blocks. Ties
+ * keep the branch that was active first. Blocks are checked by a
+ * BlockValidator, the inputs of a block only once it is connected.<br>
+ * A BC may be shared by any number of threads. Blocks are added by one
+ * writer at a time. Every change of the active chain publishes a new
+ * immutable Snapshot of it (lead block, height, blocks by height) through a
+ * volatile field. Reads go through the current snapshot and never take a
+ * lock, so readers never hold up the writer and always see a consistent
+ * chain.
  * @author Christen Ford
  */
 public class BC {
 
+    //
+    // CONSTANTS
+    //
+
+    // The initial capacity of the active chain array
+    private static final int INITIAL_CAPACITY = 1024;
+
     //
     // FIELDS
     //
 
-    // Contains the blocks in the blockchain
-    private LinkedList<Block> mBlocks;
+    // Stores the blocks on disk, null if the chain is in memory
+    private BlockStore mStore = null;
+    // Every known block, on the active chain or not, by hash
+    private final ConcurrentHashMap<Hash256, Node> mNodes = new ConcurrentHashMap<>();
+    // Optional, maps a transaction hash to its location in the active chain
+    private volatile TxIndex mTxIndex = null;
+    // Optional, the unspent outputs of the active chain, changed under the write lock, read by anyone
+    private volatile UnspentOutputs mUtxos = null;
+    // Checks blocks before they are added
+    private final BlockValidator mValidator = BlockValidator.getInstance();
+    // Told about every new lead block, in the order they were added
+    private final CopyOnWriteArrayList<Consumer<Block>> mTipListeners = new CopyOnWriteArrayList<>();
+    // Held by the one thread that is changing the chain
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    // The active chain as of the last completed change
+    private volatile Snapshot mSnapshot;
+    // The number of times the active chain switched branches
+    private final LongAdder mReorgs = new LongAdder();
 
     /**
      * Returns an instance of a BC object with an initial block.
@@ -29,62 +79,443 @@ public class BC {
         if (initialBlock == null) {
             throw new NullPointerException();
         }
-        mBlocks = new LinkedList<>();
-        mBlocks.add(initialBlock);
+        Node genesis = new Node(initialBlock, null, -1);
+        mNodes.put(genesis.mHash, genesis);
+        Node[] chain = new Node[INITIAL_CAPACITY];
+        chain[0] = genesis;
+        mSnapshot = new Snapshot(chain, 1, initialBlock);
+    }
+
+    /**
+     * Returns an instance of a BC object backed by an existing block store.
+     * The block tree is rebuilt from the index of the store, blocks are
+     * read from the store when they are requested.
+     * @param store A block store containing at least a genesis block.
+     * @exception IllegalArgumentException If the store is empty.
+     */
+    public BC(BlockStore store) {
+        this(store, null);
     }
 
     /**
-     * Adds a block to the blockchain. Block integrity is enforced with 
-     *  this method, in that the block to be added must have the current lead block's hash pointed to by it's block header.
+     * Returns an instance of a BC object backed by a block store. If the
+     * store is empty the initial block is appended to it, otherwise the
+     * store's genesis block must be the initial block. The block tree is
+     * rebuilt from the parent hashes and difficulty bits in the index of
+     * the store, only the lead block is read. Blocks marked invalid in the
+     * store and their descendants never become the active chain.
+     * @param store A block store.
+     * @param initialBlock A genesis block for the blockchain, may be null
+     * if the store is not empty.
+     * @exception IllegalArgumentException If the store is empty and there
+     * is no initial block, the store holds a different genesis block, or a
+     * stored block does not connect to the blocks stored before it.
+     * @exception UncheckedIOException If the store cannot be read or written.
+     */
+    public BC(BlockStore store, Block initialBlock) {
+        if (store == null) {
+            throw new NullPointerException();
+        }
+        mStore = store;
+        try {
+            if (store.count() == 0) {
+                if (initialBlock == null) {
+                    throw new IllegalArgumentException("ERROR: Block store is empty and no genesis block was given!");
+                }
+                store.append(initialBlock);
+            } else if (initialBlock != null && !store.getHash(0).equals(initialBlock.getHash())) {
+                throw new IllegalArgumentException("ERROR: Block store holds a different genesis block!");
+            }
+            // blocks are stored after their parents, so one pass over the
+            //  index rebuilds the tree
+            Node best = null;
+            Target target = null;
+            for (int position = 0; position < store.count(); position++) {
+                Node parent = null;
+                if (position > 0) {
+                    parent = mNodes.get(store.getPreviousHash(position));
+                    if (parent == null) {
+                        throw new IllegalArgumentException("ERROR: Block store holds a block whose parent is unknown!");
+                    }
+                }
+                int bits = store.getBits(position);
+                if (target == null || target.getBits() != bits) {
+                    target = Target.fromBits(bits);
+                }
+                Node node = new Node(store.getHash(position), target, parent, null, position);
+                if (position > 0 && (parent.bInvalid || store.isInvalid(position))) {
+                    node.bInvalid = true;
+                }
+                mNodes.putIfAbsent(node.mHash, node);
+                // the first branch to reach the most work wins ties
+                if (!node.bInvalid && (best == null || node.mWork.compareTo(best.mWork) > 0)) {
+                    best = node;
+                }
+            }
+            Node[] chain = new Node[Math.max(INITIAL_CAPACITY, Integer.highestOneBit(best.nHeight + 1) * 2)];
+            for (Node node = best; node != null; node = node.mParent) {
+                chain[node.nHeight] = node;
+            }
+            mSnapshot = new Snapshot(chain, best.nHeight + 1, store.read(best.nPosition));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Adds a block to the block tree. The block's parent, the block whose
+     *  hash is pointed to by the block's header, must already be known, it
+     *  does not have to be the lead block. The block must pass the
+     *  context-free checks of the BlockValidator (proof-of-work, transaction
+     *  hashes, Merkle root). If the block leaves its branch with more work
+     *  than the active chain, the branch becomes the active chain.<br>
+     * When the UTXO set is enabled, the inputs of every block that is
+     *  connected to the active chain are checked against it as well, the
+     *  scripts of the outputs they spend are run if the transaction index
+     *  is enabled too (the UTXO set does not keep scripts). A
+     *  block extending the lead block is rejected before it is stored. If a
+     *  block of a branch fails while the chain reorganizes to it, the chain
+     *  stays on its old branch and the failing block and its descendants
+     *  are marked invalid, no block may be added on top of them.
      * @param block A Block object.
-     *  pointed to by the block's header is not the same as the lead block's hash.
+     * @return True if the block changed the active chain, false if it was
+     *  added to a side branch.
+     * @exception IllegalArgumentException If the block is already known,
+     *  its parent is not known or invalid, or the block fails validation.
      */
-    public void addBlock(Block block) {
+    public boolean addBlock(Block block) {
         if (block == null) {
             throw new NullPointerException();
         }
-        // make sure the hashes match up
-        if (!block.getBlockHeader().getPreviousBlockHash().equals(
-                mBlocks.getLast().getHash())) {
-            throw new IllegalArgumentException("ERROR: Previous hash pointed to by block does not match the most recent blocks hash! Block not added!");
+        // the context-free checks do not depend on the chain, they run in
+        //  parallel and out of the lock
+        mValidator.checkBlock(block);
+        mWriteLock.lock();
+        try {
+            if (mNodes.containsKey(block.getHash())) {
+                throw new IllegalArgumentException("ERROR: Block is already in the block tree! Block not added!");
+            }
+            Node parent = mNodes.get(block.getBlockHeader().getPreviousBlockHash());
+            if (parent == null) {
+                throw new IllegalArgumentException("ERROR: Previous hash pointed to by block does not match any known block! Block not added!");
+            }
+            if (parent.bInvalid) {
+                throw new IllegalArgumentException("ERROR: Previous hash pointed to by block is an invalid block! Block not added!");
+            }
+            if (mUtxos != null && parent == mSnapshot.lead()) {
+                mValidator.checkInputs(block, mUtxos, spentOutputs(mSnapshot));
+            }
+            int position = -1;
+            if (mStore != null) {
+                try {
+                    position = mStore.append(block);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            Node node = new Node(block, parent, position);
+            mNodes.put(node.mHash, node);
+            Snapshot snapshot = mSnapshot;
+            // a branch has to have strictly more work to take over
+            if (node.mWork.compareTo(snapshot.lead().mWork) <= 0) {
+                return false;
+            }
+            if (parent == snapshot.lead()) {
+                extend(snapshot, node, block);
+            } else {
+                reorganize(snapshot, node, block);
+                mReorgs.increment();
+            }
+            // tell the listeners right away, miners working on the old tip
+            //  are wasting their hashes until they hear about it
+            for (Consumer<Block> listener : mTipListeners) {
+                try {
+                    listener.accept(block);
+                } catch (RuntimeException ex) {
+                    System.err.println("BC: Tip listener " + listener + " failed!");
+                    System.err.println(ex);
+                }
+            }
+            return true;
+        } finally {
+            mWriteLock.unlock();
         }
-        mBlocks.addLast(block);
     }
 
     /**
-     * Tries to get a block via the blocks hash. Will return null
-     *  if there is no block found with the given hash.
-     * @param hash A block hash (as a hexstring).
-     * @return A block whose hash matches the indicated hash.
-     * @throws NoSuchBlockException If there is not block in the blockchain with the indicated hash.
+     * Appends a block whose parent is the lead block. Called with the write lock held.
      */
-    public Block getBlockByHash(String hash) throws NoSuchBlockException {
-        if (hash == null || hash.length() == 0) {
-            throw new IllegalArgumentException();
+    private void extend(Snapshot snapshot, Node node, Block block) {
+        Node[] chain = snapshot.mChain;
+        if (node.nHeight == chain.length) {
+            chain = Arrays.copyOf(chain, chain.length * 2);
         }
-        ListIterator<Block> iterator = mBlocks.listIterator(0);
-        Block block = null;
-        while (iterator.hasNext()) {
-            block = iterator.next();
-            if (block.getHash().equals(hash)) {
-                break;
+        // slots past the height of the published snapshots are not read
+        //  by anyone, so the array can be shared
+        chain[node.nHeight] = node;
+        if (mTxIndex != null) {
+            mTxIndex.add(block, node.nHeight);
+        }
+        if (mUtxos != null) {
+            node.mUndo = mUtxos.connect(block);
+        }
+        mSnapshot = new Snapshot(chain, node.nHeight + 1, block);
+    }
+
+    /**
+     * Switches the active chain to the branch ending in node. Only the
+     * blocks above the fork point are disconnected and connected. Called
+     * with the write lock held.
+     */
+    private void reorganize(Snapshot snapshot, Node node, Block block) {
+        UnspentOutputs utxos = mUtxos;
+        if (utxos == null) {
+            switchBranch(snapshot, node, block);
+            return;
+        }
+        // readers of the UTXO set see the whole switch as one change, never
+        //  the outputs of a chain half way between the two branches
+        utxos.beginUpdate();
+        try {
+            switchBranch(snapshot, node, block);
+        } finally {
+            utxos.endUpdate();
+        }
+    }
+
+    /**
+     * Disconnects the active chain down to the fork point with the branch
+     * ending in node and connects the branch. Called by reorganize().
+     */
+    private void switchBranch(Snapshot snapshot, Node node, Block block) {
+        // walk both branches back to the fork point, collecting the new branch
+        ArrayList<Node> connect = new ArrayList<>();
+        Node fork = node;
+        while (fork.nHeight >= snapshot.getHeight() || snapshot.mChain[fork.nHeight] != fork) {
+            connect.add(fork);
+            fork = fork.mParent;
+        }
+        // the published snapshots still read the slots above the fork, so
+        //  the new chain gets its own array
+        int height = node.nHeight + 1;
+        Node[] chain = Arrays.copyOf(snapshot.mChain, Math.max(snapshot.mChain.length, Integer.highestOneBit(height) * 2));
+        TxIndex index = mTxIndex;
+        // blocks connected before a persistent UTXO set was reopened have 
+        //  no undo data, going below them means building the set again
+        UnspentOutputs utxos = mUtxos;
+        boolean rebuild = false;
+        for (int h = snapshot.getHeight() - 1; utxos != null && h > fork.nHeight; h--) {
+            rebuild |= (snapshot.mChain[h].mUndo == null);
+        }
+        // disconnect from the tip down, connect from the fork point up
+        for (int h = snapshot.getHeight() - 1; h > fork.nHeight; h--) {
+            Node disconnected = snapshot.mChain[h];
+            if (index != null || (utxos != null && !rebuild)) {
+                boolean unindexed = false;
+                try {
+                    Block old = snapshot.blockAt(h);
+                    if (index != null) {
+                        index.remove(old, h);
+                        unindexed = true;
+                    }
+                    if (utxos != null && !rebuild) {
+                        utxos.disconnect(old, disconnected.mUndo);
+                    }
+                } catch (RuntimeException ex) {
+                    // the set rolled back its own batch, the blocks above h go back on
+                    if (unindexed) {
+                        index.add(snapshot.blockAt(h), h);
+                    }
+                    restore(snapshot, chain, connect, connect.size(), h + 1, !rebuild);
+                    throw ex;
+                }
             }
+            disconnected.mUndo = null;
+            chain[h] = null;
+        }
+        if (rebuild) {
+            utxos.clear();
+            connectUtxos(snapshot, utxos, 0, fork.nHeight + 1);
+        }
+        for (int i = connect.size() - 1; i >= 0; i--) {
+            Node connected = connect.get(i);
+            if (index != null || utxos != null) {
+                boolean checked = (utxos == null);
+                boolean indexed = false;
+                Block added = null;
+                try {
+                    added = (connected == node) ? block : blockOf(connected);
+                    if (utxos != null) {
+                        // the chain below the block is connected, the index matches it
+                        Snapshot below = new Snapshot(chain, connected.nHeight, null);
+                        mValidator.checkInputs(added, utxos, spentOutputs(below));
+                        checked = true;
+                    }
+                    if (index != null) {
+                        index.add(added, connected.nHeight);
+                        indexed = true;
+                    }
+                    if (utxos != null) {
+                        connected.mUndo = utxos.connect(added);
+                    }
+                } catch (RuntimeException ex) {
+                    // whatever failed, the set and the index go back to the old branch
+                    if (indexed) {
+                        index.remove(added, connected.nHeight);
+                    }
+                    restore(snapshot, chain, connect, i + 1, fork.nHeight + 1, true);
+                    // only a block that failed its checks is invalid, not one
+                    //  that could not be read or connected
+                    if (!checked && ex instanceof IllegalArgumentException) {
+                        for (int j = i; j >= 0; j--) {
+                            connect.get(j).bInvalid = true;
+                        }
+                        try {
+                            markInvalid(connected);
+                        } catch (UncheckedIOException io) {
+                            ex.addSuppressed(io);
+                        }
+                    }
+                    throw ex;
+                }
+            }
+            chain[connected.nHeight] = connected;
+        }
+        mSnapshot = new Snapshot(chain, height, block);
+    }
+
+    /**
+     * Undoes a reorganization that failed part way: the new branch blocks
+     * connect[from..] are disconnected again and the old branch from
+     * height reconnect up is connected back, the blocks of the old branch
+     * below it were never disconnected. The UTXO set only gets the old
+     * blocks back if they were taken out of it (not when it was going to be
+     * rebuilt). The published snapshot was never changed. Called with the
+     * write lock held.
+     */
+    private void restore(Snapshot snapshot, Node[] chain, ArrayList<Node> connect, int from, int reconnect, boolean utxosToo) {
+        TxIndex index = mTxIndex;
+        UnspentOutputs utxos = mUtxos;
+        for (int i = from; i < connect.size(); i++) {
+            Node connected = connect.get(i);
+            Block added = blockOf(connected);
+            if (index != null) {
+                index.remove(added, connected.nHeight);
+            }
+            if (utxos != null) {
+                utxos.disconnect(added, connected.mUndo);
+            }
+            connected.mUndo = null;
+            chain[connected.nHeight] = null;
+        }
+        for (int h = reconnect; h < snapshot.getHeight(); h++) {
+            if (index != null || (utxos != null && utxosToo)) {
+                Block old = snapshot.blockAt(h);
+                if (index != null) {
+                    index.add(old, h);
+                }
+                if (utxos != null && utxosToo) {
+                    snapshot.mChain[h].mUndo = utxos.connect(old);
+                }
+            }
+            chain[h] = snapshot.mChain[h];
         }
-        throw new NoSuchBlockException(hash);
     }
 
     /**
-     * Tries to get a block from the blockchain by height.
+     * Registers a listener that is called with the new lead block every
+     * time the tip of the chain changes, whether the chain was extended or
+     * reorganized. Listeners are called on the thread that added the block,
+     * right after it was added, so they must be quick.
+     * @param listener A listener.
+     */
+    public void addTipListener(Consumer<Block> listener) {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        mTipListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener registered with addTipListener().
+     * @param listener A listener.
+     */
+    public void removeTipListener(Consumer<Block> listener) {
+        mTipListeners.remove(listener);
+    }
+
+    /**
+     * Gets the current state of the active chain. The snapshot never
+     * changes, use it to make several reads that must agree with each other.
+     * @return A snapshot of the active chain.
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Determines if a block is known, whether it is on the active chain or
+     * on a side branch.
+     * @param hash A block hash.
+     * @return True if the block is in the block tree, false otherwise.
+     */
+    public boolean isKnown(Hash256 hash) {
+        return hash != null && mNodes.containsKey(hash);
+    }
+
+    /**
+     * Gets the number of known blocks, on the active chain and on side branches.
+     * @return The number of blocks in the block tree.
+     */
+    public int getKnownBlockCount() {
+        return mNodes.size();
+    }
+
+    /**
+     * Gets the number of times the active chain switched to another branch.
+     * @return The number of reorganizations.
+     */
+    public long getReorgCount() {
+        return mReorgs.sum();
+    }
+
+    /**
+     * Tries to get a block on the active chain via the blocks hash.
+     * @param hash A block hash.
+     * @return A block whose hash matches the indicated hash.
+     * @throws NoSuchBlockException If there is not block in the blockchain with the indicated hash.
+     */
+    public Block getBlockByHash(Hash256 hash) throws NoSuchBlockException {
+        return mSnapshot.getBlockByHash(hash);
+    }
+
+    /**
+     * Gets the height of the block with the indicated hash on the active chain.
+     * @param hash A block hash.
+     * @return The height of the block in the blockchain.
+     * @throws NoSuchBlockException If there is no block in the blockchain with the indicated hash.
+     */
+    public int getHeightOf(Hash256 hash) throws NoSuchBlockException {
+        return mSnapshot.getHeightOf(hash);
+    }
+
+    /**
+     * Determines if the active chain contains a block with the indicated hash.
+     * @param hash A block hash.
+     * @return True if a block with the indicated hash is in the blockchain, false otherwise.
+     */
+    public boolean contains(Hash256 hash) {
+        return mSnapshot.contains(hash);
+    }
+
+    /**
+     * Tries to get a block from the active chain by height.
      * @param height The height to retrieve at.
      * @return The block at the given height in the blockchain.
      * @throws NoSuchBlockException If there is no block in the blockchain at the indicated height.
      */
     public Block getBlockByHeight(int height) throws NoSuchBlockException {
-        // verify the height
-        if (height < 0 || height >= mBlocks.size()) {
-            throw new NoSuchBlockException(height);
-        }
-        return mBlocks.get(height);
+        return mSnapshot.getBlockByHeight(height);
     }
 
     /**
@@ -92,34 +523,190 @@ public class BC {
      * @return The lead block in the blockchain.
      */
     public Block getLeadBlock() {
-        return mBlocks.getLast();
+        return mSnapshot.getLeadBlock();
     }
 
     /**
-     * Gets the height (# of blocks) of the blockchain.
+     * Gets the height (# of blocks) of the active chain.
      * @return The number of blocks in the blockchain.
      */
     public int getHeight() {
-        return mBlocks.size();
+        return mSnapshot.getHeight();
+    }
+
+    /**
+     * Builds the transaction index from the blocks already in the chain (in
+     * parallel) and keeps it up to date as blocks are added. Transaction
+     * lookups use the index once it is enabled. Blocks cannot be added
+     * while the index is built.
+     */
+    public void enableTransactionIndex() {
+        mWriteLock.lock();
+        try {
+            if (mTxIndex == null) {
+                Snapshot snapshot = mSnapshot;
+                mTxIndex = TxIndex.build(snapshot.getHeight(), snapshot::blockAt);
+            }
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Determines whether the transaction index is enabled.
+     * @return True if transaction lookups use the index, false otherwise.
+     */
+    public boolean hasTransactionIndex() {
+        return mTxIndex != null;
     }
 
     /**
-     * Tries to get a transaction via its hash. Will return null if no transaction was found with the given hash.
+     * Builds a set of unspent outputs on the heap by connecting the blocks
+     * already in the chain and keeps it up to date as blocks are connected
+     * and disconnected. Blocks cannot be added while the set is built.
+     */
+    public void enableUtxoSet() {
+        enableUtxoSet(new UtxoSet());
+    }
+
+    /**
+     * Keeps the indicated set of unspent outputs up to date as blocks are
+     * connected and disconnected, e.g. a MappedUtxoStore that was built by
+     * an earlier run. If the best block of the set is on the active chain
+     * only the blocks after it are connected, otherwise the set is cleared
+     * and built from the genesis block. Blocks cannot be added while the
+     * set is brought up to date.
+     * @param utxos A set of unspent outputs.
+     * @exception IllegalStateException If a UTXO set is already enabled.
+     */
+    public void enableUtxoSet(UnspentOutputs utxos) {
+        if (utxos == null) {
+            throw new NullPointerException();
+        }
+        mWriteLock.lock();
+        try {
+            if (mUtxos != null) {
+                throw new IllegalStateException("Error: A UTXO set is already enabled!");
+            }
+            Snapshot snapshot = mSnapshot;
+            int from = 0;
+            Hash256 bestBlock = utxos.getBestBlock();
+            if (bestBlock != null && snapshot.contains(bestBlock)) {
+                from = snapshot.find(bestBlock) + 1;
+            } else if (bestBlock != null || utxos.size() > 0) {
+                utxos.clear();
+            }
+            connectUtxos(snapshot, utxos, from, snapshot.getHeight());
+            mUtxos = utxos;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Connects the blocks of the snapshot at heights from (inclusive) to
+     * to (exclusive) to a UTXO set. Called with the write lock held.
+     */
+    private static void connectUtxos(Snapshot snapshot, UnspentOutputs utxos, int from, int to) {
+        for (int height = from; height < to; height++) {
+            snapshot.mChain[height].mUndo = utxos.connect(snapshot.blockAt(height));
+        }
+    }
+
+    /**
+     * Determines whether the UTXO set is enabled.
+     * @return True if unspent outputs are tracked, false otherwise.
+     */
+    public boolean hasUtxoSet() {
+        return mUtxos != null;
+    }
+
+    /**
+     * Determines whether an output is unspent on the active chain. The
+     * lookup does not take the write lock, it is retried if a block was
+     * connected meanwhile (see UnspentOutputs).
+     * @param outPoint The outpoint of the output.
+     * @return True if the output exists and is unspent, false otherwise.
+     * @exception IllegalStateException If the UTXO set is not enabled.
+     */
+    public boolean isUnspent(OutPoint outPoint) {
+        if (outPoint == null) {
+            throw new IllegalArgumentException();
+        }
+        return utxos().contains(outPoint);
+    }
+
+    /**
+     * Gets the value of an unspent output on the active chain.
+     * @param outPoint The outpoint of the output.
+     * @return The value of the output in minis, or 0 if it is spent or does not exist.
+     * @exception IllegalStateException If the UTXO set is not enabled.
+     */
+    public int getUnspentValue(OutPoint outPoint) {
+        if (outPoint == null) {
+            throw new IllegalArgumentException();
+        }
+        return utxos().getValue(outPoint.getTxHash(), outPoint.getIndex());
+    }
+
+    /**
+     * Gets the number of unspent outputs on the active chain.
+     * @return The size of the UTXO set.
+     * @exception IllegalStateException If the UTXO set is not enabled.
+     */
+    public int getUnspentCount() {
+        return utxos().size();
+    }
+
+    private UnspentOutputs utxos() {
+        UnspentOutputs utxos = mUtxos;
+        if (utxos == null) {
+            throw new IllegalStateException("Error: The UTXO set is not enabled!");
+        }
+        return utxos;
+    }
+
+    /**
+     * Gets the height of the block on the active chain containing the indicated transaction.
+     * @param hash A SHA-256 double hash.
+     * @return The height of the block that contains the transaction.
+     * @throws NoSuchTransactionException If there is no transaction in the blockchain with the indicated hash.
+     */
+    public int getTransactionHeight(Hash256 hash) throws NoSuchTransactionException {
+        if (hash == null) {
+            throw new IllegalArgumentException();
+        }
+        Snapshot snapshot = mSnapshot;
+        if (mTxIndex != null) {
+            return TxIndex.height(findTransaction(snapshot, hash));
+        }
+        for (int height = 0; height < snapshot.getHeight(); height++) {
+            if (snapshot.blockAt(height).contains(hash)) {
+                return height;
+            }
+        }
+        throw new NoSuchTransactionException(hash);
+    }
+
+    /**
+     * Tries to get a transaction on the active chain via its hash.
      * @param hash A SHA-256 double hash.
      * @return A Transaction whose hash matches the given hash.
      * @throws NoSuchTransactionException If there is no transaction in the blockchain with the indicated hash.
      */
-    public Transaction getTransactionByHash(String hash) throws NoSuchTransactionException {
-        if (hash == null || hash.length() == 0) {
+    public Transaction getTransactionByHash(Hash256 hash) throws NoSuchTransactionException {
+        if (hash == null) {
             throw new IllegalArgumentException();
         }
-        // start the iterator at the first block
-        ListIterator<Block> iterator = mBlocks.listIterator(0);
+        Snapshot snapshot = mSnapshot;
+        if (mTxIndex != null) {
+            long location = findTransaction(snapshot, hash);
+            return snapshot.blockAt(TxIndex.height(location)).getTransaction(TxIndex.position(location));
+        }
         // iterate through the blocks one-by-one
-        Block block = null;
-        while (iterator.hasNext()) {
+        for (int height = 0; height < snapshot.getHeight(); height++) {
             // if the block has a transaction with the indicated hash, return the transaction
-            block = iterator.next();
+            Block block = snapshot.blockAt(height);
             if (block.contains(hash)) {
                 return block.getTransaction(hash);
             }
@@ -129,19 +716,253 @@ public class BC {
     }
 
     /**
-     * 
+     * Looks up the location of a transaction in the transaction index.
+     * Locations the snapshot does not hold the transaction at (blocks added
+     * or reorganized after it was taken) are ignored.
+     */
+    private long findTransaction(Snapshot snapshot, Hash256 hash) throws NoSuchTransactionException {
+        long location = mTxIndex.get(hash, candidate -> {
+            int height = TxIndex.height(candidate);
+            if (height < 0 || height >= snapshot.getHeight()) {
+                return false;
+            }
+            Block block = snapshot.blockAt(height);
+            int position = TxIndex.position(candidate);
+            return position >= 0 && position < block.getTransactionCount()
+                && block.getTransaction(position).getHash().equals(hash);
+        });
+        if (location == TxIndex.NOT_FOUND) {
+            throw new NoSuchTransactionException(hash);
+        }
+        return location;
+    }
+
+    /**
+     * Finds the outputs spent by a block on top of the snapshot through the
+     * transaction index, the UTXO set has their values but not their
+     * scripts. Returns null if the index is not enabled. Called with the
+     * write lock held.
+     */
+    private Function<OutPoint, Output> spentOutputs(Snapshot snapshot) {
+        if (mTxIndex == null) {
+            return null;
+        }
+        return outPoint -> {
+            try {
+                long location = findTransaction(snapshot, outPoint.getTxHash());
+                Transaction tx = snapshot.blockAt(TxIndex.height(location)).getTransaction(TxIndex.position(location));
+                return (outPoint.getIndex() < tx.getOutputCount()) ? tx.getOutput(outPoint.getIndex()) : null;
+            } catch (NoSuchTransactionException ex) {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Records in the block store that the block of a node failed
+     * validation, its descendants inherit the mark when the block tree is
+     * rebuilt from the store. Does nothing if the chain is in memory.
+     */
+    private void markInvalid(Node node) {
+        if (mStore == null) {
+            return;
+        }
+        try {
+            mStore.markInvalid(node.nPosition);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Gets the block of a node from memory or from the block store.
+     */
+    private Block blockOf(Node node) {
+        if (node.mBlock != null) {
+            return node.mBlock;
+        }
+        try {
+            return mStore.read(node.nPosition);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     *
      */
     @Override
     public String toString() {
-        int height = 0;
+        Snapshot snapshot = mSnapshot;
         StringBuilder sb = new StringBuilder();
-        ListIterator<Block> iterator = mBlocks.listIterator();
-        while (iterator.hasNext()) {
+        for (int height = 0; height < snapshot.getHeight(); height++) {
             sb.append("Block at height: ").append(height).append("\n");
-            sb.append(iterator.next()).append("\n");
-            height++;
+            sb.append(snapshot.blockAt(height)).append("\n");
         }
         return sb.toString();
     }
 
+    /**
+     * A block in the block tree. Nodes never change once created, except
+     * for their undo data and validity.
+     */
+    private static final class Node {
+
+        private final Hash256 mHash;
+        // The parent block, null for the genesis block
+        private final Node mParent;
+        private final int nHeight;
+        // The total work of the branch from the genesis block up to this block
+        private final BigInteger mWork;
+        // The block, null if the chain is on disk
+        private final Block mBlock;
+        // The height of the block in the block store, -1 if the chain is in memory
+        private final int nPosition;
+        // Rolls the block back out of the UTXO set, set while the block is 
+        //  connected and the set is enabled, only used under the write lock
+        private UnspentOutputs.Undo mUndo = null;
+        // Set when the block or one of its ancestors failed the contextual 
+        //  checks, the block never becomes part of the active chain again.
+        //  The failing block is flagged in the block store, a chain rebuilt
+        //  from the store marks it and its descendants again
+        private boolean bInvalid = false;
+
+        private Node(Block block, Node parent, int position) {
+            this(block.getHash(), block.getBlockHeader().getTarget(), parent, (position < 0) ? block : null, position);
+        }
+
+        private Node(Hash256 hash, Target target, Node parent, Block block, int position) {
+            mHash = hash;
+            mParent = parent;
+            nHeight = (parent == null) ? 0 : parent.nHeight + 1;
+            BigInteger work = target.getWork();
+            mWork = (parent == null) ? work : parent.mWork.add(work);
+            mBlock = block;
+            nPosition = position;
+        }
+
+    } // end Node
+
+    /**
+     * An immutable view of the active chain as of one change. A snapshot
+     * shares its array with the chain but only reads the slots below its
+     * height, which the writer never changes in place.
+     */
+    public final class Snapshot {
+
+        // The nodes of the active chain indexed by height
+        private final Node[] mChain;
+        private final int nHeight;
+        // Null in the snapshots a reorganization checks blocks against, never published
+        private final Block mLeadBlock;
+
+        private Snapshot(Node[] chain, int height, Block leadBlock) {
+            mChain = chain;
+            nHeight = height;
+            mLeadBlock = leadBlock;
+        }
+
+        /**
+         * Gets the lead block as of this snapshot.
+         * @return The lead block.
+         */
+        public Block getLeadBlock() {
+            return mLeadBlock;
+        }
+
+        /**
+         * Gets the height (# of blocks) as of this snapshot.
+         * @return The number of blocks.
+         */
+        public int getHeight() {
+            return nHeight;
+        }
+
+        /**
+         * Gets the total work of the chain as of this snapshot.
+         * @return The cumulative work of every block in the chain.
+         */
+        public BigInteger getChainWork() {
+            return lead().mWork;
+        }
+
+        /**
+         * Determines if the snapshot contains a block with the indicated hash.
+         * @param hash A block hash.
+         * @return True if a block with the indicated hash is in the snapshot, false otherwise.
+         */
+        public boolean contains(Hash256 hash) {
+            return hash != null && find(hash) >= 0;
+        }
+
+        /**
+         * Gets the height of the block with the indicated hash.
+         * @param hash A block hash.
+         * @return The height of the block.
+         * @throws NoSuchBlockException If there is no block in the snapshot with the indicated hash.
+         */
+        public int getHeightOf(Hash256 hash) throws NoSuchBlockException {
+            if (hash == null) {
+                throw new IllegalArgumentException();
+            }
+            int height = find(hash);
+            if (height < 0) {
+                throw new NoSuchBlockException(hash);
+            }
+            return height;
+        }
+
+        /**
+         * Tries to get a block via the blocks hash.
+         * @param hash A block hash.
+         * @return A block whose hash matches the indicated hash.
+         * @throws NoSuchBlockException If there is no block in the snapshot with the indicated hash.
+         */
+        public Block getBlockByHash(Hash256 hash) throws NoSuchBlockException {
+            return blockAt(getHeightOf(hash));
+        }
+
+        /**
+         * Tries to get a block by height.
+         * @param height The height to retrieve at.
+         * @return The block at the given height.
+         * @throws NoSuchBlockException If there is no block in the snapshot at the indicated height.
+         */
+        public Block getBlockByHeight(int height) throws NoSuchBlockException {
+            // verify the height
+            if (height < 0 || height >= nHeight) {
+                throw new NoSuchBlockException(height);
+            }
+            return blockAt(height);
+        }
+
+        private Node lead() {
+            return mChain[nHeight - 1];
+        }
+
+        /**
+         * Finds the height of a block, -1 if the block is not on the chain of this snapshot.
+         */
+        private int find(Hash256 hash) {
+            Node node = mNodes.get(hash);
+            // the block may be on a side branch or newer than this snapshot
+            if (node == null || node.nHeight >= nHeight || mChain[node.nHeight] != node) {
+                return -1;
+            }
+            return node.nHeight;
+        }
+
+        /**
+         * Gets the block at a valid height from memory or from the block store.
+         */
+        private Block blockAt(int height) {
+            // snapshots built during a reorganization have no lead block
+            if (height == nHeight - 1 && mLeadBlock != null) {
+                return mLeadBlock;
+            }
+            return blockOf(mChain[height]);
+        }
+
+    } // end Snapshot
+
 }
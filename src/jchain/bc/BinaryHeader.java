@@ -0,0 +1,146 @@
+package jchain.bc;
+
+import jchain.util.Hash256;
+import jchain.util.SHA256;
+
+/**
+ * Fixed-layout binary form of a block header used for proof-of-work.<br>
+ * The header is always 80 bytes, all integers are big-endian:
+ * <ol>
+ * <li>bytes 0-3: The version number.</li>
+ * <li>bytes 4-35: The previous block hash.</li>
+ * <li>bytes 36-67: The Merkle root hash.</li>
+ * <li>bytes 68-71: The timestamp.</li>
+ * <li>bytes 72-75: The difficulty bits.</li>
+ * <li>bytes 76-79: The nonce.</li>
+ * </ol>
+ * Only the nonce changes while mining, so the SHA-256 state after the
+ * first 64 bytes (the midstate) is computed once when the header is
+ * created. Each nonce then only costs the compression of the final chunk
+ * plus the second hash. BinaryHeader objects are immutable and may be
+ * shared between threads, the scratch space lives in the SHA256 object.
+ */
+public class BinaryHeader {
+
+    //
+    // CONSTANTS
+    //
+
+    // The size of a serialized header in bytes
+    public static final int HEADER_SIZE = 80;
+
+    //
+    // FIELDS
+    //
+
+    // The serialized header, the nonce bytes are left zeroed
+    private final byte[] mBytes;
+    // The SHA-256 state after the first 64 bytes of the header
+    private final int[] mMidstate;
+    // The last four bytes of the Merkle root, they spill into the 2nd chunk
+    private final int nMerkleTail;
+    private final int nTimestamp;
+    private final int nBits;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a BinaryHeader using the current header
+     * version number and difficulty bits.
+     * @param prevBlockHash The previous block hash.
+     * @param merkleRoot The Merkle root hash.
+     * @param timestamp The timestamp of the header.
+     */
+    public BinaryHeader(Hash256 prevBlockHash, Hash256 merkleRoot, int timestamp) {
+        this(Header.VERSION_NUMBER, prevBlockHash.toBytes(),
+            merkleRoot.toBytes(), timestamp, Header.difficultyBits());
+    }
+
+    /**
+     * Returns an instance of a BinaryHeader containing the indicated fields.
+     * @param version The header version number.
+     * @param prevBlockHash The 32 byte previous block hash.
+     * @param merkleRoot The 32 byte Merkle root hash.
+     * @param timestamp The timestamp of the header.
+     * @param bits The difficulty bits of the header.
+     * @exception IllegalArgumentException If either hash is not 32 bytes.
+     */
+    public BinaryHeader(int version, byte[] prevBlockHash, byte[] merkleRoot, int timestamp, int bits) {
+        if (prevBlockHash == null || prevBlockHash.length != SHA256.DIGEST_BYTES) {
+            throw new IllegalArgumentException("Error: Cannot create binary header, previous block hash must be 32 bytes!");
+        }
+        if (merkleRoot == null || merkleRoot.length != SHA256.DIGEST_BYTES) {
+            throw new IllegalArgumentException("Error: Cannot create binary header, Merkle root must be 32 bytes!");
+        }
+        mBytes = new byte[HEADER_SIZE];
+        SHA256.writeInt(mBytes, 0, version);
+        System.arraycopy(prevBlockHash, 0, mBytes, 4, 32);
+        System.arraycopy(merkleRoot, 0, mBytes, 36, 32);
+        SHA256.writeInt(mBytes, 68, timestamp);
+        SHA256.writeInt(mBytes, 72, bits);
+        nMerkleTail = SHA256.readInt(mBytes, 64);
+        nTimestamp = timestamp;
+        nBits = bits;
+        mMidstate = new SHA256().midstate(mBytes, 0);
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the timestamp stored in the header.
+     * @return The timestamp of the header.
+     */
+    public int getTimestamp() {
+        return nTimestamp;
+    }
+
+    /**
+     * Gets the difficulty bits stored in the header.
+     * @return The difficulty bits of the header.
+     */
+    public int getBits() {
+        return nBits;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Computes the double SHA-256 hash of the header for the given nonce
+     * starting from the precomputed midstate. Does not allocate.
+     * @param nonce The nonce to hash the header with.
+     * @param sha A SHA256 object owned by the calling thread.
+     * @param out A 32 byte array that receives the hash.
+     */
+    public void hash(int nonce, SHA256 sha, byte[] out) {
+        sha.doubleHash80(mMidstate, nMerkleTail, nTimestamp, nBits, nonce, out);
+    }
+
+    /**
+     * Computes the double SHA-256 hash of the header for the given nonce.
+     * @param nonce The nonce to hash the header with.
+     * @return A 32 byte hash.
+     */
+    public byte[] hash(int nonce) {
+        byte[] out = new byte[SHA256.DIGEST_BYTES];
+        hash(nonce, new SHA256(), out);
+        return out;
+    }
+
+    /**
+     * Serializes the header with the given nonce.
+     * @param nonce The nonce to place in the header.
+     * @return The 80 byte serialized header.
+     */
+    public byte[] toBytes(int nonce) {
+        byte[] bytes = mBytes.clone();
+        SHA256.writeInt(bytes, 76, nonce);
+        return bytes;
+    }
+
+}
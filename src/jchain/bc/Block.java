@@ -1,13 +1,17 @@
 package jchain.bc;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Objects;
+import java.util.List;
 
 import jchain.bc.Header;
 import jchain.bc.Transaction;
 import jchain.util.BCUtil;
+import jchain.util.Hash256;
 import jchain.util.Hashable;
+import jchain.util.MerkleProof;
 import jchain.util.MerkleTree;
 
 /**
@@ -31,7 +35,7 @@ public class Block implements Hashable {
     private Header mBlockHeader;
     private int nTransactionCount = 0;
     private MerkleTree<Transaction> mTransactions;
-    private String sHash;
+    private Hash256 mHash;
 
     // constructors
 
@@ -49,24 +53,40 @@ public class Block implements Hashable {
      */
     public Block(Collection<Transaction> txList, 
             Header blockHeader) {
-        // check the transaction lsit
-        if (txList == null || txList.size() == 0) {
+        this(merkleTree(txList), blockHeader);
+    }
+
+    /**
+     * Returns an instance of a Block object over an already built 
+     * MerkleTree, e.g. the tree of a BlockTemplate. The tree must not be 
+     * modified afterwards.
+     * @param txTree A MerkleTree of the block's transactions.
+     * @param blockHeader The block header.
+     * @exception IllegalArgumentException If the tree is null or empty, 
+     * the block exceeds the size limit or the header is null or has a 
+     * different Merkle root.
+     */
+    public Block(MerkleTree<Transaction> txTree, Header blockHeader) {
+        // check the transaction tree
+        if (txTree == null || txTree.count() == 0) {
             throw new IllegalArgumentException("Error: Cannot create block without transactions!");
         }
         // check the block size
-        if (BCUtil.bits(txList) > BLOCK_SIZE) {
+        if (BCUtil.bits(txTree.toList()) > BLOCK_SIZE) {
             throw new IllegalArgumentException("Error: Cannot create block, block exceeds block size limit!");
         }
         // check the block header
         if (blockHeader == null) {
             throw new IllegalArgumentException("Error: Cannot create block, block header is null!");
         }
-        // create the merkletree
-        mTransactions = new MerkleTree<Transaction>(txList);
+        if (!txTree.computeHash().equals(blockHeader.getMerkleRoot())) {
+            throw new IllegalArgumentException("Error: Cannot create block, block header does not match the transactions!");
+        }
+        mTransactions = txTree;
         nTransactionCount = mTransactions.count();
         mBlockHeader = blockHeader;
         // determine the block hash
-        sHash = computeHash();
+        mHash = computeHash();
     }
 
     // accessors/mutators
@@ -83,8 +103,16 @@ public class Block implements Hashable {
      * Returns the block hash.
      * @return The blocks hash.
      */
-    public String getHash() {
-        return sHash;
+    public Hash256 getHash() {
+        return mHash;
+    }
+
+    /**
+     * Returns the Merkle root of the block's transactions.
+     * @return The Merkle root hash.
+     */
+    public Hash256 getMerkleRoot() {
+        return mTransactions.computeHash();
     }
 
     /**
@@ -111,15 +139,16 @@ public class Block implements Hashable {
      * <li>The nonce.</li>
      * <li>The previous block hash.</li>
      * </ol>
-     * @return A SHA-256 double hash as a hexstring.
+     * @return A SHA-256 double hash.
      */
-    public String computeHash() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(MAGIC_NUMBER);
-        sb.append(nTransactionCount);
-        sb.append(mTransactions.computeHash());
-        sb.append(getBlockHeader().computeHash());
-        return BCUtil.getInstance().doubleHash(sb.toString());
+    public Hash256 computeHash() {
+        ByteBuffer buffer = ByteBuffer.allocate((4 * 2) + (Hash256.SIZE * 2));
+        buffer.putInt(MAGIC_NUMBER);
+        buffer.putInt(nTransactionCount);
+        mTransactions.computeHash().write(buffer);
+        getBlockHeader().computeHash().write(buffer);
+        buffer.flip();
+        return BCUtil.getInstance().doubleHash256(buffer);
     }
 
     /**
@@ -128,7 +157,7 @@ public class Block implements Hashable {
      * @return True if the block contains a Transaction with the indicated
      * hash, false otherwise.
      */
-    public boolean contains(String txHash) {
+    public boolean contains(Hash256 txHash) {
         return mTransactions.contains(txHash);
     }
 
@@ -146,7 +175,7 @@ public class Block implements Hashable {
             return false;
         }
         Block block = (Block)obj;
-        return sHash.equals(block.getHash());
+        return mHash.equals(block.getHash());
     }
 
     /**
@@ -155,19 +184,111 @@ public class Block implements Hashable {
      */
     @Override
     public int hashCode() {
-        return Objects.hashCode(this);
+        return mHash.hashCode();
     }
 
     /**
      * Trys to get a transaction from the block with the given 
      *  transaction hash.
-     * @param txHash A SHA-256 double hash hexstring.
+     * @param txHash A SHA-256 double hash.
      * @return A Transaction object if it exists, null otherwise.
      */
-    public Transaction getTransaction(String txHash) {
+    public Transaction getTransaction(Hash256 txHash) {
         return mTransactions.get(txHash);
     }
 
+    /**
+     * Generates a Merkle inclusion proof for a transaction in the block, 
+     * it can be checked against getMerkleRoot() without the other 
+     * transactions.
+     * @param txHash A SHA-256 double hash.
+     * @return A MerkleProof, or null if the block does not contain the transaction.
+     */
+    public MerkleProof getProof(Hash256 txHash) {
+        return mTransactions.getProof(txHash);
+    }
+
+    /**
+     * Gets the transaction at the indicated position in the block.
+     * @param position The position of the transaction.
+     * @return The Transaction at position.
+     * @exception IndexOutOfBoundsException If there is no transaction at position.
+     */
+    public Transaction getTransaction(int position) {
+        return mTransactions.get(position);
+    }
+
+    /**
+     * Returns the transactions of the block ordered by position.
+     * @return A list of the transactions in the block.
+     */
+    public List<Transaction> getTransactions() {
+        return mTransactions.toList();
+    }
+
+    /**
+     * Gets the number of bytes serialize() writes for this Block.
+     * @return The serialized size of the Block in bytes.
+     */
+    public int serializedSize() {
+        int size = (4 * 5) + Hash256.SIZE;
+        for (Transaction tx : mTransactions.toList()) {
+            size += tx.serializedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the Block to the buffer. The layout is the header fields 
+     * (version, timestamp, bits, nonce, previous block hash), the 
+     * transaction count and then the transactions.
+     * @param buffer The buffer to write to.
+     */
+    public void serialize(ByteBuffer buffer) {
+        buffer.putInt(mBlockHeader.getVersionNumber());
+        buffer.putInt(mBlockHeader.getTimestamp());
+        buffer.putInt(mBlockHeader.getBits());
+        buffer.putInt(mBlockHeader.getNonce());
+        mBlockHeader.getPreviousBlockHash().write(buffer);
+        buffer.putInt(nTransactionCount);
+        for (Transaction tx : mTransactions.toList()) {
+            tx.serialize(buffer);
+        }
+    }
+
+    /**
+     * Reads a Block written by serialize() from the buffer. The header,
+     * Merkle tree and block hashes are recomputed.
+     * @param buffer The buffer to read from.
+     * @return The Block read.
+     */
+    public static Block deserialize(ByteBuffer buffer) {
+        // the version and bits are fixed for every header at the moment
+        buffer.getInt();
+        int timestamp = buffer.getInt();
+        buffer.getInt();
+        int nonce = buffer.getInt();
+        Hash256 prevBlockHash = Hash256.read(buffer);
+        int count = buffer.getInt();
+        ArrayList<Transaction> txList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            txList.add(Transaction.deserialize(buffer));
+        }
+        MerkleTree<Transaction> tree = new MerkleTree<>(txList);
+        return new Block(tree, new Header(prevBlockHash, tree.computeHash(), nonce, timestamp));
+    }
+
+    /**
+     * Builds the MerkleTree for the collection constructor.
+     */
+    private static MerkleTree<Transaction> merkleTree(Collection<Transaction> txList) {
+        // check the transaction list
+        if (txList == null || txList.size() == 0) {
+            throw new IllegalArgumentException("Error: Cannot create block without transactions!");
+        }
+        return new MerkleTree<Transaction>(txList);
+    }
+
     /**
      * Returns a String representation of this Block.
      * @return A String object representing this Block.
@@ -175,7 +296,7 @@ public class Block implements Hashable {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("Block Hash: ").append(sHash).append("\n");
+        sb.append("Block Hash: ").append(mHash).append("\n");
         sb.append("Transactions: ").append("\n");
         sb.append(mTransactions.toString()).append("\n");
         return sb.toString();
@@ -0,0 +1,505 @@
+package jchain.bc;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import jchain.util.Hash256;
+
+/**
+ * Append-only on-disk storage for the blocks of a chain.<br>
+ * Serialized blocks are appended to segment files (blk00000.dat,
+ * blk00001.dat, ...) that are rolled over once they reach the segment size.
+ * Every block also gets a fixed-size record in index.dat holding its
+ * segment, offset, length, hash, parent hash, difficulty bits and flags,
+ * so the index is simply ordered by height and the block tree can be
+ * rebuilt from it without reading a single block. A block found invalid
+ * after it was stored is flagged in its record with markInvalid(). Index
+ * files written before the record held the parent hash and bits are
+ * upgraded once when the store is opened. Only the index is kept on the
+ * heap, blocks are read back through read-only memory mappings of the
+ * segment files and deserialized on demand. The segment being appended
+ * to is only remapped once it has doubled since it was last mapped, the
+ * blocks appended since are read with positional reads, so reading the
+ * newest block after every append does not map the whole segment again
+ * each time.<br>
+ * A block's data is forced to disk before its index record is written, so
+ * a crash can at worst leave unindexed data at the end of the last segment,
+ * which is discarded when the store is opened again.<br>
+ * A BC appends every block it accepts, blocks on side branches included, so
+ * for a chain with forks the store height is the order blocks were accepted
+ * in rather than their height in the chain.
+ */
+public class BlockStore implements Closeable {
+
+    //
+    // CONSTANTS
+    //
+
+    // Segment files are rolled over once they reach this size
+    public static final int DEFAULT_SEGMENT_SIZE = 128 * 1024 * 1024;
+
+    private static final String INDEX_FILE = "index.dat";
+    // An upgraded index is written here and then moved over the index
+    private static final String UPGRADE_FILE = "index.upgrade";
+    private static final int INDEX_MAGIC = 0x4A424958;
+    private static final int INDEX_VERSION = 2;
+    // magic (int), version (int)
+    private static final int INDEX_HEADER_SIZE = 4 * 2;
+    // segment (int), offset (int), length (int), block hash, parent hash, bits (int), flags (int)
+    private static final int INDEX_RECORD_SIZE = (4 * 3) + (Hash256.SIZE * 2) + (4 * 2);
+    // The offset of the flags in a record
+    private static final int FLAGS_OFFSET = INDEX_RECORD_SIZE - 4;
+    // The records of version 1 indexes, which had no header: segment, offset, length, block hash
+    private static final int V1_RECORD_SIZE = (4 * 3) + Hash256.SIZE;
+    // Set in the flags of a block that failed validation
+    private static final int FLAG_INVALID = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+    // The smallest mapping of the segment being appended to
+    private static final int MIN_MAP_SIZE = 1024 * 1024;
+
+    //
+    // FIELDS
+    //
+
+    // The directory holding the segment files and the index
+    private final Path mDir;
+    private final int nSegmentSize;
+    private final FileChannel mIndex;
+    // One channel and one (lazily grown) mapping per segment file
+    private final ArrayList<FileChannel> mChannels = new ArrayList<>();
+    private final ArrayList<MappedByteBuffer> mMaps = new ArrayList<>();
+
+    // The index, parallel arrays ordered by height
+    private int[] mSegments = new int[INITIAL_CAPACITY];
+    private int[] mOffsets = new int[INITIAL_CAPACITY];
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+    private Hash256[] mHashes = new Hash256[INITIAL_CAPACITY];
+    private Hash256[] mPreviousHashes = new Hash256[INITIAL_CAPACITY];
+    private int[] mBits = new int[INITIAL_CAPACITY];
+    private int[] mFlags = new int[INITIAL_CAPACITY];
+    private int nCount = 0;
+    // The end of the data in the last segment
+    private int nAppendOffset = 0;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Opens the block store in the indicated directory with the default
+     * segment size, creating it if it does not exist.
+     * @param dir The directory of the store.
+     * @throws IOException If the store cannot be opened.
+     */
+    public BlockStore(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the block store in the indicated directory, creating it if it
+     * does not exist.
+     * @param dir The directory of the store.
+     * @param segmentSize The size segment files are rolled over at.
+     * @throws IOException If the store cannot be opened.
+     */
+    public BlockStore(Path dir, int segmentSize) throws IOException {
+        if (dir == null) {
+            throw new IllegalArgumentException("Error: Cannot open block store without a directory!");
+        }
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Error: Segment size must be > 0.");
+        }
+        mDir = dir;
+        nSegmentSize = segmentSize;
+        Files.createDirectories(dir);
+        upgrade();
+        mIndex = FileChannel.open(dir.resolve(INDEX_FILE), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (mIndex.size() < INDEX_HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+            header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).flip();
+            while (header.hasRemaining()) {
+                mIndex.write(header, header.position());
+            }
+            mIndex.force(false);
+        }
+        recover();
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the number of blocks in the store.
+     * @return The number of stored blocks.
+     */
+    public synchronized int count() {
+        return nCount;
+    }
+
+    /**
+     * Gets the hash of the block at the indicated height without reading the block.
+     * @param height The block height.
+     * @return The hash of the block.
+     */
+    public synchronized Hash256 getHash(int height) {
+        checkHeight(height);
+        return mHashes[height];
+    }
+
+    /**
+     * Gets the hash of the parent of the block at the indicated height
+     * without reading the block.
+     * @param height The block height.
+     * @return The previous block hash in the header of the block.
+     */
+    public synchronized Hash256 getPreviousHash(int height) {
+        checkHeight(height);
+        return mPreviousHashes[height];
+    }
+
+    /**
+     * Gets the difficulty bits of the block at the indicated height without
+     * reading the block.
+     * @param height The block height.
+     * @return The compact difficulty bits in the header of the block.
+     */
+    public synchronized int getBits(int height) {
+        checkHeight(height);
+        return mBits[height];
+    }
+
+    /**
+     * Determines whether the block at the indicated height was marked invalid.
+     * @param height The block height.
+     * @return True if markInvalid() was called for the block, false otherwise.
+     */
+    public synchronized boolean isInvalid(int height) {
+        checkHeight(height);
+        return (mFlags[height] & FLAG_INVALID) != 0;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Appends a block to the store, it is given the next height.
+     * @param block The block to append.
+     * @return The height of the block.
+     * @throws IOException If the block cannot be written.
+     */
+    public synchronized int append(Block block) throws IOException {
+        if (block == null) {
+            throw new NullPointerException();
+        }
+        ByteBuffer data = ByteBuffer.allocate(block.serializedSize());
+        block.serialize(data);
+        data.flip();
+        int length = data.remaining();
+        // roll over to a new segment if this one is full
+        if (mChannels.isEmpty() || (nAppendOffset > 0 && (long) nAppendOffset + length > nSegmentSize)) {
+            openSegment(mChannels.size());
+            nAppendOffset = 0;
+        }
+        int segment = mChannels.size() - 1;
+        FileChannel channel = mChannels.get(segment);
+        int offset = nAppendOffset;
+        while (data.hasRemaining()) {
+            channel.write(data, offset + (length - data.remaining()));
+        }
+        channel.force(false);
+        // only index the block once its data is on disk
+        Header header = block.getBlockHeader();
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        record.putInt(segment).putInt(offset).putInt(length);
+        block.getHash().write(record);
+        header.getPreviousBlockHash().write(record);
+        record.putInt(header.getBits()).putInt(0);
+        record.flip();
+        long position = recordPosition(nCount);
+        while (record.hasRemaining()) {
+            mIndex.write(record, position + (INDEX_RECORD_SIZE - record.remaining()));
+        }
+        mIndex.force(false);
+        nAppendOffset = offset + length;
+        put(segment, offset, length, block.getHash(), header.getPreviousBlockHash(), header.getBits(), 0);
+        return nCount - 1;
+    }
+
+    /**
+     * Flags the block at the indicated height as invalid in its index
+     * record, so a chain rebuilt from the store does not adopt it again.
+     * @param height The block height.
+     * @throws IOException If the index cannot be written.
+     */
+    public synchronized void markInvalid(int height) throws IOException {
+        checkHeight(height);
+        if ((mFlags[height] & FLAG_INVALID) != 0) {
+            return;
+        }
+        ByteBuffer flags = ByteBuffer.allocate(4);
+        flags.putInt(mFlags[height] | FLAG_INVALID).flip();
+        while (flags.hasRemaining()) {
+            mIndex.write(flags, recordPosition(height) + FLAGS_OFFSET + flags.position());
+        }
+        mIndex.force(false);
+        mFlags[height] |= FLAG_INVALID;
+    }
+
+    /**
+     * Reads the block at the indicated height from its segment mapping, or
+     * from the segment file if it lies past the mapped part.
+     * @param height The block height.
+     * @return The block at height.
+     * @throws IOException If the segment cannot be mapped or read.
+     */
+    public Block read(int height) throws IOException {
+        ByteBuffer buffer = null;
+        FileChannel channel = null;
+        int offset;
+        int length;
+        synchronized (this) {
+            checkHeight(height);
+            offset = mOffsets[height];
+            length = mLengths[height];
+            MappedByteBuffer map = mapping(mSegments[height], offset + length);
+            if (map != null) {
+                buffer = map.duplicate();
+                buffer.position(offset).limit(offset + length);
+            } else {
+                channel = mChannels.get(mSegments[height]);
+            }
+        }
+        // read and deserialize outside the lock, the buffer is private to this call
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, (long) offset + buffer.position()) < 0) {
+                    throw new EOFException("Error: Block " + height + " is cut off in its segment file!");
+                }
+            }
+            buffer.flip();
+        }
+        return Block.deserialize(buffer);
+    }
+
+    /**
+     * Closes the segment files and the index.
+     * @throws IOException If a file cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : mChannels) {
+            channel.close();
+        }
+        mIndex.close();
+    }
+
+    /**
+     * Returns a mapping of the segment that covers at least end bytes, or
+     * null if the bytes should be read from the file instead. A full
+     * segment never grows again and is mapped whole. The segment being
+     * appended to is only remapped once it is at least twice the size of
+     * its mapping (and MIN_MAP_SIZE), so it is remapped a logarithmic
+     * number of times however many blocks are read from its tail.
+     */
+    private MappedByteBuffer mapping(int segment, int end) throws IOException {
+        MappedByteBuffer map = mMaps.get(segment);
+        if (map != null && map.capacity() >= end) {
+            return map;
+        }
+        boolean full = segment < mChannels.size() - 1;
+        long size = full ? mChannels.get(segment).size() : nAppendOffset;
+        long mapped = (map == null) ? 0 : map.capacity();
+        if (!full && size < Math.max(MIN_MAP_SIZE, 2 * mapped)) {
+            return null;
+        }
+        map = mChannels.get(segment).map(FileChannel.MapMode.READ_ONLY, 0, size);
+        mMaps.set(segment, map);
+        return map;
+    }
+
+    /**
+     * Loads the index and drops anything a crash may have left behind:
+     * a partial index record, records pointing past the end of their
+     * segment and unindexed data at the end of the last segment.
+     */
+    private void recover() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        while (header.hasRemaining() && mIndex.read(header, header.position()) >= 0) {
+        }
+        if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != INDEX_VERSION) {
+            throw new IOException("Error: " + mDir.resolve(INDEX_FILE) + " is not a version " + INDEX_VERSION + " block index!");
+        }
+        long records = (mIndex.size() - INDEX_HEADER_SIZE) / INDEX_RECORD_SIZE;
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        for (int i = 0; i < records; i++) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (mIndex.read(record, recordPosition(i) + record.position()) < 0) {
+                    break;
+                }
+            }
+            record.flip();
+            int segment = record.getInt();
+            int offset = record.getInt();
+            int length = record.getInt();
+            Hash256 hash = Hash256.read(record);
+            Hash256 previousHash = Hash256.read(record);
+            int bits = record.getInt();
+            int flags = record.getInt();
+            // segments are only ever appended to in order
+            if (segment < mChannels.size() - 1 || segment > mChannels.size()) {
+                break;
+            }
+            long end = (long) offset + length;
+            if (segment == mChannels.size()) {
+                Path path = segmentPath(segment);
+                if (!Files.exists(path) || end > Files.size(path)) {
+                    break;
+                }
+                openSegment(segment);
+            } else if (end > mChannels.get(segment).size()) {
+                break;
+            }
+            put(segment, offset, length, hash, previousHash, bits, flags);
+            nAppendOffset = offset + length;
+        }
+        mIndex.truncate(recordPosition(nCount));
+        if (!mChannels.isEmpty()) {
+            mChannels.get(mChannels.size() - 1).truncate(nAppendOffset);
+        }
+        // remove any segment that was created but never indexed
+        for (int segment = mChannels.size(); Files.exists(segmentPath(segment)); segment++) {
+            Files.delete(segmentPath(segment));
+        }
+    }
+
+    /**
+     * Rewrites a version 1 index, which had no header and no parent hashes
+     * or bits, in the current format. The parent hash and bits of every
+     * block are read from the segments, once. The new index is written
+     * next to the old one and moved over it, a crash during the upgrade
+     * leaves the old index in place. Records that recover() would drop are
+     * copied as they are, they are dropped when the index is loaded.
+     */
+    private void upgrade() throws IOException {
+        Path file = mDir.resolve(INDEX_FILE);
+        Path upgraded = mDir.resolve(UPGRADE_FILE);
+        Files.deleteIfExists(upgraded);
+        if (!Files.exists(file) || Files.size(file) < 4) {
+            return;
+        }
+        try (FileChannel old = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && old.read(magic, magic.position()) >= 0) {
+            }
+            if (magic.getInt(0) == INDEX_MAGIC) {
+                return;
+            }
+            ArrayList<FileChannel> segments = new ArrayList<>();
+            try (FileChannel index = FileChannel.open(upgraded, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer out = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+                out.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).flip();
+                while (out.hasRemaining()) {
+                    index.write(out);
+                }
+                long records = old.size() / V1_RECORD_SIZE;
+                ByteBuffer record = ByteBuffer.allocate(V1_RECORD_SIZE);
+                out = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+                for (long i = 0; i < records; i++) {
+                    record.clear();
+                    while (record.hasRemaining() && old.read(record, (i * V1_RECORD_SIZE) + record.position()) >= 0) {
+                    }
+                    record.flip();
+                    int segment = record.getInt(0);
+                    int offset = record.getInt(4);
+                    int length = record.getInt(8);
+                    Path path = segmentPath(segment);
+                    if (segment < 0 || segment > segments.size() || !Files.exists(path)) {
+                        break;
+                    }
+                    if (segment == segments.size()) {
+                        segments.add(FileChannel.open(path, StandardOpenOption.READ));
+                    }
+                    ByteBuffer data = ByteBuffer.allocate(length);
+                    while (data.hasRemaining() && segments.get(segment).read(data, (long) offset + data.position()) >= 0) {
+                    }
+                    if (data.hasRemaining()) {
+                        break;
+                    }
+                    data.flip();
+                    Header header = Block.deserialize(data).getBlockHeader();
+                    out.clear();
+                    out.put(record);
+                    header.getPreviousBlockHash().write(out);
+                    out.putInt(header.getBits()).putInt(0);
+                    out.flip();
+                    while (out.hasRemaining()) {
+                        index.write(out);
+                    }
+                }
+                index.force(false);
+            } finally {
+                for (FileChannel segment : segments) {
+                    segment.close();
+                }
+            }
+        }
+        Files.move(upgraded, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long recordPosition(int height) {
+        return INDEX_HEADER_SIZE + ((long) height * INDEX_RECORD_SIZE);
+    }
+
+    private void openSegment(int segment) throws IOException {
+        mChannels.add(FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE));
+        mMaps.add(null);
+    }
+
+    private Path segmentPath(int segment) {
+        return mDir.resolve(String.format("blk%05d.dat", segment));
+    }
+
+    private void put(int segment, int offset, int length, Hash256 hash, Hash256 previousHash, int bits, int flags) {
+        if (nCount == mSegments.length) {
+            int capacity = mSegments.length * 2;
+            mSegments = Arrays.copyOf(mSegments, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+            mHashes = Arrays.copyOf(mHashes, capacity);
+            mPreviousHashes = Arrays.copyOf(mPreviousHashes, capacity);
+            mBits = Arrays.copyOf(mBits, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+        }
+        mSegments[nCount] = segment;
+        mOffsets[nCount] = offset;
+        mLengths[nCount] = length;
+        mHashes[nCount] = hash;
+        mPreviousHashes[nCount] = previousHash;
+        mBits[nCount] = bits;
+        mFlags[nCount] = flags;
+        nCount++;
+    }
+
+    private void checkHeight(int height) {
+        if (height < 0 || height >= nCount) {
+            throw new IndexOutOfBoundsException(height);
+        }
+    }
+
+}
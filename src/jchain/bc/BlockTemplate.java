@@ -0,0 +1,156 @@
+package jchain.bc;
+
+import java.util.Collection;
+import java.util.List;
+
+import jchain.bc.BinaryHeader;
+import jchain.bc.Block;
+import jchain.bc.Header;
+import jchain.bc.Transaction;
+import jchain.util.BCUtil;
+import jchain.util.Hash256;
+import jchain.util.MerkleTree;
+import jchain.util.SHA256;
+
+/**
+ * A candidate block that only lacks its nonce.<br>
+ * The Merkle tree, the Merkle root and the binary header midstate are
+ * computed once when the template is created. Mining hashes, headers and
+ * the final block for any nonce are then produced from that cached state,
+ * so nothing is rehashed per nonce. Templates are immutable and may be
+ * shared between mining threads.
+ */
+public class BlockTemplate {
+
+    //
+    // FIELDS
+    //
+
+    private final Hash256 mPrevBlockHash;
+    private final MerkleTree<Transaction> mTree;
+    private final Hash256 mMerkleRoot;
+    private final int nTimestamp;
+    private final BinaryHeader mBinaryHeader;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a BlockTemplate stamped with the current time.
+     * @param prevBlockHash The hash of the block the template builds on.
+     * @param txList The transactions of the block.
+     */
+    public BlockTemplate(Hash256 prevBlockHash, Collection<Transaction> txList) {
+        this(prevBlockHash, txList, BCUtil.now());
+    }
+
+    /**
+     * Returns an instance of a BlockTemplate with a fixed timestamp.
+     * @param prevBlockHash The hash of the block the template builds on.
+     * @param txList The transactions of the block.
+     * @param timestamp The timestamp of the block.
+     * @exception IllegalArgumentException If prevBlockHash is null or txList is null or empty.
+     */
+    public BlockTemplate(Hash256 prevBlockHash, Collection<Transaction> txList, int timestamp) {
+        if (prevBlockHash == null) {
+            throw new IllegalArgumentException("Error: Cannot create block template without a previous block hash!");
+        }
+        if (txList == null || txList.size() == 0) {
+            throw new IllegalArgumentException("Error: Cannot create block template without a list of transactions!");
+        }
+        mPrevBlockHash = prevBlockHash;
+        mTree = new MerkleTree<>(txList);
+        mMerkleRoot = mTree.computeHash();
+        nTimestamp = timestamp;
+        mBinaryHeader = new BinaryHeader(prevBlockHash, mMerkleRoot, timestamp);
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the hash of the block the template builds on.
+     * @return The previous block hash.
+     */
+    public Hash256 getPreviousBlockHash() {
+        return mPrevBlockHash;
+    }
+
+    /**
+     * Gets the Merkle root of the template's transactions.
+     * @return The Merkle root hash.
+     */
+    public Hash256 getMerkleRoot() {
+        return mMerkleRoot;
+    }
+
+    /**
+     * Gets the timestamp of the template.
+     * @return The timestamp.
+     */
+    public int getTimestamp() {
+        return nTimestamp;
+    }
+
+    /**
+     * Gets the binary header of the template, the MiningEngine searches its nonce space.
+     * @return The binary header with its precomputed midstate.
+     */
+    public BinaryHeader getBinaryHeader() {
+        return mBinaryHeader;
+    }
+
+    /**
+     * Gets the transactions of the template.
+     * @return A read-only list of the transactions ordered by position.
+     */
+    public List<Transaction> getTransactions() {
+        return mTree.toList();
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Computes the mining hash of the template for the given nonce.
+     * @param nonce The nonce.
+     * @return The mining hash.
+     */
+    public Hash256 miningHash(int nonce) {
+        return Hash256.of(mBinaryHeader.hash(nonce));
+    }
+
+    /**
+     * Computes the mining hash of the template for the given nonce
+     * without allocating.
+     * @param nonce The nonce.
+     * @param sha A SHA256 object owned by the calling thread.
+     * @param out A 32 byte array that receives the hash.
+     */
+    public void miningHash(int nonce, SHA256 sha, byte[] out) {
+        mBinaryHeader.hash(nonce, sha, out);
+    }
+
+    /**
+     * Creates the header of the template for the given nonce.
+     * @param nonce The nonce.
+     * @return A Header.
+     */
+    public Header header(int nonce) {
+        return new Header(mPrevBlockHash, mMerkleRoot, mBinaryHeader, nonce);
+    }
+
+    /**
+     * Creates the block of the template for the given nonce, the block
+     * shares the template's Merkle tree.
+     * @param nonce The nonce.
+     * @return A Block.
+     */
+    public Block block(int nonce) {
+        return new Block(mTree, header(nonce));
+    }
+
+}
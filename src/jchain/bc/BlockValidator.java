@@ -0,0 +1,447 @@
+package jchain.bc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import jchain.util.Hash256;
+import jchain.util.MerkleTree;
+
+/**
+ * Validates blocks in two phases.<br>
+ * The context-free phase checks what a block can prove about itself: the
+ * proof-of-work of its header, that every transaction hashes to the hash
+ * it claims, is well-formed and has scripts that compile, that the Merkle root rebuilt from those
+ * hashes is the one in the header and that no transaction appears twice.
+ * Each of these is independent per transaction (or per Merkle node), so
+ * the transactions are split into ranges that are checked in parallel on a
+ * ForkJoinPool, and the time to check a full block goes down with the
+ * number of cores.<br>
+ * The contextual phase needs the unspent outputs of the block's parent. It
+ * walks the transactions in order and checks that every spent output is
+ * unspent, either in the UTXO set or created by an earlier transaction of
+ * the block, that no output is spent twice, that every input carries
+ * the value of the output it spends and that its unlocking script
+ * satisfies the output's script. The spends are resolved with lookups and
+ * set operations only, hashing and script compilation were done by the
+ * first phase, and the scripts then run in parallel on a ScriptVM per
+ * worker.<br>
+ * Validators are thread-safe, blocks may be validated concurrently.
+ */
+public class BlockValidator {
+
+    //
+    // CONSTANTS
+    //
+
+    // Ranges with at most this many transactions (or Merkle nodes) are not split any further
+    private static final int SEQUENTIAL_THRESHOLD = 64;
+
+    private static final BlockValidator mInstance = new BlockValidator();
+
+    //
+    // FIELDS
+    //
+
+    // Runs the context-free checks
+    private final ForkJoinPool mPool;
+    // The number of blocks that passed the context-free checks
+    private final LongAdder mChecked = new LongAdder();
+    // Total wall-clock time spent in the context-free checks, in nanoseconds
+    private final LongAdder mCheckNanos = new LongAdder();
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a BlockValidator with one worker per available processor.
+     */
+    public BlockValidator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns an instance of a BlockValidator with the indicated number of workers.
+     * @param workers The number of worker threads.
+     * @exception IllegalArgumentException If workers is less than one.
+     */
+    public BlockValidator(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Error: Block validator requires at least one worker!");
+        }
+        // fork join workers are daemon threads already
+        mPool = new ForkJoinPool(workers, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("jchain-validator-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Returns the shared BlockValidator, sized to the number of available processors.
+     * @return A shared BlockValidator instance.
+     */
+    public static BlockValidator getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Gets the number of worker threads in this validator.
+     * @return The number of worker threads.
+     */
+    public int getWorkerCount() {
+        return mPool.getParallelism();
+    }
+
+    /**
+     * Gets the number of blocks that passed the context-free checks.
+     * @return The number of checked blocks.
+     */
+    public long getCheckedCount() {
+        return mChecked.sum();
+    }
+
+    /**
+     * Gets the average time the context-free checks of a block took.
+     * @return The average time in milliseconds, 0 if no block was checked.
+     */
+    public double getAverageCheckMillis() {
+        long checked = mChecked.sum();
+        if (checked == 0) {
+            return 0.0;
+        }
+        return (mCheckNanos.sum() / 1e6) / checked;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Runs the context-free checks on a block. They do not depend on the
+     * chain, so they may run before the block is handed to a BC and
+     * outside of its lock.
+     * @param block The block to check.
+     * @exception IllegalArgumentException If the block fails a check, the
+     *  message tells which.
+     */
+    public void checkBlock(Block block) {
+        if (block == null) {
+            throw new NullPointerException();
+        }
+        long start = System.nanoTime();
+        if (!block.getBlockHeader().hasValidProofOfWork()) {
+            throw new IllegalArgumentException("ERROR: Block hash does not meet the proof-of-work target! Block not added!");
+        }
+        List<Transaction> txList = block.getTransactions();
+        Hash256[] hashes = new Hash256[txList.size()];
+        String[] problems = new String[txList.size()];
+        mPool.invoke(new TransactionCheck(txList, hashes, problems, 0, hashes.length));
+        // report the first bad transaction, not whichever worker lost the race
+        for (int i = 0; i < problems.length; i++) {
+            if (problems[i] != null) {
+                throw new IllegalArgumentException("ERROR: Transaction " + i + " of the block " + problems[i] + " Block not added!");
+            }
+        }
+        if (!merkleRoot(hashes).equals(block.getBlockHeader().getMerkleRoot())) {
+            throw new IllegalArgumentException("ERROR: Merkle root of the transactions does not match the block header! Block not added!");
+        }
+        HashSet<Hash256> unique = new HashSet<>(hashes.length * 2);
+        for (Hash256 hash : hashes) {
+            if (!unique.add(hash)) {
+                throw new IllegalArgumentException("ERROR: Block contains transaction " + hash + " twice! Block not added!");
+            }
+        }
+        mCheckNanos.add(System.nanoTime() - start);
+        mChecked.increment();
+    }
+
+    /**
+     * Runs the contextual checks on a block without looking up the scripts
+     * of outputs created before the block, see checkInputs(Block,
+     * UnspentOutputs, Function).
+     * @param block The block to check.
+     * @param utxos The unspent outputs of the chain ending in the block's
+     *  parent, it is only read.
+     * @exception IllegalArgumentException If an input spends an output it
+     *  cannot spend, the message tells which.
+     */
+    public void checkInputs(Block block, UnspentOutputs utxos) {
+        checkInputs(block, utxos, null);
+    }
+
+    /**
+     * Runs the contextual checks on a block: every output its inputs spend
+     * must be unspent when the input is reached, every input must carry
+     * the value of the output it spends and its unlocking script must
+     * satisfy the output's script. The UTXO set does not keep scripts, the
+     * outputs of earlier blocks are looked up through spentOutputs. Inputs
+     * that do not spend an output are not checked. The block must have
+     * passed checkBlock().<br>
+     * The spends are resolved in order, the scripts are run afterwards,
+     * in parallel if there are many.
+     * @param block The block to check.
+     * @param utxos The unspent outputs of the chain ending in the block's
+     *  parent, it is only read.
+     * @param spentOutputs Finds an output created before the block, may be
+     *  null (or return null) if it is not known, its script is not run then.
+     * @exception IllegalArgumentException If an input spends an output it
+     *  cannot spend, the message tells which.
+     */
+    public void checkInputs(Block block, UnspentOutputs utxos, Function<OutPoint, Output> spentOutputs) {
+        if (block == null || utxos == null) {
+            throw new NullPointerException();
+        }
+        List<Transaction> txList = block.getTransactions();
+        // the transactions of the block seen so far, their outputs are spendable too
+        HashMap<Hash256, Transaction> earlier = new HashMap<>(txList.size() * 2);
+        HashSet<OutPoint> spent = new HashSet<>();
+        // the spends whose scripts still have to run
+        ArrayList<OutPoint> owners = new ArrayList<>();
+        ArrayList<Script> unlocks = new ArrayList<>();
+        ArrayList<Script> locks = new ArrayList<>();
+        for (Transaction tx : txList) {
+            List<OutPoint> outPoints = tx.getOutPoints();
+            List<Script> scripts = tx.getUnlockScripts();
+            int spend = 0;
+            ListIterator<String> inputs = tx.getInputs();
+            while (inputs.hasNext()) {
+                String input = inputs.next();
+                // well-formed transactions have a parsed outpoint for every input written like a spend
+                if (!Transaction.isSpend(input)) {
+                    continue;
+                }
+                OutPoint outPoint = outPoints.get(spend);
+                Script unlock = scripts.get(spend);
+                spend++;
+                if (!spent.add(outPoint)) {
+                    throw new IllegalArgumentException("ERROR: Block spends output " + outPoint + " twice! Block not added!");
+                }
+                long value;
+                Output output = null;
+                Transaction creator = earlier.get(outPoint.getTxHash());
+                if (creator != null) {
+                    output = (outPoint.getIndex() < creator.getOutputCount()) ? creator.getOutput(outPoint.getIndex()) : null;
+                    value = (output == null) ? 0 : output.getValueAsMinis();
+                } else {
+                    value = utxos.getValue(outPoint.getTxHash(), outPoint.getIndex());
+                    if (value != 0 && spentOutputs != null) {
+                        output = spentOutputs.apply(outPoint);
+                    }
+                }
+                if (value == 0) {
+                    throw new IllegalArgumentException("ERROR: Block spends output " + outPoint + " which is not unspent! Block not added!");
+                }
+                if (Transaction.inputAmount(input) != value) {
+                    throw new IllegalArgumentException("ERROR: Input of transaction " + tx.getHash()
+                        + " does not carry the value of output " + outPoint + "! Block not added!");
+                }
+                if (output != null && !output.getCompiledScript().isEmpty()) {
+                    owners.add(outPoint);
+                    unlocks.add(unlock);
+                    locks.add(output.getCompiledScript());
+                }
+            }
+            earlier.put(tx.getHash(), tx);
+        }
+        boolean[] failed = new boolean[owners.size()];
+        if (owners.size() > SEQUENTIAL_THRESHOLD) {
+            mPool.invoke(new ScriptCheck(unlocks, locks, failed, 0, failed.length));
+        } else {
+            ScriptCheck.verify(unlocks, locks, failed, 0, failed.length);
+        }
+        for (int i = 0; i < failed.length; i++) {
+            if (failed[i]) {
+                throw new IllegalArgumentException("ERROR: Input spending output " + owners.get(i)
+                    + " does not satisfy its script! Block not added!");
+            }
+        }
+    }
+
+    /**
+     * Runs both phases on a block, see checkBlock() and checkInputs().
+     * @param block The block to check.
+     * @param utxos The unspent outputs of the chain ending in the block's parent.
+     * @exception IllegalArgumentException If the block fails a check.
+     */
+    public void validate(Block block, UnspentOutputs utxos) {
+        checkBlock(block);
+        checkInputs(block, utxos);
+    }
+
+    /**
+     * Computes the Merkle root over the indicated leaves, the same way
+     * MerkleTree does. Wide levels are hashed in parallel.
+     */
+    private Hash256 merkleRoot(Hash256[] leaves) {
+        Hash256[] level = leaves;
+        while (level.length > 1) {
+            Hash256[] parents = new Hash256[(level.length + 1) / 2];
+            if (parents.length > SEQUENTIAL_THRESHOLD) {
+                mPool.invoke(new MerkleLevel(level, parents, 0, parents.length));
+            } else {
+                hashPairs(level, parents, 0, parents.length);
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    /**
+     * Hashes the children of the parents in [from, to), an odd last child
+     * is paired with itself.
+     */
+    private static void hashPairs(Hash256[] children, Hash256[] parents, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int left = i * 2;
+            parents[i] = MerkleTree.hashPair(children[left],
+                (left + 1 < children.length) ? children[left + 1] : children[left]);
+        }
+    }
+
+    /**
+     * Checks a range of transactions: the hash is recomputed from the
+     * contents (inputs and outputs can be changed through their iterators
+     * after the hash was cached), the transaction must be well-formed and
+     * its scripts must compile. The outpoints are parsed and the scripts
+     * compiled here, so the contextual phase finds them cached.
+     */
+    private static class TransactionCheck extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Transaction> mTxList;
+        private final Hash256[] mHashes;
+        private final String[] mProblems;
+        private final int nFrom;
+        private final int nTo;
+
+        private TransactionCheck(List<Transaction> txList, Hash256[] hashes, String[] problems, int from, int to) {
+            mTxList = txList;
+            mHashes = hashes;
+            mProblems = problems;
+            nFrom = from;
+            nTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (nTo - nFrom > SEQUENTIAL_THRESHOLD) {
+                int middle = (nFrom + nTo) >>> 1;
+                invokeAll(new TransactionCheck(mTxList, mHashes, mProblems, nFrom, middle),
+                    new TransactionCheck(mTxList, mHashes, mProblems, middle, nTo));
+                return;
+            }
+            for (int i = nFrom; i < nTo; i++) {
+                Transaction tx = mTxList.get(i);
+                Hash256 hash = tx.computeHash();
+                mHashes[i] = hash;
+                if (!hash.equals(tx.getHash())) {
+                    mProblems[i] = "does not match its hash!";
+                } else if (!tx.isWellFormed()) {
+                    mProblems[i] = "is not well-formed!";
+                } else {
+                    tx.getOutPoints();
+                    try {
+                        tx.getUnlockScripts();
+                        for (int output = 0; output < tx.getOutputCount(); output++) {
+                            tx.getOutput(output).getCompiledScript();
+                        }
+                    } catch (IllegalArgumentException ex) {
+                        mProblems[i] = "has a script that does not compile!";
+                    }
+                }
+            }
+        }
+
+    } // end TransactionCheck
+
+    /**
+     * Runs a range of unlocking and locking script pairs, every thread
+     * reuses its own ScriptVM.
+     */
+    private static class ScriptCheck extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final ThreadLocal<ScriptVM> mVM = ThreadLocal.withInitial(ScriptVM::new);
+
+        private final List<Script> mUnlocks;
+        private final List<Script> mLocks;
+        private final boolean[] mFailed;
+        private final int nFrom;
+        private final int nTo;
+
+        private ScriptCheck(List<Script> unlocks, List<Script> locks, boolean[] failed, int from, int to) {
+            mUnlocks = unlocks;
+            mLocks = locks;
+            mFailed = failed;
+            nFrom = from;
+            nTo = to;
+        }
+
+        private static void verify(List<Script> unlocks, List<Script> locks, boolean[] failed, int from, int to) {
+            ScriptVM vm = mVM.get();
+            for (int i = from; i < to; i++) {
+                failed[i] = !vm.verify(unlocks.get(i), locks.get(i));
+            }
+        }
+
+        @Override
+        protected void compute() {
+            if (nTo - nFrom > SEQUENTIAL_THRESHOLD) {
+                int middle = (nFrom + nTo) >>> 1;
+                invokeAll(new ScriptCheck(mUnlocks, mLocks, mFailed, nFrom, middle),
+                    new ScriptCheck(mUnlocks, mLocks, mFailed, middle, nTo));
+                return;
+            }
+            verify(mUnlocks, mLocks, mFailed, nFrom, nTo);
+        }
+
+    } // end ScriptCheck
+
+    /**
+     * Hashes a range of the parents of one Merkle tree level.
+     */
+    private static class MerkleLevel extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Hash256[] mChildren;
+        private final Hash256[] mParents;
+        private final int nFrom;
+        private final int nTo;
+
+        private MerkleLevel(Hash256[] children, Hash256[] parents, int from, int to) {
+            mChildren = children;
+            mParents = parents;
+            nFrom = from;
+            nTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (nTo - nFrom > SEQUENTIAL_THRESHOLD) {
+                int middle = (nFrom + nTo) >>> 1;
+                invokeAll(new MerkleLevel(mChildren, mParents, nFrom, middle),
+                    new MerkleLevel(mChildren, mParents, middle, nTo));
+                return;
+            }
+            hashPairs(mChildren, mParents, nFrom, nTo);
+        }
+
+    } // end MerkleLevel
+
+} // end BlockValidator
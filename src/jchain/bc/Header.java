@@ -1,12 +1,11 @@
 package jchain.bc;
 
 import java.nio.ByteBuffer;
-import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.util.Collection;
 
 import jchain.bc.Transaction;
 import jchain.util.BCUtil;
+import jchain.util.Hash256;
 import jchain.util.Hashable;
 import jchain.util.MerkleTree;
 
@@ -31,10 +30,13 @@ public class Header implements Hashable {
     private static int nBits = 0x207fffff;  // RegTest difficulty
     // Than this guy 
     //private static int nBits = 0x1d00ffff; // TestNet difficulty
+    // nBits decoded into a fixed-width target
+    private static final Target mTarget = Target.fromBits(nBits);
     private int nNonce = 0;
-    private String sPrevBlockHash;
-    private String sHash;
-    private String sMiningHash;
+    private Hash256 mPrevBlockHash;
+    private Hash256 mMerkleRoot;
+    private Hash256 mHash;
+    private Hash256 mMiningHash;
 
     //
     // CONSTRUCTORS
@@ -47,25 +49,52 @@ public class Header implements Hashable {
      * @param txList A list of transactions.
      * @param nonce The nonce for the block.
      */
-    public Header(String prevBlockHash, Collection<Transaction> txList, int nonce) {
-        if (prevBlockHash == null || prevBlockHash.length() == 0) {
-            throw new IllegalArgumentException("Error: Cannot create block header without a previous block hash!");
-        }
-        if (txList == null || txList.size() == 0) {
-            throw new IllegalArgumentException("Error: Cannot create block header without a list of transactions!");
-        }
-        sPrevBlockHash = prevBlockHash;
+    public Header(Hash256 prevBlockHash, Collection<Transaction> txList, int nonce) {
+        this(prevBlockHash, txList, nonce, BCUtil.now());
+    }
+
+    /**
+     * Returns an instance of a block header constructed from the 
+     * previous block hash and the transactions list with a fixed 
+     * timestamp.
+     * @param prevBlockHash The hash of the previous block in the chain.
+     * @param txList A list of transactions.
+     * @param nonce The nonce for the block.
+     * @param timestamp The timestamp for the block.
+     */
+    public Header(Hash256 prevBlockHash, Collection<Transaction> txList, int nonce, int timestamp) {
+        this(prevBlockHash, merkleRoot(txList), nonce, timestamp);
+    }
+
+    /**
+     * Returns an instance of a block header constructed from the 
+     * previous block hash and an already computed Merkle root.
+     * @param prevBlockHash The hash of the previous block in the chain.
+     * @param merkleRoot The Merkle root of the block's transactions.
+     * @param nonce The nonce for the block.
+     * @param timestamp The timestamp for the block.
+     */
+    public Header(Hash256 prevBlockHash, Hash256 merkleRoot, int nonce, int timestamp) {
+        this(prevBlockHash, merkleRoot, 
+            new BinaryHeader(checkHash(prevBlockHash), checkRoot(merkleRoot), timestamp), nonce);
+    }
+
+    /**
+     * Returns an instance of a block header whose mining hash is taken 
+     * from a binary header that already holds its midstate, used by 
+     * BlockTemplate.
+     * @param prevBlockHash The hash of the previous block in the chain.
+     * @param merkleRoot The Merkle root of the block's transactions.
+     * @param header The binary header of the block.
+     * @param nonce The nonce for the block.
+     */
+    Header(Hash256 prevBlockHash, Hash256 merkleRoot, BinaryHeader header, int nonce) {
+        mPrevBlockHash = checkHash(prevBlockHash);
+        mMerkleRoot = merkleRoot;
         nVersionNumber = VERSION_NUMBER;
         nNonce = nonce;
-        nTimestamp = BCUtil.now();
-        // generate the mining hash
-        StringBuilder sb = new StringBuilder();
-        sb.append(prevBlockHash);
-        // TODO: This seems wasteful to me, sounds like a refactor
-        MerkleTree<Transaction> tree = new MerkleTree<>(txList);
-        sb.append(tree.computeHash());
-        sb.append(nNonce);
-        sMiningHash = BCUtil.getInstance().doubleHash(sb.toString());
+        nTimestamp = header.getTimestamp();
+        mMiningHash = Hash256.of(header.hash(nNonce));
     }
 
     //
@@ -108,8 +137,16 @@ public class Header implements Hashable {
      * Gets the previous block hash pointed to by this header.
      * @return The hash of the previous block pointed to by this header.
      */
-    public String getPreviousBlockHash() {
-        return sPrevBlockHash;
+    public Hash256 getPreviousBlockHash() {
+        return mPrevBlockHash;
+    }
+
+    /**
+     * Gets the Merkle root of the block's transactions.
+     * @return The Merkle root hash.
+     */
+    public Hash256 getMerkleRoot() {
+        return mMerkleRoot;
     }
 
     //
@@ -120,42 +157,99 @@ public class Header implements Hashable {
      * Computes the block header hash.
      * @return The computed hash of this block header.
      */
-    public String computeHash() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(getVersionNumber());
-        sb.append(getTimestamp());
-        sb.append(getBits());
-        sb.append(getNonce());
-        sb.append(getPreviousBlockHash());
-        return BCUtil.getInstance().doubleHash(sb.toString());
+    public Hash256 computeHash() {
+        ByteBuffer buffer = ByteBuffer.allocate((4 * 4) + Hash256.SIZE);
+        buffer.putInt(getVersionNumber());
+        buffer.putInt(getTimestamp());
+        buffer.putInt(getBits());
+        buffer.putInt(getNonce());
+        getPreviousBlockHash().write(buffer);
+        buffer.flip();
+        return BCUtil.getInstance().doubleHash256(buffer);
     }
 
     /**
      * Gets the hash of this block header.
      * @return The hash of this block header.
      */
-    public String getHash() {
-        if (sHash == null || sHash.length() == 0) {
-            sHash = computeHash();
+    public Hash256 getHash() {
+        if (mHash == null) {
+            mHash = computeHash();
         }
-        return sHash;
+        return mHash;
     }
     
-    public String getMiningHash() {
-        return sMiningHash;
+    /**
+     * Gets the proof-of-work hash of this header, the double SHA-256 
+     * hash of its binary layout (see BinaryHeader).
+     * @return The mining hash.
+     */
+    public Hash256 getMiningHash() {
+        return mMiningHash;
     }
     
     /**
-     * Returns the target value for mining.
+     * Determines whether the mining hash of this header meets the target 
+     * encoded by its difficulty bits.
+     * @return True if the header carries a valid proof-of-work, false otherwise.
+     */
+    public boolean hasValidProofOfWork() {
+        return getTarget().isMetBy(mMiningHash);
+    }
+
+    /**
+     * Gets the target encoded by the difficulty bits of this header.
+     * @return The proof-of-work target of this header.
+     */
+    public Target getTarget() {
+        return (getBits() == mTarget.getBits()) ? mTarget : Target.fromBits(getBits());
+    }
+
+    /**
+     * Gets the difficulty bits that new headers are mined against.
+     * @return The compact difficulty bits.
+     */
+    public static int difficultyBits() {
+        return nBits;
+    }
+
+    /**
+     * Checks the previous block hash given to a constructor.
+     */
+    private static Hash256 checkHash(Hash256 prevBlockHash) {
+        if (prevBlockHash == null) {
+            throw new IllegalArgumentException("Error: Cannot create block header without a previous block hash!");
+        }
+        return prevBlockHash;
+    }
+
+    /**
+     * Checks the Merkle root given to a constructor.
+     */
+    private static Hash256 checkRoot(Hash256 merkleRoot) {
+        if (merkleRoot == null) {
+            throw new IllegalArgumentException("Error: Cannot create block header without a Merkle root!");
+        }
+        return merkleRoot;
+    }
+
+    /**
+     * Computes the Merkle root of the transactions given to a constructor.
+     */
+    private static Hash256 merkleRoot(Collection<Transaction> txList) {
+        if (txList == null || txList.size() == 0) {
+            throw new IllegalArgumentException("Error: Cannot create block header without a list of transactions!");
+        }
+        return new MerkleTree<>(txList).computeHash();
+    }
+
+    /**
+     * Returns the target value for mining, decoded once from the 
+     * difficulty bits.
      * @return A target value for mining.
      */
-    public static BigInteger target() {
-        String bitsHex = Integer.toHexString(nBits);
-        int coefficient = Integer.parseInt(bitsHex.substring(2, bitsHex.length()), 16);
-        int exponent = Integer.parseInt(bitsHex.substring(0, 2), 16);
-        double right = Math.pow(2, 0x8*(exponent-0x3));
-        BigDecimal result = new BigDecimal(String.valueOf(coefficient*right));
-        return result.toBigInteger();
+    public static Target target() {
+        return mTarget;
     }
 
 }
@@ -0,0 +1,578 @@
+package jchain.bc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import jchain.util.Hash256;
+
+/**
+ * A set of unspent transaction outputs kept off the heap, in a memory
+ * mapped file.<br>
+ * utxo.dat holds a one page header (slot count, entry count, best block)
+ * followed by the fixed-size 40 byte slots of the table. The slots are
+ * read and written straight through read-write mappings of the file, so
+ * the set takes no heap beyond the mappings themselves, the hot part of the
+ * table lives in the page cache and the set can be far larger than the
+ * heap.<br>
+ * Every batch (a connected or disconnected block, a single add or remove)
+ * is crash-safe. While a batch runs its writes are collected as after
+ * images of the changed slots. On commit the after images and the new
+ * header are appended to journal.dat with a checksum and forced to disk,
+ * only then are they copied into the mapped table, whose changed chunks are
+ * forced in turn before the journal is emptied. When the store is opened a complete
+ * journal is replayed (copying after images is idempotent) and an
+ * incomplete one is discarded, so the table always holds the state after
+ * the last committed batch. A growing table is rehashed into a new file
+ * that replaces utxo.dat atomically.
+ */
+public class MappedUtxoStore extends UnspentOutputs implements Closeable {
+
+    //
+    // CONSTANTS
+    //
+
+    private static final String TABLE_FILE = "utxo.dat";
+    private static final String JOURNAL_FILE = "journal.dat";
+    private static final String RESIZE_FILE = "utxo.dat.resize";
+
+    // Identifies the files of the store
+    private static final int MAGIC = 0x5554584F;
+    private static final int VERSION = 1;
+    // The header takes one page so the slots are page aligned
+    private static final int HEADER_BYTES = 4096;
+    // The slots are mapped in chunks of 2^CHUNK_BITS slots, a mapping cannot exceed 2GB
+    private static final int CHUNK_BITS = 24;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_BITS;
+    // The size of a journal record: slot, then the five words
+    private static final int RECORD_BYTES = 4 + SLOT_BYTES;
+
+    //
+    // FIELDS
+    //
+
+    private final Path mDir;
+    private FileChannel mTable;
+    private final FileChannel mJournal;
+    private MappedByteBuffer mHeader;
+    private MappedByteBuffer[] mChunks;
+    private int nSlots;
+    // The batch number of the last commit
+    private long nSequence;
+    // The after images of the slots written by the running batch, null outside a batch
+    private Batch mBatch = null;
+    // Reused by every batch so connecting a block does not allocate a new map
+    private final Batch mBatchBuffer = new Batch();
+    // The state to go back to if the running batch is abandoned
+    private int nBatchSize;
+    private Hash256 mBatchBestBlock;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Opens the store in the indicated directory, creating an empty one if
+     * there is none. A committed batch that was not fully applied to the
+     * table is replayed from the journal.
+     * @param dir The directory of the store.
+     * @throws IOException If the store cannot be created, read or recovered.
+     */
+    public MappedUtxoStore(Path dir) throws IOException {
+        if (dir == null) {
+            throw new NullPointerException();
+        }
+        mDir = dir;
+        Files.createDirectories(dir);
+        // a resize that did not finish never replaced the table
+        Files.deleteIfExists(dir.resolve(RESIZE_FILE));
+        Path table = dir.resolve(TABLE_FILE);
+        if (!Files.exists(table)) {
+            create(dir.resolve(RESIZE_FILE), MIN_SLOTS);
+            Files.move(dir.resolve(RESIZE_FILE), table, StandardCopyOption.ATOMIC_MOVE);
+        }
+        mJournal = FileChannel.open(dir.resolve(JOURNAL_FILE), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(table);
+        recover();
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the size of the table file in bytes.
+     * @return The number of bytes mapped for the table.
+     */
+    public long getTableBytes() {
+        return HEADER_BYTES + (long) nSlots * SLOT_BYTES;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Replaces the table by an empty one.
+     */
+    @Override
+    protected void reset() {
+        try {
+            Path resized = mDir.resolve(RESIZE_FILE);
+            create(resized, MIN_SLOTS);
+            replace(resized);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Closes the table and the journal, every committed batch is already on disk.
+     * @throws IOException If a file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        mTable.close();
+        mJournal.close();
+    }
+
+    @Override
+    protected int slots() {
+        return nSlots;
+    }
+
+    @Override
+    protected long word(int slot, int word) {
+        if (mBatch != null) {
+            int entry = mBatch.indexOf(slot);
+            if (entry >= 0) {
+                return mBatch.word(entry, word);
+            }
+        }
+        return mChunks[slot >>> CHUNK_BITS].getLong(offset(slot) + word * Long.BYTES);
+    }
+
+    /**
+     * Reads the mapped table directly, the after images of the running
+     * batch are not committed yet.
+     */
+    @Override
+    protected long committedWord(int slot, int word) {
+        return mChunks[slot >>> CHUNK_BITS].getLong(offset(slot) + word * Long.BYTES);
+    }
+
+    @Override
+    protected int committedSize() {
+        return mHeader.getInt(12);
+    }
+
+    @Override
+    protected void write(int slot, long t0, long t1, long t2, long t3, long meta) {
+        if (mBatch == null) {
+            // only resize() writes outside of a batch, into a table nobody reads yet
+            writeSlot(slot, t0, t1, t2, t3, meta);
+            return;
+        }
+        mBatch.put(slot, t0, t1, t2, t3, meta);
+    }
+
+    @Override
+    protected void resize(int slots) {
+        try {
+            Path resized = mDir.resolve(RESIZE_FILE);
+            create(resized, slots);
+            MappedUtxoStore.Table old = new MappedUtxoStore.Table(mChunks, nSlots);
+            int size = nSize;
+            Hash256 bestBlock = mBestBlock;
+            // rehash into the new file through the regular insert path
+            FileChannel channel = mTable;
+            changing();
+            map(resized);
+            nSize = 0;
+            for (int slot = 0; slot < old.nSlots; slot++) {
+                long meta = old.word(slot, 4);
+                if (meta != 0) {
+                    put(old.word(slot, 0), old.word(slot, 1), old.word(slot, 2), old.word(slot, 3), meta);
+                }
+            }
+            channel.close();
+            if (nSize != size) {
+                throw new IllegalStateException("Error: UTXO store lost entries while resizing!");
+            }
+            mBestBlock = bestBlock;
+            writeHeader(nSlots, nSize, nSequence, mBestBlock);
+            changed();
+            // every chunk of the new table was written
+            for (MappedByteBuffer chunk : mChunks) {
+                chunk.force();
+            }
+            mHeader.force();
+            replace(resized);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    protected void begin() {
+        mBatch = mBatchBuffer;
+        mBatch.clear();
+        nBatchSize = nSize;
+        mBatchBestBlock = mBestBlock;
+    }
+
+    @Override
+    protected void commit() {
+        Batch batch = mBatch;
+        mBatch = null;
+        try {
+            long sequence = nSequence + 1;
+            // 1. the batch is durable once its journal record is on disk
+            journal(batch, sequence);
+            // 2. apply it to the table and make the table durable
+            apply(batch, sequence);
+            // 3. the journal is no longer needed
+            mJournal.truncate(0);
+            mJournal.force(true);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    protected void abort() {
+        mBatch = null;
+        nSize = nBatchSize;
+        mBestBlock = mBatchBestBlock;
+    }
+
+    /**
+     * Creates an empty table file with the indicated number of slots.
+     */
+    private static void create(Path file, int slots) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(0).putLong(0L);
+            Hash256.ZERO.write(header);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            // the slots start out zero, i.e. empty
+            channel.write(ByteBuffer.allocate(1), HEADER_BYTES + (long) slots * SLOT_BYTES - 1);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Maps the header and the slots of a table file and reads the header.
+     */
+    private void map(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException("UTXO store " + file + " is not a version " + VERSION + " UTXO store!");
+        }
+        int slots = header.getInt(8);
+        if (slots < MIN_SLOTS || Integer.bitCount(slots) != 1
+                || channel.size() < HEADER_BYTES + (long) slots * SLOT_BYTES) {
+            channel.close();
+            throw new IOException("UTXO store " + file + " is damaged!");
+        }
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(slots + CHUNK_SLOTS - 1) / CHUNK_SLOTS];
+        for (int i = 0; i < chunks.length; i++) {
+            long count = Math.min(CHUNK_SLOTS, slots - (long) i * CHUNK_SLOTS);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                HEADER_BYTES + (long) i * CHUNK_SLOTS * SLOT_BYTES, count * SLOT_BYTES);
+        }
+        mTable = channel;
+        mHeader = header;
+        mChunks = chunks;
+        nSlots = slots;
+        nSize = header.getInt(12);
+        nSequence = header.getLong(16);
+        Hash256 bestBlock = Hash256.read(header.duplicate().position(24));
+        mBestBlock = bestBlock.equals(Hash256.ZERO) ? null : bestBlock;
+    }
+
+    /**
+     * Replaces the table file with a fully written and forced new one.
+     */
+    private void replace(Path file) throws IOException {
+        Path table = mDir.resolve(TABLE_FILE);
+        Files.move(file, table, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        mTable.close();
+        map(table);
+    }
+
+    /**
+     * Writes a batch to the journal and forces it to disk. The record is
+     * the header fields, the after images and a checksum over all of it.
+     */
+    private void journal(Batch batch, long sequence) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(4 + 8 + 4 + 4 + Hash256.SIZE + batch.size() * RECORD_BYTES + 8);
+        record.putInt(MAGIC).putLong(sequence).putInt(nSize).putInt(batch.size());
+        (mBestBlock == null ? Hash256.ZERO : mBestBlock).write(record);
+        for (int entry = 0; entry < batch.capacity(); entry++) {
+            int slot = batch.slotAt(entry);
+            if (slot >= 0) {
+                record.putInt(slot);
+                for (int word = 0; word < STRIDE; word++) {
+                    record.putLong(batch.word(entry, word));
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putLong(crc.getValue());
+        record.flip();
+        mJournal.truncate(0);
+        while (record.hasRemaining()) {
+            mJournal.write(record, record.position());
+        }
+        mJournal.force(true);
+    }
+
+    /**
+     * Copies the after images of a committed batch into the table and the
+     * new header fields into the header, then forces the header and the
+     * chunks the batch wrote to.
+     */
+    private void apply(Batch batch, long sequence) {
+        boolean[] dirty = new boolean[mChunks.length];
+        // readers only wait while the table is written, not while it is forced
+        changing();
+        for (int entry = 0; entry < batch.capacity(); entry++) {
+            int slot = batch.slotAt(entry);
+            if (slot >= 0) {
+                writeSlot(slot, batch.word(entry, 0), batch.word(entry, 1), batch.word(entry, 2),
+                    batch.word(entry, 3), batch.word(entry, 4));
+                dirty[slot >>> CHUNK_BITS] = true;
+            }
+        }
+        nSequence = sequence;
+        writeHeader(nSlots, nSize, sequence, mBestBlock);
+        changed();
+        for (int chunk = 0; chunk < mChunks.length; chunk++) {
+            if (dirty[chunk]) {
+                mChunks[chunk].force();
+            }
+        }
+        mHeader.force();
+    }
+
+    /**
+     * Replays the journal if it holds a complete batch that the table does
+     * not have yet, and empties it.
+     */
+    private void recover() throws IOException {
+        long length = mJournal.size();
+        if (length > 0) {
+            ByteBuffer record = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE));
+            while (record.hasRemaining() && mJournal.read(record, record.position()) > 0) {
+            }
+            record.flip();
+            Batch batch = readJournal(record);
+            if (batch != null) {
+                long sequence = record.getLong(4);
+                if (sequence > nSequence) {
+                    nSize = record.getInt(12);
+                    Hash256 bestBlock = Hash256.read(record.duplicate().position(20));
+                    mBestBlock = bestBlock.equals(Hash256.ZERO) ? null : bestBlock;
+                    apply(batch, sequence);
+                }
+            }
+        }
+        mJournal.truncate(0);
+        mJournal.force(true);
+    }
+
+    /**
+     * Reads the after images of a journal record, null if the record is
+     * incomplete or damaged, i.e. the batch never committed.
+     */
+    private Batch readJournal(ByteBuffer record) {
+        int fixed = 4 + 8 + 4 + 4 + Hash256.SIZE;
+        if (record.remaining() < fixed + 8 || record.getInt(0) != MAGIC) {
+            return null;
+        }
+        int count = record.getInt(16);
+        if (count < 0 || (long) fixed + (long) count * RECORD_BYTES + 8 != record.remaining()) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.remaining() - 8);
+        if (crc.getValue() != record.getLong(record.remaining() - 8)) {
+            return null;
+        }
+        Batch batch = new Batch();
+        ByteBuffer images = record.duplicate().position(fixed);
+        for (int i = 0; i < count; i++) {
+            int slot = images.getInt();
+            if (slot < 0 || slot >= nSlots) {
+                return null;
+            }
+            batch.put(slot, images.getLong(), images.getLong(), images.getLong(), images.getLong(), images.getLong());
+        }
+        return batch;
+    }
+
+    private void writeHeader(int slots, int size, long sequence, Hash256 bestBlock) {
+        mHeader.putInt(8, slots);
+        mHeader.putInt(12, size);
+        mHeader.putLong(16, sequence);
+        (bestBlock == null ? Hash256.ZERO : bestBlock).write(mHeader.duplicate().position(24));
+    }
+
+    private void writeSlot(int slot, long t0, long t1, long t2, long t3, long meta) {
+        MappedByteBuffer chunk = mChunks[slot >>> CHUNK_BITS];
+        int offset = offset(slot);
+        chunk.putLong(offset, t0);
+        chunk.putLong(offset + 8, t1);
+        chunk.putLong(offset + 16, t2);
+        chunk.putLong(offset + 24, t3);
+        chunk.putLong(offset + 32, meta);
+    }
+
+    private static int offset(int slot) {
+        return (slot & (CHUNK_SLOTS - 1)) * SLOT_BYTES;
+    }
+
+    /**
+     * The mapped slots of a table that is being replaced.
+     */
+    private static class Table {
+
+        private final MappedByteBuffer[] mChunks;
+        private final int nSlots;
+
+        private Table(MappedByteBuffer[] chunks, int slots) {
+            mChunks = chunks;
+            nSlots = slots;
+        }
+
+        private long word(int slot, int word) {
+            return mChunks[slot >>> CHUNK_BITS].getLong(offset(slot) + word * Long.BYTES);
+        }
+
+    } // end Table
+
+    /**
+     * The after images of the slots a batch wrote: an open addressing map
+     * (linear probing) from slot to its five words, so looking a slot up
+     * while a block is connected neither boxes the slot nor allocates.
+     */
+    private static final class Batch {
+
+        private static final int MIN_ENTRIES = 64;
+
+        // slot + 1 of every entry, 0 marks a free entry
+        private int[] mSlots = new int[MIN_ENTRIES];
+        // The words of every entry, STRIDE longs each
+        private long[] mImages = new long[MIN_ENTRIES * STRIDE];
+        private int nCount = 0;
+
+        private int size() {
+            return nCount;
+        }
+
+        private int capacity() {
+            return mSlots.length;
+        }
+
+        /**
+         * Gets the slot of an entry, -1 if the entry is free.
+         */
+        private int slotAt(int entry) {
+            return mSlots[entry] - 1;
+        }
+
+        private long word(int entry, int word) {
+            return mImages[entry * STRIDE + word];
+        }
+
+        /**
+         * Finds the entry of a slot, -1 if the batch did not write it.
+         */
+        private int indexOf(int slot) {
+            int mask = mSlots.length - 1;
+            for (int entry = home(slot, mask); ; entry = (entry + 1) & mask) {
+                int key = mSlots[entry];
+                if (key == 0) {
+                    return -1;
+                }
+                if (key == slot + 1) {
+                    return entry;
+                }
+            }
+        }
+
+        /**
+         * Records the after image of a slot, replacing an earlier one.
+         */
+        private void put(int slot, long t0, long t1, long t2, long t3, long meta) {
+            if ((nCount + 1) * 4 > mSlots.length * 3) {
+                grow();
+            }
+            int mask = mSlots.length - 1;
+            int entry = home(slot, mask);
+            while (mSlots[entry] != 0 && mSlots[entry] != slot + 1) {
+                entry = (entry + 1) & mask;
+            }
+            if (mSlots[entry] == 0) {
+                mSlots[entry] = slot + 1;
+                nCount++;
+            }
+            int offset = entry * STRIDE;
+            mImages[offset] = t0;
+            mImages[offset + 1] = t1;
+            mImages[offset + 2] = t2;
+            mImages[offset + 3] = t3;
+            mImages[offset + 4] = meta;
+        }
+
+        /**
+         * Forgets every entry, keeping the arrays for the next batch.
+         */
+        private void clear() {
+            if (nCount > 0) {
+                Arrays.fill(mSlots, 0);
+                nCount = 0;
+            }
+        }
+
+        private void grow() {
+            int[] slots = mSlots;
+            long[] images = mImages;
+            mSlots = new int[slots.length * 2];
+            mImages = new long[mSlots.length * STRIDE];
+            nCount = 0;
+            for (int entry = 0; entry < slots.length; entry++) {
+                if (slots[entry] != 0) {
+                    int offset = entry * STRIDE;
+                    put(slots[entry] - 1, images[offset], images[offset + 1], images[offset + 2],
+                        images[offset + 3], images[offset + 4]);
+                }
+            }
+        }
+
+        private static int home(int slot, int mask) {
+            int h = slot * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+    } // end Batch
+
+} // end MappedUtxoStore
@@ -0,0 +1,148 @@
+package jchain.bc;
+
+import jchain.util.Hash256;
+
+/**
+ * Identifies an output of a transaction by the transaction hash and the
+ * index of the output.<br>
+ * A transaction input spends an output when it is written as
+ * "{txid}:{index}:{amount}", txid being the 64 character hexstring of the
+ * transaction hash and amount the value of the spent output in minis, or
+ * as "{txid}:{index}:{amount}:{script}" to carry an unlocking script for
+ * the output's script (see Script). Inputs in any other format do not
+ * spend an output. OutPoints are immutable.
+ */
+public final class OutPoint {
+
+    //
+    // FIELDS
+    //
+
+    private final Hash256 mTxHash;
+    private final int nIndex;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of an OutPoint.
+     * @param txHash The hash of the transaction holding the output.
+     * @param index The index of the output in the transaction.
+     * @exception IllegalArgumentException If txHash is null or index is negative.
+     */
+    public OutPoint(Hash256 txHash, int index) {
+        if (txHash == null) {
+            throw new IllegalArgumentException("Error: Cannot create outpoint without a transaction hash!");
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Error: Output index must be >= 0.");
+        }
+        mTxHash = txHash;
+        nIndex = index;
+    }
+
+    /**
+     * Parses the outpoint spent by a transaction input.
+     * @param input A transaction input.
+     * @return The outpoint the input spends, or null if the input does not
+     * spend an output.
+     */
+    public static OutPoint parse(String input) {
+        if (input == null || input.length() < (Hash256.SIZE * 2) + 4
+                || input.charAt(Hash256.SIZE * 2) != ':') {
+            return null;
+        }
+        int amount = input.indexOf(':', (Hash256.SIZE * 2) + 1);
+        if (amount < 0) {
+            return null;
+        }
+        for (int i = 0; i < Hash256.SIZE * 2; i++) {
+            if (Character.digit(input.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        try {
+            int index = Integer.parseInt(input.substring((Hash256.SIZE * 2) + 1, amount));
+            if (index < 0) {
+                return null;
+            }
+            return new OutPoint(Hash256.fromHex(input.substring(0, Hash256.SIZE * 2)), index);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the hash of the transaction holding the output.
+     * @return A transaction hash.
+     */
+    public Hash256 getTxHash() {
+        return mTxHash;
+    }
+
+    /**
+     * Gets the index of the output in its transaction.
+     * @return The output index.
+     */
+    public int getIndex() {
+        return nIndex;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Returns the transaction input that spends this outpoint.
+     * @param minis The value of the spent output in minis.
+     * @return An input in the "{txid}:{index}:{amount}" format.
+     */
+    public String toInput(int minis) {
+        return this + ":" + minis;
+    }
+
+    /**
+     * Returns the transaction input that spends this outpoint with an
+     * unlocking script.
+     * @param minis The value of the spent output in minis.
+     * @param script The source of the unlocking script.
+     * @return An input in the "{txid}:{index}:{amount}:{script}" format.
+     */
+    public String toInput(int minis, String script) {
+        return toInput(minis) + ":" + script;
+    }
+
+    /**
+     * Determines if an object is the same outpoint as this one.
+     * @param obj An object to determine equality against.
+     * @return True if obj is an OutPoint with the same hash and index, false otherwise.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof OutPoint)) {
+            return false;
+        }
+        OutPoint outPoint = (OutPoint) obj;
+        return nIndex == outPoint.nIndex && mTxHash.equals(outPoint.mTxHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return mTxHash.hashCode() * 31 + nIndex;
+    }
+
+    /**
+     * Returns the outpoint in the "{txid}:{index}" format.
+     * @return A string representing the outpoint.
+     */
+    @Override
+    public String toString() {
+        return mTxHash + ":" + nIndex;
+    }
+
+}
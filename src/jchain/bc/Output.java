@@ -1,6 +1,10 @@
 package jchain.bc;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 import jchain.util.BCUtil;
+import jchain.util.Hash256;
 import jchain.util.Hashable;
 import jchain.util.IllegalOperationException;
 
@@ -20,7 +24,9 @@ public class Output implements Hashable {
     // The script associated with the Output
     private String sScript;
     // The SHA-256 double hash of the Output
-    private String sHash;
+    private Hash256 mHash;
+    // The compiled script, compiled the first time it is needed
+    private Script mCompiledScript = null;
 
     //
     // CONSTRUCTORS
@@ -42,7 +48,18 @@ public class Output implements Hashable {
         nValue = minis;
         nIndex = index;
         sScript = script;
-        sHash = computeHash();
+        mHash = computeHash();
+    }
+
+    /**
+     * Returns an instance of an Output with a known hash, used when 
+     * reading Outputs back from storage.
+     */
+    private Output(int minis, int index, String script, Hash256 hash) {
+        nValue = minis;
+        nIndex = index;
+        sScript = script;
+        mHash = hash;
     }
 
     //
@@ -86,6 +103,21 @@ public class Output implements Hashable {
         return sScript;
     }
 
+    /**
+     * Returns the compiled form of the script, compiled (or taken from the
+     * script cache) the first time it is requested.
+     * @return The compiled script.
+     * @exception IllegalArgumentException If the script does not compile.
+     */
+    public Script getCompiledScript() {
+        Script script = mCompiledScript;
+        if (script == null) {
+            script = Script.compile(sScript);
+            mCompiledScript = script;
+        }
+        return script;
+    }
+
     //
     // METHODS
     //
@@ -104,28 +136,62 @@ public class Output implements Hashable {
      * Computes a SHA-256 double hash for this Output.
      * @return A computed SHA-256 double hash for this Output.
      */
-    public String computeHash() {
-        StringBuilder sb = new StringBuilder();
+    public Hash256 computeHash() {
+        byte[] script = (sScript == null) ? new byte[0] : sScript.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate((4 * 4) + script.length);
         // Include timestamp and random number since it is very possible multiple outputs could have the same value, index, and script - don't want collisions
-        sb.append(BCUtil.now());
-        sb.append(BCUtil.getInstance().randRange(0, Integer.MAX_VALUE));
-        sb.append(getValueAsMinis());
-        sb.append(getIndex());
-        sb.append(getScript());
-        return BCUtil.getInstance().doubleHash(sb.toString());
+        buffer.putInt(BCUtil.now());
+        buffer.putInt(BCUtil.getInstance().randRange(0, Integer.MAX_VALUE));
+        buffer.putInt(getValueAsMinis());
+        buffer.putInt(getIndex());
+        buffer.put(script);
+        buffer.flip();
+        return BCUtil.getInstance().doubleHash256(buffer);
     }
 
     /**
      * Overriden method provided by the Hashable interface.
      * Returns the SHA-256 double hash for the Output.
-     * @return A SHA-256 double hash as a hexstring.
+     * @return A SHA-256 double hash.
      */
-    public String getHash() {
-        if (sHash == null || sHash.length() == 0) {
-            sHash = computeHash();
-        } return sHash;
+    public Hash256 getHash() {
+        if (mHash == null) {
+            mHash = computeHash();
+        } return mHash;
     }
     
+    /**
+     * Gets the number of bytes serialize() writes for this Output.
+     * @return The serialized size of the Output in bytes.
+     */
+    public int serializedSize() {
+        return (4 * 2) + BCUtil.stringSize(sScript) + Hash256.SIZE;
+    }
+
+    /**
+     * Writes the Output to the buffer. The hash is written as well since
+     * it cannot be recomputed (it includes a timestamp and a random number).
+     * @param buffer The buffer to write to.
+     */
+    public void serialize(ByteBuffer buffer) {
+        buffer.putInt(nValue);
+        buffer.putInt(nIndex);
+        BCUtil.putString(buffer, sScript);
+        getHash().write(buffer);
+    }
+
+    /**
+     * Reads an Output written by serialize() from the buffer.
+     * @param buffer The buffer to read from.
+     * @return The Output read.
+     */
+    public static Output deserialize(ByteBuffer buffer) {
+        int minis = buffer.getInt();
+        int index = buffer.getInt();
+        String script = BCUtil.getString(buffer);
+        return new Output(minis, index, script, Hash256.read(buffer));
+    }
+
     /**
      * Returns a String representation of the Output.
      */
@@ -0,0 +1,291 @@
+package jchain.bc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jchain.util.BCUtil;
+import jchain.util.Hash256;
+
+/**
+ * A script compiled into bytecode for the ScriptVM.<br>
+ * A script is a sequence of tokens separated by whitespace. A token that
+ * names an opcode (see below) is that operation, a decimal integer pushes a
+ * number, a token starting with 0x pushes the bytes of its hex digits and
+ * any other token pushes its own UTF-8 bytes. Free-text scripts such as
+ * "coinbase tx" are therefore valid scripts that push their words.<br>
+ * Opcodes: TRUE, FALSE, NOP, DUP, DROP, SWAP, OVER, SIZE, NOT, ADD, SUB,
+ * LESSTHAN, GREATERTHAN, NUMEQUAL, EQUAL, EQUALVERIFY, VERIFY, HASH256 and
+ * RETURN.<br>
+ * Compiling is the expensive part, so scripts are compiled once and kept
+ * in a cache. A script is identified by the hash of its source, but the
+ * cache is looked up by the source text itself, so a hit costs a string
+ * comparison instead of two SHA-256 rounds. Outputs built from the same
+ * template (every "coinbase tx" output) share one Script. Scripts are
+ * immutable.
+ */
+public final class Script {
+
+    //
+    // CONSTANTS
+    //
+
+    // The most instructions a script may compile to
+    public static final int MAX_INSTRUCTIONS = 256;
+    // The most bytes a single push may carry
+    public static final int MAX_PUSH_BYTES = 520;
+    // The most scripts kept in the cache, later scripts are compiled but not cached
+    private static final int MAX_CACHED = 1 << 16;
+
+    // Instructions with an operand, the operand is in the argument array
+    static final byte OP_NUMBER = 0;
+    static final byte OP_DATA = 1;
+    // Instructions without an operand
+    static final byte OP_TRUE = 2;
+    static final byte OP_FALSE = 3;
+    static final byte OP_NOP = 4;
+    static final byte OP_DUP = 5;
+    static final byte OP_DROP = 6;
+    static final byte OP_SWAP = 7;
+    static final byte OP_OVER = 8;
+    static final byte OP_SIZE = 9;
+    static final byte OP_NOT = 10;
+    static final byte OP_ADD = 11;
+    static final byte OP_SUB = 12;
+    static final byte OP_LESSTHAN = 13;
+    static final byte OP_GREATERTHAN = 14;
+    static final byte OP_NUMEQUAL = 15;
+    static final byte OP_EQUAL = 16;
+    static final byte OP_EQUALVERIFY = 17;
+    static final byte OP_VERIFY = 18;
+    static final byte OP_HASH256 = 19;
+    static final byte OP_RETURN = 20;
+
+    private static final String[] NAMES = {
+        null, null, "TRUE", "FALSE", "NOP", "DUP", "DROP", "SWAP", "OVER", "SIZE", "NOT", "ADD", "SUB",
+        "LESSTHAN", "GREATERTHAN", "NUMEQUAL", "EQUAL", "EQUALVERIFY", "VERIFY", "HASH256", "RETURN"
+    };
+    private static final HashMap<String, Byte> OPCODES = new HashMap<>();
+    static {
+        for (int op = 0; op < NAMES.length; op++) {
+            if (NAMES[op] != null) {
+                OPCODES.put(NAMES[op], (byte) op);
+            }
+        }
+    }
+
+    // The script of a null or blank source
+    public static final Script EMPTY = new Script(Hash256.ZERO, new byte[0], new int[0], new byte[0][]);
+
+    // Compiled scripts by source
+    private static final ConcurrentHashMap<String, Script> mCache = new ConcurrentHashMap<>();
+    private static final LongAdder mHits = new LongAdder();
+    private static final LongAdder mMisses = new LongAdder();
+
+    //
+    // FIELDS
+    //
+
+    // The hash of the source
+    private final Hash256 mHash;
+    // One opcode per instruction
+    private final byte[] mCode;
+    // The operand of each instruction: the number for OP_NUMBER, the index into mData for OP_DATA
+    private final int[] mArgs;
+    // The bytes pushed by the OP_DATA instructions
+    private final byte[][] mData;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    private Script(Hash256 hash, byte[] code, int[] args, byte[][] data) {
+        mHash = hash;
+        mCode = code;
+        mArgs = args;
+        mData = data;
+    }
+
+    /**
+     * Gets the compiled form of a script, compiling it only if it is not
+     * in the cache yet.
+     * @param source The source of the script, may be null.
+     * @return The compiled script, EMPTY if source is null or blank.
+     * @exception IllegalArgumentException If the script has too many
+     *  instructions, a push that is too long or a malformed hex push.
+     */
+    public static Script compile(String source) {
+        if (source == null || source.isBlank()) {
+            return EMPTY;
+        }
+        Script script = mCache.get(source);
+        if (script != null) {
+            mHits.increment();
+            return script;
+        }
+        mMisses.increment();
+        script = parse(BCUtil.getInstance().doubleHash256(source.getBytes(StandardCharsets.UTF_8)), source);
+        if (mCache.size() < MAX_CACHED) {
+            Script cached = mCache.putIfAbsent(source, script);
+            if (cached != null) {
+                script = cached;
+            }
+        }
+        return script;
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the hash of the script's source, which identifies the script.
+     * @return A SHA-256 double hash, ZERO for the empty script.
+     */
+    public Hash256 getHash() {
+        return mHash;
+    }
+
+    /**
+     * Gets the number of instructions in the script.
+     * @return The number of instructions.
+     */
+    public int length() {
+        return mCode.length;
+    }
+
+    /**
+     * Determines whether the script has no instructions.
+     * @return True if the script is empty, false otherwise.
+     */
+    public boolean isEmpty() {
+        return mCode.length == 0;
+    }
+
+    /**
+     * Gets the number of compile() calls answered from the cache.
+     * @return The number of cache hits.
+     */
+    public static long getCacheHitCount() {
+        return mHits.sum();
+    }
+
+    /**
+     * Gets the number of compile() calls that had to compile their script.
+     * @return The number of cache misses.
+     */
+    public static long getCacheMissCount() {
+        return mMisses.sum();
+    }
+
+    /**
+     * Gets the number of compiled scripts in the cache.
+     * @return The cache size.
+     */
+    public static int getCacheSize() {
+        return mCache.size();
+    }
+
+    //
+    // METHODS
+    //
+
+    byte opcode(int pc) {
+        return mCode[pc];
+    }
+
+    int argument(int pc) {
+        return mArgs[pc];
+    }
+
+    byte[] data(int index) {
+        return mData[index];
+    }
+
+    /**
+     * Returns the script in source form, numbers and opcodes as written,
+     * data pushes in hex.
+     * @return The disassembled script.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int pc = 0; pc < mCode.length; pc++) {
+            if (pc > 0) {
+                sb.append(' ');
+            }
+            if (mCode[pc] == OP_NUMBER) {
+                sb.append(mArgs[pc]);
+            } else if (mCode[pc] == OP_DATA) {
+                sb.append("0x").append(BCUtil.getInstance().bytesToHex(mData[mArgs[pc]]));
+            } else {
+                sb.append(NAMES[mCode[pc]]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compiles a source into bytecode.
+     */
+    private static Script parse(Hash256 hash, String source) {
+        String[] tokens = source.trim().split("\\s+");
+        if (tokens.length > MAX_INSTRUCTIONS) {
+            throw new IllegalArgumentException("Error: Script has more than " + MAX_INSTRUCTIONS + " instructions!");
+        }
+        byte[] code = new byte[tokens.length];
+        int[] args = new int[tokens.length];
+        ArrayList<byte[]> data = new ArrayList<>();
+        for (int pc = 0; pc < tokens.length; pc++) {
+            String token = tokens[pc];
+            Byte op = OPCODES.get(token);
+            if (op != null) {
+                code[pc] = op;
+                continue;
+            }
+            Integer number = number(token);
+            if (number != null) {
+                code[pc] = OP_NUMBER;
+                args[pc] = number;
+                continue;
+            }
+            byte[] bytes;
+            if (token.startsWith("0x")) {
+                try {
+                    bytes = BCUtil.hexToBytes(token.substring(2));
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException("Error: Script push " + token + " is not a whole number of hex bytes!");
+                }
+            } else {
+                bytes = token.getBytes(StandardCharsets.UTF_8);
+            }
+            if (bytes.length > MAX_PUSH_BYTES) {
+                throw new IllegalArgumentException("Error: Script push is longer than " + MAX_PUSH_BYTES + " bytes!");
+            }
+            code[pc] = OP_DATA;
+            args[pc] = data.size();
+            data.add(bytes);
+        }
+        return new Script(hash, code, args, data.toArray(new byte[data.size()][]));
+    }
+
+    /**
+     * Reads a decimal integer token, null if the token is not one.
+     */
+    private static Integer number(String token) {
+        int start = (token.charAt(0) == '-') ? 1 : 0;
+        if (start == token.length() || token.length() - start > 10) {
+            return null;
+        }
+        for (int i = start; i < token.length(); i++) {
+            if (token.charAt(i) < '0' || token.charAt(i) > '9') {
+                return null;
+            }
+        }
+        long value = Long.parseLong(token);
+        return (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) ? null : (int) value;
+    }
+
+} // end Script
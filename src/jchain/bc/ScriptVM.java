@@ -0,0 +1,292 @@
+package jchain.bc;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A stack machine that runs compiled Scripts.<br>
+ * To spend an output, the unlocking script of the input runs first and
+ * the locking script of the output runs on the stack it leaves behind. The
+ * spend is allowed if neither script fails and the top of the stack is
+ * true afterwards: a number other than 0 or data with a byte other than 0.
+ * An empty locking script does not lock anything.<br>
+ * Stack items are numbers or byte ranges. Data pushes refer to the bytes of
+ * the compiled script and hashes are written into a scratch area sized for
+ * the largest possible pair of scripts, so running a script allocates
+ * nothing. The interpreter steps through the bytecode one instruction at a
+ * time. A ScriptVM is not thread-safe, each thread needs its own.
+ */
+public final class ScriptVM {
+
+    //
+    // CONSTANTS
+    //
+
+    // Every instruction pushes at most one item, so two scripts never need
+    //  more, SWAP borrows the slot above the top
+    private static final int MAX_STACK = Script.MAX_INSTRUCTIONS * 2 + 1;
+    private static final int HASH_BYTES = 32;
+
+    //
+    // FIELDS
+    //
+
+    // The bytes of the data items, null for numbers
+    private final byte[][] mBytes = new byte[MAX_STACK][];
+    // The offset of the data items in their bytes, the value of numbers
+    private final long[] mValues = new long[MAX_STACK];
+    // The length of the data items
+    private final int[] nLengths = new int[MAX_STACK];
+    private int nDepth = 0;
+    // Holds the results of HASH256, one hash per instruction at most
+    private final byte[] mScratch = new byte[MAX_STACK * HASH_BYTES];
+    private int nScratchUsed = 0;
+    private final MessageDigest mDigest;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a ScriptVM.
+     */
+    public ScriptVM() {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Error: SHA-256 is not available!", ex);
+        }
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Determines whether an unlocking script may spend an output locked by
+     * a locking script.
+     * @param unlock The unlocking script of the input.
+     * @param lock The locking script of the output.
+     * @return True if the spend is allowed, false otherwise.
+     */
+    public boolean verify(Script unlock, Script lock) {
+        if (unlock == null || lock == null) {
+            throw new NullPointerException();
+        }
+        if (lock.isEmpty()) {
+            return true;
+        }
+        nDepth = 0;
+        nScratchUsed = 0;
+        return run(unlock) && run(lock) && nDepth > 0 && isTrue(nDepth - 1);
+    }
+
+    /**
+     * Runs one script on the current stack.
+     * @return False if the script failed.
+     */
+    private boolean run(Script script) {
+        for (int pc = 0; pc < script.length(); pc++) {
+            if (!step(script, pc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Executes the instruction at pc.
+     * @return False if the instruction failed the script.
+     */
+    private boolean step(Script script, int pc) {
+        int top = nDepth - 1;
+        switch (script.opcode(pc)) {
+            case Script.OP_NUMBER:
+                pushNumber(script.argument(pc));
+                return true;
+            case Script.OP_DATA:
+                byte[] data = script.data(script.argument(pc));
+                pushBytes(data, 0, data.length);
+                return true;
+            case Script.OP_TRUE:
+                pushNumber(1);
+                return true;
+            case Script.OP_FALSE:
+                pushNumber(0);
+                return true;
+            case Script.OP_NOP:
+                return true;
+            case Script.OP_DUP:
+                if (nDepth < 1) {
+                    return false;
+                }
+                copy(top, nDepth++);
+                return true;
+            case Script.OP_DROP:
+                if (nDepth < 1) {
+                    return false;
+                }
+                nDepth--;
+                return true;
+            case Script.OP_SWAP:
+                if (nDepth < 2) {
+                    return false;
+                }
+                // the free slot above the top serves as the temporary
+                copy(top, nDepth);
+                copy(top - 1, top);
+                copy(nDepth, top - 1);
+                return true;
+            case Script.OP_OVER:
+                if (nDepth < 2) {
+                    return false;
+                }
+                copy(top - 1, nDepth++);
+                return true;
+            case Script.OP_SIZE:
+                if (nDepth < 1 || mBytes[top] == null) {
+                    return false;
+                }
+                pushNumber(nLengths[top]);
+                return true;
+            case Script.OP_NOT:
+                if (nDepth < 1 || mBytes[top] != null) {
+                    return false;
+                }
+                mValues[top] = (mValues[top] == 0) ? 1 : 0;
+                return true;
+            case Script.OP_ADD:
+            case Script.OP_SUB:
+            case Script.OP_LESSTHAN:
+            case Script.OP_GREATERTHAN:
+            case Script.OP_NUMEQUAL:
+                if (nDepth < 2 || mBytes[top] != null || mBytes[top - 1] != null) {
+                    return false;
+                }
+                return arithmetic(script.opcode(pc), mValues[top - 1], mValues[top]);
+            case Script.OP_EQUAL:
+            case Script.OP_EQUALVERIFY:
+                if (nDepth < 2) {
+                    return false;
+                }
+                boolean equal = equal(top - 1, top);
+                nDepth -= 2;
+                if (script.opcode(pc) == Script.OP_EQUALVERIFY) {
+                    return equal;
+                }
+                pushNumber(equal ? 1 : 0);
+                return true;
+            case Script.OP_VERIFY:
+                if (nDepth < 1 || !isTrue(top)) {
+                    return false;
+                }
+                nDepth--;
+                return true;
+            case Script.OP_HASH256:
+                if (nDepth < 1 || mBytes[top] == null) {
+                    return false;
+                }
+                hash256(top);
+                return true;
+            default:
+                // RETURN and anything unknown
+                return false;
+        }
+    }
+
+    /**
+     * Replaces the top two numbers with the result of an arithmetic or
+     * comparison instruction.
+     */
+    private boolean arithmetic(byte opcode, long a, long b) {
+        long result;
+        switch (opcode) {
+            case Script.OP_ADD:
+                result = a + b;
+                break;
+            case Script.OP_SUB:
+                result = a - b;
+                break;
+            case Script.OP_LESSTHAN:
+                result = (a < b) ? 1 : 0;
+                break;
+            case Script.OP_GREATERTHAN:
+                result = (a > b) ? 1 : 0;
+                break;
+            default:
+                result = (a == b) ? 1 : 0;
+                break;
+        }
+        // operands are 32-bit, results must stay so too
+        if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+            return false;
+        }
+        nDepth -= 2;
+        pushNumber(result);
+        return true;
+    }
+
+    /**
+     * Replaces the data item on top of the stack with its SHA-256 double hash.
+     */
+    private void hash256(int top) {
+        int offset = nScratchUsed;
+        try {
+            mDigest.update(mBytes[top], (int) mValues[top], nLengths[top]);
+            mDigest.digest(mScratch, offset, HASH_BYTES);
+            mDigest.update(mScratch, offset, HASH_BYTES);
+            mDigest.digest(mScratch, offset, HASH_BYTES);
+        } catch (DigestException ex) {
+            // the scratch area always has room for the hash
+            throw new IllegalStateException(ex);
+        }
+        nScratchUsed += HASH_BYTES;
+        mBytes[top] = mScratch;
+        mValues[top] = offset;
+        nLengths[top] = HASH_BYTES;
+    }
+
+    private void pushNumber(long value) {
+        mBytes[nDepth] = null;
+        mValues[nDepth] = value;
+        nDepth++;
+    }
+
+    private void pushBytes(byte[] bytes, int offset, int length) {
+        mBytes[nDepth] = bytes;
+        mValues[nDepth] = offset;
+        nLengths[nDepth] = length;
+        nDepth++;
+    }
+
+    private void copy(int from, int to) {
+        mBytes[to] = mBytes[from];
+        mValues[to] = mValues[from];
+        nLengths[to] = nLengths[from];
+    }
+
+    private boolean equal(int a, int b) {
+        if (mBytes[a] == null || mBytes[b] == null) {
+            return mBytes[a] == mBytes[b] && mValues[a] == mValues[b];
+        }
+        int offsetA = (int) mValues[a];
+        int offsetB = (int) mValues[b];
+        return Arrays.equals(mBytes[a], offsetA, offsetA + nLengths[a], mBytes[b], offsetB, offsetB + nLengths[b]);
+    }
+
+    private boolean isTrue(int item) {
+        if (mBytes[item] == null) {
+            return mValues[item] != 0;
+        }
+        int offset = (int) mValues[item];
+        for (int i = offset; i < offset + nLengths[item]; i++) {
+            if (mBytes[item][i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+} // end ScriptVM
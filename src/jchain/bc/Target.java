@@ -0,0 +1,204 @@
+package jchain.bc;
+
+import java.math.BigInteger;
+
+import jchain.util.Hash256;
+
+/**
+ * A proof-of-work target decoded from its compact difficulty bits.<br>
+ * The compact form packs the target as an exponent byte followed by a
+ * 23-bit mantissa, target = mantissa * 256^(exponent - 3). It is decoded
+ * once into four big-endian 64-bit words, so checking a hash against the
+ * target is at most four unsigned long comparisons and never allocates.
+ * Hashes are read as big-endian unsigned 256-bit numbers, the same order
+ * the miner has always compared them in. Targets are immutable.
+ */
+public final class Target {
+
+    //
+    // FIELDS
+    //
+
+    private final int nBits;
+    // The target, l0 holds the most significant 64 bits
+    private final long l0;
+    private final long l1;
+    private final long l2;
+    private final long l3;
+    // The work of one block at this target, computed on first use
+    private volatile BigInteger mWork = null;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    private Target(int bits, long l0, long l1, long l2, long l3) {
+        nBits = bits;
+        this.l0 = l0;
+        this.l1 = l1;
+        this.l2 = l2;
+        this.l3 = l3;
+    }
+
+    /**
+     * Decodes a target from its compact difficulty bits.
+     * @param bits The compact difficulty bits.
+     * @return The decoded target.
+     * @exception IllegalArgumentException If the bits encode a negative
+     * target or one that does not fit in 256 bits.
+     */
+    public static Target fromBits(int bits) {
+        int exponent = bits >>> 24;
+        int mantissa = bits & 0x007FFFFF;
+        if ((bits & 0x00800000) != 0 && mantissa != 0) {
+            throw new IllegalArgumentException("Error: Difficulty bits encode a negative target!");
+        }
+        byte[] target = new byte[Hash256.SIZE];
+        // the mantissa bytes land at positions [32 - exponent, 35 - exponent)
+        for (int i = 0; i < 3; i++) {
+            int position = Hash256.SIZE - exponent + i;
+            int value = (mantissa >>> (8 * (2 - i))) & 0xFF;
+            if (position < 0) {
+                if (value != 0) {
+                    throw new IllegalArgumentException("Error: Difficulty bits encode a target wider than 256 bits!");
+                }
+            } else if (position < Hash256.SIZE) {
+                target[position] = (byte) value;
+            }
+        }
+        return new Target(bits, readLong(target, 0), readLong(target, 8),
+            readLong(target, 16), readLong(target, 24));
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the compact difficulty bits the target was decoded from.
+     * @return The compact difficulty bits.
+     */
+    public int getBits() {
+        return nBits;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Determines whether a raw hash meets the target, i.e. is strictly
+     * below it. Does not allocate.
+     * @param hash A 32 byte hash.
+     * @return True if the hash is below the target, false otherwise.
+     */
+    public boolean isMetBy(byte[] hash) {
+        return isBelow(readLong(hash, 0), readLong(hash, 8), readLong(hash, 16), readLong(hash, 24));
+    }
+
+    /**
+     * Determines whether a hash meets the target, i.e. is strictly below
+     * it. Does not allocate.
+     * @param hash A hash.
+     * @return True if the hash is below the target, false otherwise.
+     */
+    public boolean isMetBy(Hash256 hash) {
+        return isBelow(hash.getLong(0), hash.getLong(1), hash.getLong(2), hash.getLong(3));
+    }
+
+    /**
+     * Gets the expected number of hashes needed to find a hash that meets
+     * the target, 2^256 / (target + 1). Chains are compared by the sum of
+     * the work of their blocks.
+     * @return The work represented by one block mined at this target.
+     */
+    public BigInteger getWork() {
+        BigInteger work = mWork;
+        if (work == null) {
+            work = BigInteger.ONE.shiftLeft(256).divide(toBigInteger().add(BigInteger.ONE));
+            mWork = work;
+        }
+        return work;
+    }
+
+    /**
+     * Returns the target as a 32 byte big-endian array.
+     * @return The target bytes.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[Hash256.SIZE];
+        writeLong(bytes, 0, l0);
+        writeLong(bytes, 8, l1);
+        writeLong(bytes, 16, l2);
+        writeLong(bytes, 24, l3);
+        return bytes;
+    }
+
+    /**
+     * Returns the target as a BigInteger, for display and arithmetic.
+     * @return The target value.
+     */
+    public BigInteger toBigInteger() {
+        return new BigInteger(1, toBytes());
+    }
+
+    /**
+     * Determines if an object is the same target as this one.
+     * @param obj An object to determine equality against.
+     * @return True if obj is a Target with the same value, false otherwise.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Target)) {
+            return false;
+        }
+        Target target = (Target) obj;
+        return l0 == target.l0 && l1 == target.l1 && l2 == target.l2 && l3 == target.l3;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(l0 ^ l1 ^ l2 ^ l3);
+    }
+
+    /**
+     * Returns the target as a 64 character hexstring.
+     * @return A hexstring.
+     */
+    @Override
+    public String toString() {
+        return String.format("%016X%016X%016X%016X", l0, l1, l2, l3);
+    }
+
+    /**
+     * Compares a 256-bit value, most significant word first, against the target.
+     */
+    private boolean isBelow(long h0, long h1, long h2, long h3) {
+        if (h0 != l0) {
+            return Long.compareUnsigned(h0, l0) < 0;
+        }
+        if (h1 != l1) {
+            return Long.compareUnsigned(h1, l1) < 0;
+        }
+        if (h2 != l2) {
+            return Long.compareUnsigned(h2, l2) < 0;
+        }
+        return Long.compareUnsigned(h3, l3) < 0;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+}
@@ -1,10 +1,16 @@
 package jchain.bc;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.ListIterator;
-import java.util.Objects;
 
 import jchain.util.BCUtil;
+import jchain.util.Hash256;
 import jchain.util.Hashable;
 
 public class Transaction implements Hashable {
@@ -20,7 +26,11 @@ public class Transaction implements Hashable {
     private int nOutCounter;
     private ArrayList<String> mInputs;
     private ArrayList<Output> mOutputs;
-    private String sHash;
+    private Hash256 mHash;
+    // The outpoints spent by the inputs, parsed on first use
+    private OutPoint[] mOutPoints = null;
+    // The unlocking scripts of the spends, compiled on first use
+    private Script[] mUnlockScripts = null;
 
     // constructurs
 
@@ -29,7 +39,8 @@ public class Transaction implements Hashable {
      * inputs and the given outputs. Each transaction must contain at least
      * one input and at least one output.
      * @param inputs A non-empty String array where each String is in the
-     * format "{address}:{amount}".
+     * format "{address}:{amount}", or "{txid}:{index}:{amount}" (with an 
+     * optional ":{script}") for an input that spends an output (see OutPoint).
      * @param outputs A non-empty String array where each String is in the 
      * format "{address}:{amount}"
      * @exception IllegalArgumentException If inputs is null or empty. If 
@@ -68,7 +79,7 @@ public class Transaction implements Hashable {
         for (Output output : outputs) {
             mOutputs.add(output);
         }
-        sHash = computeHash();
+        mHash = computeHash();
     }
 
     /**
@@ -113,11 +124,91 @@ public class Transaction implements Hashable {
     }
 
     /**
-     * Returns the SHA-256 double hash for the Transaction as a hexstring.
-     * @return A SHA-256 double hash as a hexstring.
+     * Return the output at the indicated position of the transaction.
+     * @param index The index of the output.
+     * @return The output with the indicated index.
+     * @exception IndexOutOfBoundsException If the transaction has no such output.
+     */
+    public Output getOutput(int index) {
+        return mOutputs.get(index);
+    }
+
+    /**
+     * Gets the outpoints spent by the inputs of the transaction, inputs 
+     * that do not spend an output are left out.
+     * @return The spent outpoints in input order, the list cannot be modified.
+     */
+    public List<OutPoint> getOutPoints() {
+        OutPoint[] outPoints = mOutPoints;
+        if (outPoints == null) {
+            ArrayList<OutPoint> parsed = new ArrayList<>();
+            for (String input : mInputs) {
+                OutPoint outPoint = OutPoint.parse(input);
+                if (outPoint != null) {
+                    parsed.add(outPoint);
+                }
+            }
+            outPoints = parsed.toArray(new OutPoint[parsed.size()]);
+            mOutPoints = outPoints;
+        }
+        return Collections.unmodifiableList(Arrays.asList(outPoints));
+    }
+
+    /**
+     * Gets the compiled unlocking scripts of the inputs that spend an
+     * output, in the order of getOutPoints(). A spend without a script has
+     * the empty script.
+     * @return The unlocking scripts, the list cannot be modified.
+     * @exception IllegalArgumentException If a script does not compile.
      */
-    public String getHash() {
-        return sHash;
+    public List<Script> getUnlockScripts() {
+        Script[] scripts = mUnlockScripts;
+        if (scripts == null) {
+            ArrayList<Script> compiled = new ArrayList<>();
+            for (String input : mInputs) {
+                if (OutPoint.parse(input) != null) {
+                    compiled.add(Script.compile(inputScript(input)));
+                }
+            }
+            scripts = compiled.toArray(new Script[compiled.size()]);
+            mUnlockScripts = scripts;
+        }
+        return Collections.unmodifiableList(Arrays.asList(scripts));
+    }
+
+    /**
+     * Determines the fee paid by the transaction in minis, the amount the 
+     * inputs carry that is not spent by the outputs. Inputs are read in 
+     * the "{address}:{amount}" format, a bare amount is also accepted and 
+     * an input without a readable amount counts as zero.
+     * @return The fee of the transaction, never negative.
+     */
+    public long getFee() {
+        long fee = 0;
+        for (String input : mInputs) {
+            fee += inputAmount(input);
+        }
+        for (Output output : mOutputs) {
+            fee -= output.getValueAsMinis();
+        }
+        return Math.max(fee, 0);
+    }
+
+    /**
+     * Determines the fee rate of the transaction, the fee per 1000 
+     * serialized bytes. Miners prefer transactions with a higher fee rate.
+     * @return The fee rate in minis per kilobyte.
+     */
+    public long getFeeRate() {
+        return (getFee() * 1000) / serializedSize();
+    }
+
+    /**
+     * Returns the SHA-256 double hash for the Transaction.
+     * @return A SHA-256 double hash.
+     */
+    public Hash256 getHash() {
+        return mHash;
     }
 
     /**
@@ -136,35 +227,93 @@ public class Transaction implements Hashable {
             size += output.bytes();
         }
         // add in the size of the hash
-        size += sHash.getBytes().length;
+        size += Hash256.SIZE;
         return size;
     }
 
     /**
-     * Computes a SHA-256 double hash for the transaction and returns 
-     * it as a hexstring.<br>
+     * Computes a SHA-256 double hash for the transaction and returns it.<br>
      * A transaction hash is calculated as:<br>
      * <ol>
      * <li>The version number of the transaction.</li>
      * <li>The number of inputs in the transaction.</li>
-     * <li>The inputs in the transaction.</li>
+     * <li>The inputs in the transaction, each prefixed by its length.</li>
      * <li>The number of outputs in the transaction.</li>
-     * <li>The outputs in the transaction.</li>
+     * <li>The output hashes in the transaction.</li>
      * </ol>
-     * @return a SHAR-256 double hash hexstring.
+     * @return a SHA-256 double hash.
      */
-    public String computeHash() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(getVersionNumber());
-        sb.append(getInputCount());
+    public Hash256 computeHash() {
+        byte[][] inputs = new byte[mInputs.size()][];
+        int size = 4 * 3;
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = mInputs.get(i).getBytes(StandardCharsets.UTF_8);
+            size += 4 + inputs[i].length;
+        }
+        size += mOutputs.size() * Hash256.SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(getVersionNumber());
+        buffer.putInt(getInputCount());
+        for (byte[] input : inputs) {
+            buffer.putInt(input.length);
+            buffer.put(input);
+        }
+        buffer.putInt(getOutputCount());
+        for (Output output : mOutputs) {
+            output.getHash().write(buffer);
+        }
+        buffer.flip();
+        return BCUtil.getInstance().doubleHash256(buffer);
+    }
+
+    /**
+     * Gets the number of bytes serialize() writes for this Transaction.
+     * @return The serialized size of the Transaction in bytes.
+     */
+    public int serializedSize() {
+        int size = 4 * 3;
+        for (String input : mInputs) {
+            size += BCUtil.stringSize(input);
+        }
+        for (Output output : mOutputs) {
+            size += output.serializedSize();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the Transaction to the buffer.
+     * @param buffer The buffer to write to.
+     */
+    public void serialize(ByteBuffer buffer) {
+        buffer.putInt(nVersionNumber);
+        buffer.putInt(nInCounter);
         for (String input : mInputs) {
-            sb.append(input);
+            BCUtil.putString(buffer, input);
         }
-        sb.append(getOutputCount());
+        buffer.putInt(nOutCounter);
         for (Output output : mOutputs) {
-            sb.append(output.getHash());
+            output.serialize(buffer);
         }
-        return BCUtil.getInstance().doubleHash(sb.toString());
+    }
+
+    /**
+     * Reads a Transaction written by serialize() from the buffer. The
+     * transaction hash is recomputed from the inputs and outputs.
+     * @param buffer The buffer to read from.
+     * @return The Transaction read.
+     */
+    public static Transaction deserialize(ByteBuffer buffer) {
+        int versionNumber = buffer.getInt();
+        String[] inputs = new String[buffer.getInt()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = BCUtil.getString(buffer);
+        }
+        Output[] outputs = new Output[buffer.getInt()];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = Output.deserialize(buffer);
+        }
+        return new Transaction(inputs, outputs, versionNumber);
     }
 
     /**
@@ -191,7 +340,7 @@ public class Transaction implements Hashable {
      */
     @Override
     public int hashCode() {
-        return Objects.hashCode(this);
+        return mHash.hashCode();
     }
 
     /**
@@ -201,11 +350,76 @@ public class Transaction implements Hashable {
      * @return True if the transaction is well-formed, false otherwise.
      */
     public boolean isWellFormed() {
-        // TODO: Determine if the transaction is well-formed
-
+        // every input must be readable and no output may be spent twice
+        HashSet<OutPoint> spent = new HashSet<>();
+        for (String input : mInputs) {
+            if (input == null || input.isEmpty()) {
+                return false;
+            }
+            OutPoint outPoint = OutPoint.parse(input);
+            if (outPoint == null) {
+                // an input that starts like a txid must be a complete spend
+                if (isSpend(input)) {
+                    return false;
+                }
+            } else if (!spent.add(outPoint) || inputAmount(input) <= 0) {
+                return false;
+            }
+        }
+        // outputs are referenced by position, so the indices must match it
+        for (int i = 0; i < mOutputs.size(); i++) {
+            if (mOutputs.get(i) == null || mOutputs.get(i).getIndex() != i) {
+                return false;
+            }
+        }
         return true;
     }
 
+    /**
+     * Reads the amount of an input, see getFee(). The amount of a spend is
+     * its third field, an unlocking script may follow it.
+     */
+    static long inputAmount(String input) {
+        int start = input.lastIndexOf(':') + 1;
+        int end = input.length();
+        if (isSpend(input)) {
+            start = input.indexOf(':', (Hash256.SIZE * 2) + 1) + 1;
+            if (start == 0) {
+                return 0;
+            }
+            int script = input.indexOf(':', start);
+            if (script >= 0) {
+                end = script;
+            }
+        }
+        try {
+            return Math.max(Long.parseLong(input.substring(start, end).trim()), 0);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the unlocking script of an input, the text after the amount of
+     * a spend. Other inputs have none.
+     * @return The script source, or null if the input has no script.
+     */
+    static String inputScript(String input) {
+        if (!isSpend(input)) {
+            return null;
+        }
+        int amount = input.indexOf(':', (Hash256.SIZE * 2) + 1);
+        int script = (amount < 0) ? -1 : input.indexOf(':', amount + 1);
+        return (script < 0) ? null : input.substring(script + 1);
+    }
+
+    /**
+     * Determines whether an input is written like a spend, see OutPoint.
+     */
+    static boolean isSpend(String input) {
+        return input.length() > Hash256.SIZE * 2 && input.charAt(Hash256.SIZE * 2) == ':';
+    }
+
     /**
      * Prints the transaction to standard out.
      */
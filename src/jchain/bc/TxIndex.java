@@ -0,0 +1,299 @@
+package jchain.bc;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.LongPredicate;
+import java.util.stream.IntStream;
+
+import jchain.util.Hash256;
+
+/**
+ * Maps transaction hashes to the location (block height, position in the
+ * block) of the transaction in the blockchain.<br>
+ * The index does not store transaction hashes or boxed objects. Every entry
+ * is two longs: a 64-bit fingerprint of the hash and the packed location.
+ * Entries live in open addressing tables (linear probing) split into
+ * segments by the top bits of the fingerprint, so the index can be rebuilt
+ * one segment per thread. Since fingerprints can collide, lookups take a
+ * predicate that confirms a candidate location actually holds the hash.<br>
+ * The index has a single writer but may be read concurrently. A slot's
+ * location is written before its fingerprint is released, and a resized
+ * table is published as a whole, so readers never lock and never see a
+ * half written entry. Removed entries keep their fingerprint and get the
+ * NOT_FOUND location, so probe sequences stay intact, and are dropped when
+ * the table next grows.
+ */
+public class TxIndex {
+
+    //
+    // CONSTANTS
+    //
+
+    // Returned by get() when the hash is not in the index
+    public static final long NOT_FOUND = -1L;
+
+    // The number of segments is 2^SEGMENT_BITS
+    private static final int SEGMENT_BITS = 4;
+    // The initial capacity of a segment, must be a power of two
+    private static final int INITIAL_CAPACITY = 64;
+    // Orders the fingerprint stores after the location stores
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    //
+    // FIELDS
+    //
+
+    private final Segment[] mSegments;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of an empty TxIndex.
+     */
+    public TxIndex() {
+        mSegments = new Segment[1 << SEGMENT_BITS];
+        for (int i = 0; i < mSegments.length; i++) {
+            mSegments[i] = new Segment();
+        }
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Packs a block height and a position within the block into a location.
+     * @param height The block height.
+     * @param position The position of the transaction in the block.
+     * @return A packed location.
+     */
+    public static long location(int height, int position) {
+        return ((long) height << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Gets the block height from a packed location.
+     * @param location A packed location.
+     * @return The block height.
+     */
+    public static int height(long location) {
+        return (int) (location >>> 32);
+    }
+
+    /**
+     * Gets the position in the block from a packed location.
+     * @param location A packed location.
+     * @return The position of the transaction in the block.
+     */
+    public static int position(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Adds every transaction of the block to the index.
+     * @param block The block to index.
+     * @param height The height of the block in the chain.
+     */
+    public void add(Block block, int height) {
+        List<Transaction> txList = block.getTransactions();
+        for (int i = 0; i < txList.size(); i++) {
+            long key = fingerprint(txList.get(i).getHash());
+            segment(key).put(key, location(height, i));
+        }
+    }
+
+    /**
+     * Removes every transaction of the block from the index, used when the
+     * block is disconnected from the chain.
+     * @param block The block to remove.
+     * @param height The height the block was indexed at.
+     */
+    public void remove(Block block, int height) {
+        List<Transaction> txList = block.getTransactions();
+        for (int i = 0; i < txList.size(); i++) {
+            long key = fingerprint(txList.get(i).getHash());
+            segment(key).remove(key, location(height, i));
+        }
+    }
+
+    /**
+     * Looks up the location of a transaction.
+     * @param hash The transaction hash.
+     * @param verifier Confirms that a candidate location holds the transaction,
+     * candidates only share a 64-bit fingerprint with the hash.
+     * @return The packed location of the transaction, or NOT_FOUND.
+     */
+    public long get(Hash256 hash, LongPredicate verifier) {
+        long key = fingerprint(hash);
+        return segment(key).get(key, verifier);
+    }
+
+    /**
+     * Gets the number of transactions in the index.
+     * @return The number of indexed transactions.
+     */
+    public int count() {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            count += segment.nCount;
+        }
+        return count;
+    }
+
+    /**
+     * Builds an index over the blocks of a chain in parallel. The
+     * transactions of every block are collected in parallel, then each
+     * segment is filled by its own thread.
+     * @param height The number of blocks in the chain.
+     * @param blocks Returns the block at a height, called from several threads.
+     * @return An index containing every transaction in the chain.
+     */
+    public static TxIndex build(int height, IntFunction<Block> blocks) {
+        // collect the fingerprints of every block
+        long[][] keys = new long[height][];
+        IntStream.range(0, height).parallel().forEach(h -> {
+            List<Transaction> txList = blocks.apply(h).getTransactions();
+            long[] blockKeys = new long[txList.size()];
+            for (int i = 0; i < blockKeys.length; i++) {
+                blockKeys[i] = fingerprint(txList.get(i).getHash());
+            }
+            keys[h] = blockKeys;
+        });
+        // every segment only takes the keys that belong to it, so the
+        //  segments can be filled without any locking
+        TxIndex index = new TxIndex();
+        IntStream.range(0, index.mSegments.length).parallel().forEach(s -> {
+            Segment segment = index.mSegments[s];
+            for (int h = 0; h < keys.length; h++) {
+                long[] blockKeys = keys[h];
+                for (int i = 0; i < blockKeys.length; i++) {
+                    if (segmentOf(blockKeys[i]) == s) {
+                        segment.put(blockKeys[i], location(h, i));
+                    }
+                }
+            }
+        });
+        return index;
+    }
+
+    /**
+     * Derives the fingerprint of a hash, zero marks an empty slot so it is never used.
+     */
+    private static long fingerprint(Hash256 hash) {
+        long key = hash.getLong(0);
+        return (key == 0) ? 1 : key;
+    }
+
+    private static int segmentOf(long key) {
+        return (int) (key >>> (64 - SEGMENT_BITS));
+    }
+
+    private Segment segment(long key) {
+        return mSegments[segmentOf(key)];
+    }
+
+    /**
+     * One open addressing table of the index.
+     */
+    private static class Segment {
+
+        // The current table, replaced as a whole when it grows
+        private volatile Table mTable = new Table(INITIAL_CAPACITY);
+        // The number of live entries
+        private volatile int nCount = 0;
+        // The number of occupied slots, live or removed
+        private int nUsed = 0;
+
+        private void put(long key, long value) {
+            Table table = mTable;
+            // keep the load factor at or below 1/2
+            if ((nUsed + 1) * 2 > table.mKeys.length) {
+                // size for the live entries, removed ones are not copied
+                table = table.resize(Math.max(table.mKeys.length, Integer.highestOneBit(nCount + 1) * 4));
+                mTable = table;
+                nUsed = nCount;
+            }
+            table.insert(key, value);
+            nCount = nCount + 1;
+            nUsed++;
+        }
+
+        private void remove(long key, long value) {
+            Table table = mTable;
+            long[] keys = table.mKeys;
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key && table.mValues[slot] == value) {
+                    table.mValues[slot] = NOT_FOUND;
+                    nCount = nCount - 1;
+                    return;
+                }
+            }
+        }
+
+        private long get(long key, LongPredicate verifier) {
+            Table table = mTable;
+            long[] keys = table.mKeys;
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+                long candidate = (long) KEYS.getAcquire(keys, slot);
+                if (candidate == 0) {
+                    return NOT_FOUND;
+                }
+                long value = table.mValues[slot];
+                if (candidate == key && value != NOT_FOUND && verifier.test(value)) {
+                    return value;
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            // the top bits pick the segment, use the low bits for the slot
+            return (int) key & mask;
+        }
+
+    } // end Segment
+
+    /**
+     * The arrays of a segment, the keys and values always have the same length.
+     */
+    private static class Table {
+
+        // The fingerprints, 0 marks an empty slot
+        private final long[] mKeys;
+        // The packed locations, parallel to mKeys
+        private final long[] mValues;
+
+        private Table(int capacity) {
+            mKeys = new long[capacity];
+            mValues = new long[capacity];
+        }
+
+        private Table resize(int capacity) {
+            Table table = new Table(capacity);
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] != 0 && mValues[i] != NOT_FOUND) {
+                    table.insert(mKeys[i], mValues[i]);
+                }
+            }
+            return table;
+        }
+
+        private void insert(long key, long value) {
+            int mask = mKeys.length - 1;
+            int slot = Segment.slot(key, mask);
+            while (mKeys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mValues[slot] = value;
+            // the location must be visible before the fingerprint is
+            KEYS.setRelease(mKeys, slot, key);
+        }
+
+    } // end Table
+
+} // end TxIndex
@@ -0,0 +1,628 @@
+package jchain.bc;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+
+import jchain.util.Hash256;
+
+/**
+ * A set of unspent transaction outputs (UTXOs), keyed by outpoint.<br>
+ * Every entry is five longs in one open addressing table (linear probing):
+ * the four words of the transaction hash, then the output value and index
+ * packed into one word. No per-entry objects exist, looking an outpoint up
+ * is a hash, a probe and four long comparisons. Removed entries are
+ * backward shifted instead of leaving tombstones, so probe sequences stay
+ * short no matter how many outputs are spent. Subclasses decide where the
+ * slots live (UtxoSet keeps them on the heap, MappedUtxoStore in a memory
+ * mapped file).<br>
+ * Blocks are applied with connect(), which returns the undo data that
+ * disconnect() needs to roll the block back during a reorganization. Each
+ * connect(), disconnect(), add() and remove() is one batch, subclasses may
+ * make batches durable. The set remembers the block its contents
+ * correspond to.<br>
+ * One thread may change the set while any number of threads read it.
+ * The version of the set is odd while the writer changes what readers see
+ * (a seqlock), contains(), getValue() and size() read the table
+ * optimistically and retry if the version was odd or moved meanwhile, so
+ * readers never block the writer and never see a change half done.
+ * Subclasses call changing() right before they change what readers see
+ * and may call changed() once they are done, work such as making a batch
+ * durable happens outside that window. A writer groups several changes
+ * into one with beginUpdate() and endUpdate(), e.g. a BC reorganizing its
+ * chain. Only one thread may change the set at a time.
+ */
+public abstract class UnspentOutputs {
+
+    //
+    // CONSTANTS
+    //
+
+    // The number of longs per slot
+    protected static final int STRIDE = 5;
+    // The number of bytes per slot
+    protected static final int SLOT_BYTES = STRIDE * Long.BYTES;
+    // The smallest number of slots, must be a power of two
+    protected static final int MIN_SLOTS = 1024;
+
+    //
+    // FIELDS
+    //
+
+    // The number of entries
+    protected int nSize = 0;
+    // The block the contents correspond to, null if no block was connected
+    protected Hash256 mBestBlock = null;
+    // Odd while the writer changes what readers see, readers validate against it
+    private volatile long nVersion = 0;
+    // The number of nested updates of the writer
+    private int nUpdateDepth = 0;
+    // The thread changing the set, its own reads need no validation
+    private Thread mWriter = null;
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the number of unspent outputs in the set.
+     * @return The number of entries.
+     */
+    public int size() {
+        if (mWriter == Thread.currentThread()) {
+            return nSize;
+        }
+        for (int attempt = 0; ; attempt++) {
+            long version = nVersion;
+            if ((version & 1) == 0) {
+                int size = committedSize();
+                VarHandle.acquireFence();
+                if (nVersion == version) {
+                    return size;
+                }
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Gets the hash of the block the set corresponds to, the last block
+     * connected or the parent of the last block disconnected.
+     * @return A block hash, or null if no block was ever connected.
+     */
+    public Hash256 getBestBlock() {
+        return mBestBlock;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Determines whether an output is unspent.
+     * @param txHash The hash of the transaction holding the output.
+     * @param index The index of the output.
+     * @return True if the output is in the set, false otherwise.
+     */
+    public boolean contains(Hash256 txHash, int index) {
+        return lookup(txHash, index) != 0;
+    }
+
+    /**
+     * Determines whether an output is unspent.
+     * @param outPoint The outpoint of the output.
+     * @return True if the output is in the set, false otherwise.
+     */
+    public boolean contains(OutPoint outPoint) {
+        return contains(outPoint.getTxHash(), outPoint.getIndex());
+    }
+
+    /**
+     * Gets the value of an unspent output.
+     * @param txHash The hash of the transaction holding the output.
+     * @param index The index of the output.
+     * @return The value of the output in minis, or 0 if it is not in the set.
+     */
+    public int getValue(Hash256 txHash, int index) {
+        return value(lookup(txHash, index));
+    }
+
+    /**
+     * Adds an unspent output.
+     * @param txHash The hash of the transaction holding the output.
+     * @param index The index of the output.
+     * @param minis The value of the output in minis.
+     * @return True if the output was added, false if it was already in the set.
+     * @exception IllegalArgumentException If index is negative or minis is not positive.
+     */
+    public boolean add(Hash256 txHash, int index, int minis) {
+        if (index < 0) {
+            throw new IllegalArgumentException("Error: Output index must be >= 0.");
+        }
+        if (minis <= 0) {
+            throw new IllegalArgumentException("Error: Amount of minis in output must be > 0.");
+        }
+        beginUpdate();
+        try {
+            reserve(1);
+            begin();
+            try {
+                boolean added = put(txHash.getLong(0), txHash.getLong(1), txHash.getLong(2), txHash.getLong(3), meta(minis, index));
+                commit();
+                return added;
+            } catch (RuntimeException ex) {
+                abort();
+                throw ex;
+            }
+        } finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Removes an output, i.e. marks it spent.
+     * @param txHash The hash of the transaction holding the output.
+     * @param index The index of the output.
+     * @return True if the output was removed, false if it was not in the set.
+     */
+    public boolean remove(Hash256 txHash, int index) {
+        beginUpdate();
+        try {
+            begin();
+            try {
+                int slot = find(txHash, index);
+                if (slot >= 0) {
+                    delete(slot);
+                }
+                commit();
+                return slot >= 0;
+            } catch (RuntimeException ex) {
+                abort();
+                throw ex;
+            }
+        } finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Applies a block as one batch: the outputs spent by its inputs are
+     * removed and its outputs are added, transaction by transaction, so a
+     * transaction may spend the outputs of an earlier transaction of the
+     * same block. Inputs that do not spend an output in the set are skipped,
+     * blocks are expected to be validated before they are connected. Outputs
+     * created and spent within the block are left out of the undo data, the
+     * set never held them before the block.
+     * @param block The block to connect.
+     * @return The undo data to disconnect the block with.
+     */
+    public Undo connect(Block block) {
+        List<Transaction> txList = block.getTransactions();
+        int outputs = 0;
+        for (Transaction tx : txList) {
+            outputs += tx.getOutputCount();
+        }
+        Undo undo = new Undo();
+        HashSet<Hash256> created = new HashSet<>();
+        beginUpdate();
+        try {
+            reserve(outputs);
+            begin();
+            try {
+                for (Transaction tx : txList) {
+                    for (OutPoint outPoint : tx.getOutPoints()) {
+                        int slot = find(outPoint.getTxHash(), outPoint.getIndex());
+                        if (slot >= 0) {
+                            if (!created.contains(outPoint.getTxHash())) {
+                                undo.record(word(slot, 0), word(slot, 1), word(slot, 2), word(slot, 3), word(slot, 4));
+                            }
+                            delete(slot);
+                        }
+                    }
+                    Hash256 txHash = tx.getHash();
+                    created.add(txHash);
+                    ListIterator<Output> it = tx.getOutputs();
+                    while (it.hasNext()) {
+                        int index = it.nextIndex();
+                        put(txHash.getLong(0), txHash.getLong(1), txHash.getLong(2), txHash.getLong(3),
+                            meta(it.next().getValueAsMinis(), index));
+                    }
+                }
+                mBestBlock = block.getHash();
+                commit();
+                return undo;
+            } catch (RuntimeException ex) {
+                abort();
+                throw ex;
+            }
+        } finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Rolls back a block applied with connect() as one batch: its outputs
+     * are removed and the outputs it spent are restored.
+     * @param block The block to disconnect, it must be the last block connected.
+     * @param undo The undo data connect() returned for the block.
+     */
+    public void disconnect(Block block, Undo undo) {
+        beginUpdate();
+        try {
+            reserve(undo.nCount);
+            begin();
+            try {
+                List<Transaction> txList = block.getTransactions();
+                for (int i = txList.size() - 1; i >= 0; i--) {
+                    Transaction tx = txList.get(i);
+                    for (int index = 0; index < tx.getOutputCount(); index++) {
+                        int slot = find(tx.getHash(), index);
+                        if (slot >= 0) {
+                            delete(slot);
+                        }
+                    }
+                }
+                long[] entries = undo.mEntries;
+                for (int i = undo.nCount - 1; i >= 0; i--) {
+                    int offset = i * STRIDE;
+                    put(entries[offset], entries[offset + 1], entries[offset + 2], entries[offset + 3], entries[offset + 4]);
+                }
+                mBestBlock = block.getBlockHeader().getPreviousBlockHash();
+                commit();
+            } catch (RuntimeException ex) {
+                abort();
+                throw ex;
+            }
+        } finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Removes every entry and forgets the best block.
+     */
+    public void clear() {
+        beginUpdate();
+        try {
+            changing();
+            reset();
+        } finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Starts a change that readers must not see half done. Updates nest,
+     * readers see everything changed up to the outermost endUpdate() as one
+     * change. Only the thread changing the set may call it.
+     */
+    protected final void beginUpdate() {
+        if (nUpdateDepth++ == 0) {
+            mWriter = Thread.currentThread();
+        }
+    }
+
+    /**
+     * Ends a change started with beginUpdate().
+     */
+    protected final void endUpdate() {
+        if (--nUpdateDepth == 0) {
+            mWriter = null;
+            changed();
+        }
+    }
+
+    /**
+     * Tells readers the writer is about to change what they see, they wait
+     * until changed() or the outermost endUpdate(). Does nothing outside of
+     * an update, e.g. while a subclass is opened.
+     */
+    protected final void changing() {
+        if (nUpdateDepth > 0 && (nVersion & 1) == 0) {
+            nVersion = nVersion + 1;
+            // the table writes must not become visible before the odd version
+            VarHandle.storeStoreFence();
+        }
+    }
+
+    /**
+     * Lets readers in again after changing(), unless the change is part of
+     * a larger update (see beginUpdate()).
+     */
+    protected final void changed() {
+        if (nUpdateDepth <= 1 && (nVersion & 1) != 0) {
+            nVersion = nVersion + 1;
+        }
+    }
+
+    //
+    // STORAGE
+    //
+
+    /**
+     * Empties the table and forgets the best block.
+     */
+    protected abstract void reset();
+
+    /**
+     * Gets the number of slots in the table, a power of two.
+     */
+    protected abstract int slots();
+
+    /**
+     * Reads one of the five words of a slot, a meta word (4) of 0 marks an empty slot.
+     */
+    protected abstract long word(int slot, int word);
+
+    /**
+     * Reads one of the five words of a slot as of the last committed batch,
+     * for readers on other threads. The writer may be changing the table
+     * at the same time, a torn value is fine (the read is validated
+     * afterwards) but the read must not fail in any other way than with an
+     * IndexOutOfBoundsException.
+     */
+    protected long committedWord(int slot, int word) {
+        return word(slot, word);
+    }
+
+    /**
+     * Gets the number of entries as of the last committed batch, for
+     * readers on other threads.
+     */
+    protected int committedSize() {
+        return nSize;
+    }
+
+    /**
+     * Writes all five words of a slot.
+     */
+    protected abstract void write(int slot, long t0, long t1, long t2, long t3, long meta);
+
+    /**
+     * Grows the table to the indicated number of slots, rehashing every
+     * entry. Never called inside a batch.
+     */
+    protected abstract void resize(int slots);
+
+    /**
+     * Starts a batch.
+     */
+    protected void begin() {
+    }
+
+    /**
+     * Ends a batch, its changes and the best block must now survive whatever
+     * the subclass promises to survive.
+     */
+    protected void commit() {
+    }
+
+    /**
+     * Abandons a batch that failed part way, the entries, size and best
+     * block must be left as they were at begin().
+     */
+    protected void abort() {
+    }
+
+    /**
+     * Makes sure the indicated number of entries can be added without the
+     * load factor going over 3/4, so tables never grow inside a batch.
+     */
+    protected void reserve(int entries) {
+        long needed = (long) nSize + entries;
+        int slots = slots();
+        if (needed * 4 > slots * 3L) {
+            long grown = slots;
+            while (needed * 4 > grown * 3) {
+                grown *= 2;
+            }
+            if (grown > Integer.highestOneBit(Integer.MAX_VALUE)) {
+                throw new IllegalStateException("Error: UTXO set is full!");
+            }
+            resize((int) grown);
+        }
+    }
+
+    /**
+     * Computes the number of slots to allocate for the indicated number of entries.
+     */
+    protected static int slotsFor(int entries) {
+        long slots = MIN_SLOTS;
+        while (entries * 4L > slots * 3) {
+            slots *= 2;
+        }
+        return (int) slots;
+    }
+
+    /**
+     * Packs an output value and index into the last word of a slot.
+     */
+    protected static long meta(int minis, int index) {
+        return ((long) minis << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    private static int value(long meta) {
+        return (int) (meta >>> 32);
+    }
+
+    private static int index(long meta) {
+        return (int) meta;
+    }
+
+    /**
+     * Picks the home slot of an entry, the hash words are already uniformly
+     * distributed, only the index needs mixing in.
+     */
+    protected static int home(long t0, long meta, int mask) {
+        long h = t0 ^ (index(meta) * 0x9E3779B97F4A7C15L);
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Gets the meta word of an outpoint for a reader, 0 if it is not in the
+     * set. The writer reads directly, every other thread reads optimistically
+     * and retries until no change overlapped its read.
+     */
+    private long lookup(Hash256 txHash, int index) {
+        if (txHash == null) {
+            throw new IllegalArgumentException("Error: Cannot look up an output without a transaction hash!");
+        }
+        if (mWriter == Thread.currentThread()) {
+            int slot = find(txHash, index);
+            return (slot < 0) ? 0 : word(slot, 4);
+        }
+        for (int attempt = 0; ; attempt++) {
+            long version = nVersion;
+            if ((version & 1) == 0) {
+                try {
+                    long meta = probe(txHash, index);
+                    VarHandle.acquireFence();
+                    if (nVersion == version) {
+                        return meta;
+                    }
+                } catch (IndexOutOfBoundsException ex) {
+                    // the table was replaced while it was probed, try again
+                }
+            }
+            backOff(attempt);
+        }
+    }
+
+    /**
+     * Probes the committed table for an outpoint, bounded so a table changed
+     * under the reader cannot keep it probing forever.
+     */
+    private long probe(Hash256 txHash, int index) {
+        long t0 = txHash.getLong(0);
+        int slots = slots();
+        int mask = slots - 1;
+        int slot = home(t0, index, mask);
+        for (int probes = 0; probes < slots; probes++, slot = (slot + 1) & mask) {
+            long meta = committedWord(slot, 4);
+            if (meta == 0) {
+                return 0;
+            }
+            if (committedWord(slot, 0) == t0 && index(meta) == index
+                    && committedWord(slot, 1) == txHash.getLong(1)
+                    && committedWord(slot, 2) == txHash.getLong(2)
+                    && committedWord(slot, 3) == txHash.getLong(3)) {
+                return meta;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Waits a little before a reader tries again, spinning at first and then
+     * giving the writer the processor.
+     */
+    private static void backOff(int attempt) {
+        if (attempt < 64) {
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Finds the slot of an outpoint, -1 if it is not in the set.
+     */
+    private int find(Hash256 txHash, int index) {
+        if (txHash == null) {
+            throw new IllegalArgumentException("Error: Cannot look up an output without a transaction hash!");
+        }
+        long t0 = txHash.getLong(0);
+        int mask = slots() - 1;
+        for (int slot = home(t0, index, mask); ; slot = (slot + 1) & mask) {
+            long meta = word(slot, 4);
+            if (meta == 0) {
+                return -1;
+            }
+            if (word(slot, 0) == t0 && index(meta) == index
+                    && word(slot, 1) == txHash.getLong(1)
+                    && word(slot, 2) == txHash.getLong(2)
+                    && word(slot, 3) == txHash.getLong(3)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Inserts an entry unless its outpoint is already in the set, room must
+     * have been reserved.
+     */
+    protected boolean put(long t0, long t1, long t2, long t3, long meta) {
+        int index = index(meta);
+        int mask = slots() - 1;
+        for (int slot = home(t0, meta, mask); ; slot = (slot + 1) & mask) {
+            long current = word(slot, 4);
+            if (current == 0) {
+                write(slot, t0, t1, t2, t3, meta);
+                nSize++;
+                return true;
+            }
+            if (word(slot, 0) == t0 && index(current) == index && word(slot, 1) == t1
+                    && word(slot, 2) == t2 && word(slot, 3) == t3) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Empties a slot and shifts later entries of the probe sequence back, so
+     * that no lookup ever has to skip over a hole.
+     */
+    private void delete(int slot) {
+        int mask = slots() - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; word(next, 4) != 0; next = (next + 1) & mask) {
+            int home = home(word(next, 0), word(next, 4), mask);
+            // the entry may move into the hole if its home is not between the hole and itself
+            boolean movable = (hole <= next) ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                write(hole, word(next, 0), word(next, 1), word(next, 2), word(next, 3), word(next, 4));
+                hole = next;
+            }
+        }
+        write(hole, 0L, 0L, 0L, 0L, 0L);
+        nSize--;
+    }
+
+    /**
+     * The outputs a connected block spent, in the order it spent them.
+     */
+    public static final class Undo {
+
+        // The spent entries, STRIDE longs each
+        private long[] mEntries = new long[0];
+        private int nCount = 0;
+
+        private Undo() {
+        }
+
+        /**
+         * Gets the number of outputs the block spent.
+         * @return The number of spent outputs.
+         */
+        public int size() {
+            return nCount;
+        }
+
+        private void record(long t0, long t1, long t2, long t3, long meta) {
+            if ((nCount + 1) * STRIDE > mEntries.length) {
+                mEntries = Arrays.copyOf(mEntries, Math.max(4, nCount * 2) * STRIDE);
+            }
+            int offset = nCount * STRIDE;
+            mEntries[offset] = t0;
+            mEntries[offset + 1] = t1;
+            mEntries[offset + 2] = t2;
+            mEntries[offset + 3] = t3;
+            mEntries[offset + 4] = meta;
+            nCount++;
+        }
+
+    } // end Undo
+
+} // end UnspentOutputs
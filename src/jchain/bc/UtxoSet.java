@@ -0,0 +1,171 @@
+package jchain.bc;
+
+import java.util.Arrays;
+
+import jchain.util.Hash256;
+
+/**
+ * A set of unspent transaction outputs kept on the heap.<br>
+ * The slots of the table are one long array, 40 bytes per slot, so tens
+ * of millions of outputs fit in a few gigabytes of heap at most without a
+ * single per-entry object for the garbage collector to trace. A batch
+ * writes straight into the table and keeps the before image of every slot
+ * it writes, an aborted batch puts them back. The set does not survive a
+ * restart, see MappedUtxoStore for one that does.
+ */
+public class UtxoSet extends UnspentOutputs {
+
+    //
+    // CONSTANTS
+    //
+
+    // The largest number of slots, keeps the table within the limits of a Java array
+    private static final int MAX_SLOTS = 1 << 28;
+    // The number of longs per before image: the slot, then its five words
+    private static final int IMAGE_STRIDE = 1 + STRIDE;
+    // The number of before images the buffer starts with
+    private static final int INITIAL_IMAGES = 64;
+
+    //
+    // FIELDS
+    //
+
+    // The slots, STRIDE longs each
+    private long[] mTable;
+    // The before images of the slots written by the running batch, in the order
+    //  they were written, reused by every batch
+    private long[] mImages = new long[INITIAL_IMAGES * IMAGE_STRIDE];
+    private int nImages = 0;
+    // Set while a batch is running, only batch writes keep before images
+    private boolean bInBatch = false;
+    // The state to go back to if the running batch is abandoned
+    private int nBatchSize;
+    private Hash256 mBatchBestBlock;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of an empty UtxoSet.
+     */
+    public UtxoSet() {
+        this(0);
+    }
+
+    /**
+     * Returns an instance of an empty UtxoSet sized for the indicated number
+     * of outputs, so filling it does not have to grow the table.
+     * @param expected The number of outputs the set is expected to hold.
+     * @exception IllegalArgumentException If expected is negative or too large.
+     */
+    public UtxoSet(int expected) {
+        if (expected < 0 || expected > (MAX_SLOTS / 4) * 3) {
+            throw new IllegalArgumentException("Error: UTXO set cannot be sized for " + expected + " outputs!");
+        }
+        mTable = new long[slotsFor(expected) * STRIDE];
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the number of bytes taken by the table of the set.
+     * @return The size of the table in bytes.
+     */
+    public long getTableBytes() {
+        return (long) mTable.length * Long.BYTES;
+    }
+
+    //
+    // METHODS
+    //
+
+    @Override
+    protected void reset() {
+        mTable = new long[MIN_SLOTS * STRIDE];
+        nSize = 0;
+        mBestBlock = null;
+    }
+
+    /**
+     * The batch writes straight into the table, readers wait until it is
+     * committed or aborted.
+     */
+    @Override
+    protected void begin() {
+        changing();
+        bInBatch = true;
+        nImages = 0;
+        nBatchSize = nSize;
+        mBatchBestBlock = mBestBlock;
+    }
+
+    @Override
+    protected void commit() {
+        bInBatch = false;
+        nImages = 0;
+    }
+
+    /**
+     * Puts the before images back, the latest first, so every slot ends up
+     * with what it held before the batch.
+     */
+    @Override
+    protected void abort() {
+        for (int image = nImages - 1; image >= 0; image--) {
+            int from = image * IMAGE_STRIDE;
+            System.arraycopy(mImages, from + 1, mTable, (int) mImages[from] * STRIDE, STRIDE);
+        }
+        bInBatch = false;
+        nImages = 0;
+        nSize = nBatchSize;
+        mBestBlock = mBatchBestBlock;
+    }
+
+    @Override
+    protected int slots() {
+        return mTable.length / STRIDE;
+    }
+
+    @Override
+    protected long word(int slot, int word) {
+        return mTable[slot * STRIDE + word];
+    }
+
+    @Override
+    protected void write(int slot, long t0, long t1, long t2, long t3, long meta) {
+        int offset = slot * STRIDE;
+        if (bInBatch) {
+            if ((nImages + 1) * IMAGE_STRIDE > mImages.length) {
+                mImages = Arrays.copyOf(mImages, mImages.length * 2);
+            }
+            int image = nImages++ * IMAGE_STRIDE;
+            mImages[image] = slot;
+            System.arraycopy(mTable, offset, mImages, image + 1, STRIDE);
+        }
+        mTable[offset] = t0;
+        mTable[offset + 1] = t1;
+        mTable[offset + 2] = t2;
+        mTable[offset + 3] = t3;
+        mTable[offset + 4] = meta;
+    }
+
+    @Override
+    protected void resize(int slots) {
+        if (slots > MAX_SLOTS) {
+            throw new IllegalStateException("Error: UTXO set is full!");
+        }
+        changing();
+        long[] old = mTable;
+        mTable = new long[slots * STRIDE];
+        nSize = 0;
+        for (int offset = 0; offset < old.length; offset += STRIDE) {
+            if (old[offset + 4] != 0) {
+                put(old[offset], old[offset + 1], old[offset + 2], old[offset + 3], old[offset + 4]);
+            }
+        }
+    }
+
+} // end UtxoSet
@@ -0,0 +1,264 @@
+package jchain.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the average time of an operation the way a microbenchmark
+ * harness does: the operation is first run for a number of warmup
+ * iterations so the JIT has compiled it, then for a number of measured
+ * iterations of fixed length. Every iteration runs the operation in
+ * batches sized during warmup to take about a millisecond, so reading the
+ * clock does not distort short operations. The value each call returns is
+ * stored in a field, so it escapes and the JIT cannot drop the work that
+ * produced it as dead code.<br>
+ * Results are printed as one line per benchmark and parameter (mean time
+ * per operation, standard deviation across iterations, throughput) and can
+ * be written to a CSV file to compare runs.
+ */
+public class BenchmarkRunner {
+
+    //
+    // CONSTANTS
+    //
+
+    // The time a batch should take once warmup has sized it
+    private static final long BATCH_NANOS = 1_000_000L;
+
+    //
+    // FIELDS
+    //
+
+    private final int nWarmupIterations;
+    private final int nIterations;
+    private final long nIterationNanos;
+    // Only benchmarks whose name matches are run, null runs all
+    private final Pattern mFilter;
+    // Everything measured so far, in order
+    private final ArrayList<Result> mResults = new ArrayList<>();
+    // Receives the values the operations return, a plain field so storing costs no fence
+    private Object mSink = null;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a BenchmarkRunner.
+     * @param warmupIterations The number of iterations run before measuring.
+     * @param iterations The number of measured iterations.
+     * @param iterationMillis The length of every iteration in milliseconds.
+     * @param filter A regular expression benchmark names must contain to
+     *  be run, null to run every benchmark.
+     * @exception IllegalArgumentException If an iteration count is negative,
+     *  there are no measured iterations or the iteration length is not positive.
+     */
+    public BenchmarkRunner(int warmupIterations, int iterations, int iterationMillis, String filter) {
+        if (warmupIterations < 0 || iterations < 1) {
+            throw new IllegalArgumentException("Error: Benchmarks need at least one measured iteration!");
+        }
+        if (iterationMillis < 1) {
+            throw new IllegalArgumentException("Error: Benchmark iterations must last at least 1 ms!");
+        }
+        nWarmupIterations = warmupIterations;
+        nIterations = iterations;
+        nIterationNanos = iterationMillis * 1_000_000L;
+        mFilter = (filter == null) ? null : Pattern.compile(filter);
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the results of every benchmark run so far.
+     * @return The results in the order they were measured, the list cannot be modified.
+     */
+    public List<Result> getResults() {
+        return Collections.unmodifiableList(mResults);
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Determines whether a benchmark passes the filter, so its fixture only
+     * has to be built if it does.
+     * @param name The name of the benchmark.
+     * @return True if the benchmark would be run, false otherwise.
+     */
+    public boolean accepts(String name) {
+        return mFilter == null || mFilter.matcher(name).find();
+    }
+
+    /**
+     * Measures an operation and prints the result.
+     * @param name The name of the benchmark, usually Class.method.
+     * @param param The parameter value the fixture was built for, "-" if none.
+     * @param operation The operation, its return value is consumed.
+     * @return The result, null if the benchmark does not pass the filter.
+     */
+    public Result run(String name, String param, Supplier<?> operation) {
+        if (!accepts(name)) {
+            return null;
+        }
+        // start every benchmark from a clean heap so garbage from the last one is not collected on its time
+        System.gc();
+        int batch = calibrate(operation, 1);
+        for (int i = 0; i < nWarmupIterations; i++) {
+            iteration(operation, batch);
+            // compiled code is faster, the batch may have to grow
+            batch = calibrate(operation, batch);
+        }
+        double[] nanosPerOp = new double[nIterations];
+        for (int i = 0; i < nIterations; i++) {
+            long[] measured = iteration(operation, batch);
+            nanosPerOp[i] = (double) measured[0] / measured[1];
+        }
+        Result result = new Result(name, param, nanosPerOp);
+        mResults.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Prints the header line of the result table.
+     */
+    public void printHeader() {
+        System.out.println(String.format("%-28s %10s %14s %12s %14s", "Benchmark", "Param", "ns/op", "stdev", "ops/s"));
+    }
+
+    /**
+     * Writes every result so far to a CSV file.
+     * @param file The file to write, it is replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("benchmark,param,ns_per_op,stdev,ops_per_s,iterations");
+            for (Result result : mResults) {
+                out.println(String.format("%s,%s,%.3f,%.3f,%.1f,%d", result.getName(), result.getParam(),
+                    result.getMean(), result.getStandardDeviation(), result.getThroughput(), nIterations));
+            }
+        }
+    }
+
+    /**
+     * Runs batches for one iteration.
+     * @return The elapsed nanoseconds and the number of operations run.
+     */
+    private long[] iteration(Supplier<?> operation, int batch) {
+        long operations = 0;
+        long started = System.nanoTime();
+        long elapsed;
+        do {
+            runBatch(operation, batch);
+            operations += batch;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < nIterationNanos);
+        return new long[] {elapsed, operations};
+    }
+
+    /**
+     * Doubles the batch size until a batch takes about BATCH_NANOS.
+     */
+    private int calibrate(Supplier<?> operation, int batch) {
+        while (batch < (1 << 24)) {
+            long started = System.nanoTime();
+            runBatch(operation, batch);
+            if (System.nanoTime() - started >= BATCH_NANOS) {
+                break;
+            }
+            batch *= 2;
+        }
+        return batch;
+    }
+
+    private void runBatch(Supplier<?> operation, int batch) {
+        for (int i = 0; i < batch; i++) {
+            mSink = operation.get();
+        }
+    }
+
+    /**
+     * The measurements of one benchmark at one parameter value.
+     */
+    public static final class Result {
+
+        private final String sName;
+        private final String sParam;
+        private final double nMean;
+        private final double nStandardDeviation;
+
+        private Result(String name, String param, double[] nanosPerOp) {
+            sName = name;
+            sParam = param;
+            double sum = 0;
+            for (double value : nanosPerOp) {
+                sum += value;
+            }
+            nMean = sum / nanosPerOp.length;
+            double squares = 0;
+            for (double value : nanosPerOp) {
+                squares += (value - nMean) * (value - nMean);
+            }
+            nStandardDeviation = (nanosPerOp.length > 1) ? Math.sqrt(squares / (nanosPerOp.length - 1)) : 0.0;
+        }
+
+        /**
+         * Gets the name of the benchmark.
+         * @return The benchmark name.
+         */
+        public String getName() {
+            return sName;
+        }
+
+        /**
+         * Gets the parameter value the benchmark was measured at.
+         * @return The parameter value, "-" if the benchmark has none.
+         */
+        public String getParam() {
+            return sParam;
+        }
+
+        /**
+         * Gets the mean time per operation across the measured iterations.
+         * @return The mean in nanoseconds.
+         */
+        public double getMean() {
+            return nMean;
+        }
+
+        /**
+         * Gets the standard deviation of the time per operation across the
+         * measured iterations.
+         * @return The standard deviation in nanoseconds.
+         */
+        public double getStandardDeviation() {
+            return nStandardDeviation;
+        }
+
+        /**
+         * Gets the number of operations per second at the mean time.
+         * @return The throughput in operations per second.
+         */
+        public double getThroughput() {
+            return 1e9 / nMean;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s %10s %14.1f %12.1f %14.1f", sName, sParam, nMean, nStandardDeviation, getThroughput());
+        }
+
+    } // end Result
+
+} // end BenchmarkRunner
@@ -0,0 +1,262 @@
+package jchain.bench;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jchain.bc.BC;
+import jchain.bc.Block;
+import jchain.bc.BlockTemplate;
+import jchain.bc.Header;
+import jchain.bc.Output;
+import jchain.bc.Transaction;
+import jchain.bench.ContentionRunner.Role;
+import jchain.net.MiningEngine;
+import jchain.net.TxnMemoryPool;
+import jchain.util.Hash256;
+import jchain.util.IllegalOperationException;
+import jchain.util.NoSuchBlockException;
+import jchain.util.NoSuchTransactionException;
+
+/**
+ * Benchmarks of TxnMemoryPool and BC under concurrent producers and
+ * consumers, reporting the throughput and latency percentiles of every
+ * kind of thread.
+ * <ul>
+ * <li>TxnMemoryPool: producers add transactions, miners take them with
+ * get(), relays check for known transactions with contains() and monitors
+ * poll count(). Every configuration runs with one shard and with SHARDS
+ * shards. Producers cycle through their own transactions, an add is a miss
+ * if the transaction is still in the pool, a get is a miss if the pool is
+ * empty and a contains is a miss if the transaction is not in the pool.</li>
+ * <li>BC: one thread adds a chain of blocks mined up front (the block tree
+ * has a single writer) while readers look up the blocks with
+ * getBlockByHash() and their transactions with getTransactionByHash(),
+ * with and without the transaction index. Readers only ask for what was
+ * already added. The run ends early when the writer runs out of blocks.</li>
+ * </ul>
+ * Usage: java -cp out jchain.bench.ContentionBenchmarks [options]
+ * <ul>
+ * <li>-filter {regex}: only runs the groups whose name contains a match.</li>
+ * <li>-csv {file}: also writes the results to a CSV file.</li>
+ * <li>-warmup {ms}, -time {ms}: the warmup and measured periods of every run.</li>
+ * <li>-quick: a short run for a smoke test, the numbers are not reliable.</li>
+ * </ul>
+ */
+public class ContentionBenchmarks {
+
+    //
+    // CONSTANTS
+    //
+
+    // The number of shards of the concurrent pool
+    public static final int SHARDS = 16;
+    // The transactions every pool producer cycles through
+    public static final int TXS_PER_PRODUCER = 4096;
+    // Threads per role: add, get, contains, count
+    public static final int[][] POOL_THREADS = {{1, 1, 0, 0}, {4, 1, 4, 1}, {8, 2, 16, 2}};
+    // Threads per reader role: getBlockByHash, getTransactionByHash
+    public static final int[][] CHAIN_READERS = {{1, 1}, {4, 4}, {16, 16}};
+    // The blocks the writer adds per run and the transactions in each
+    public static final int CHAIN_BLOCKS = 20000;
+    public static final int TXS_PER_BLOCK = 4;
+
+    public static final int DEFAULT_WARMUP_MILLIS = 1000;
+    public static final int DEFAULT_MEASURE_MILLIS = 3000;
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Runs the benchmarks.
+     * @param args The options, see the class description.
+     * @throws IOException If the CSV file cannot be written.
+     * @throws InterruptedException If interrupted while waiting on the benchmark threads.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int warmup = DEFAULT_WARMUP_MILLIS;
+        int millis = DEFAULT_MEASURE_MILLIS;
+        int blocks = CHAIN_BLOCKS;
+        String filter = null;
+        String csv = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-filter":
+                    filter = args[++i];
+                    break;
+                case "-csv":
+                    csv = args[++i];
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-time":
+                    millis = Integer.parseInt(args[++i]);
+                    break;
+                case "-quick":
+                    warmup = 200;
+                    millis = 300;
+                    blocks = 4000;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Error: Unknown benchmark option " + args[i] + "!");
+            }
+        }
+        ContentionRunner runner = new ContentionRunner(warmup, millis, filter);
+        System.out.println(String.format("%d ms warmup and %d ms measured per run, %s %s, %d processor(s)",
+            warmup, millis, System.getProperty("java.vm.name"), System.getProperty("java.version"),
+            Runtime.getRuntime().availableProcessors()));
+        runner.printHeader();
+        runPool(runner);
+        runChain(runner, blocks);
+        if (csv != null) {
+            runner.writeCsv(Paths.get(csv));
+        }
+    }
+
+    /**
+     * Runs the TxnMemoryPool group in every thread configuration, with one
+     * shard and with SHARDS shards.
+     * @param runner The runner to measure with.
+     * @throws InterruptedException If interrupted while waiting on the benchmark threads.
+     */
+    public static void runPool(ContentionRunner runner) throws InterruptedException {
+        if (!runner.accepts("TxnMemoryPool")) {
+            return;
+        }
+        int maxProducers = 0;
+        for (int[] threads : POOL_THREADS) {
+            maxProducers = Math.max(maxProducers, threads[0]);
+        }
+        Transaction[][] txs = poolTransactions(maxProducers);
+        for (int[] threads : POOL_THREADS) {
+            for (int shards : new int[] {1, SHARDS}) {
+                TxnMemoryPool pool = new TxnMemoryPool(TxnMemoryPool.MAX_POOL_SIZE, shards);
+                int producers = threads[0];
+                runner.run("TxnMemoryPool", "shards=" + shards,
+                    new Role("add", producers, index -> {
+                        Transaction[] own = txs[index];
+                        int[] next = {0};
+                        return () -> {
+                            try {
+                                pool.add(own[next[0]++ % own.length]);
+                                return ContentionRunner.OK;
+                            } catch (IllegalOperationException ex) {
+                                return ContentionRunner.MISS;
+                            }
+                        };
+                    }),
+                    new Role("get", threads[1], index -> () -> {
+                        try {
+                            pool.get();
+                            return ContentionRunner.OK;
+                        } catch (IllegalOperationException ex) {
+                            return ContentionRunner.MISS;
+                        }
+                    }),
+                    new Role("contains", threads[2], index -> () -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        Transaction tx = txs[random.nextInt(producers)][random.nextInt(TXS_PER_PRODUCER)];
+                        return pool.contains(tx.getHash()) ? ContentionRunner.OK : ContentionRunner.MISS;
+                    }),
+                    new Role("count", threads[3], index -> () -> {
+                        return (pool.count() > 0) ? ContentionRunner.OK : ContentionRunner.MISS;
+                    }));
+            }
+        }
+    }
+
+    /**
+     * Runs the BC group in every reader configuration, with and without the
+     * transaction index.
+     * @param runner The runner to measure with.
+     * @param blocks The number of blocks the writer adds per run.
+     * @throws InterruptedException If interrupted while waiting on the benchmark threads.
+     */
+    public static void runChain(ContentionRunner runner, int blocks) throws InterruptedException {
+        if (!runner.accepts("BC")) {
+            return;
+        }
+        Block[] chain = mineChain(blocks);
+        for (int[] readers : CHAIN_READERS) {
+            for (boolean indexed : new boolean[] {true, false}) {
+                // every run replays the same chain onto a new block tree
+                BC bc = new BC(chain[0]);
+                if (indexed) {
+                    bc.enableTransactionIndex();
+                }
+                int[] next = {1};
+                // readers pick from the first getHeight() blocks, which have been added
+                runner.run("BC", indexed ? "txindex" : "scan",
+                    new Role("addBlock", 1, index -> () -> {
+                        if (next[0] == chain.length) {
+                            return ContentionRunner.DONE;
+                        }
+                        bc.addBlock(chain[next[0]++]);
+                        return ContentionRunner.OK;
+                    }),
+                    new Role("getBlockByHash", readers[0], index -> () -> {
+                        Block block = chain[ThreadLocalRandom.current().nextInt(bc.getHeight())];
+                        try {
+                            bc.getBlockByHash(block.getHash());
+                            return ContentionRunner.OK;
+                        } catch (NoSuchBlockException ex) {
+                            return ContentionRunner.MISS;
+                        }
+                    }),
+                    new Role("getTransactionByHash", readers[1], index -> () -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        Block block = chain[random.nextInt(bc.getHeight())];
+                        try {
+                            bc.getTransactionByHash(block.getTransaction(random.nextInt(block.getTransactionCount())).getHash());
+                            return ContentionRunner.OK;
+                        } catch (NoSuchTransactionException ex) {
+                            return ContentionRunner.MISS;
+                        }
+                    }));
+            }
+        }
+    }
+
+    /**
+     * Generates distinct transactions for every pool producer.
+     */
+    private static Transaction[][] poolTransactions(int producers) {
+        Transaction[][] txs = new Transaction[producers][TXS_PER_PRODUCER];
+        Random random = new Random(TXS_PER_PRODUCER);
+        for (int p = 0; p < producers; p++) {
+            for (int i = 0; i < TXS_PER_PRODUCER; i++) {
+                // vary the fee so the pool has something to order by
+                txs[p][i] = new Transaction(new String[] {"P" + p + ":" + (1000 + random.nextInt(10000))},
+                    new Output[] {new Output(1000, 0, "tx " + i)});
+            }
+        }
+        return txs;
+    }
+
+    /**
+     * Mines a chain of blocks on top of a genesis block.
+     * @return The genesis block followed by the indicated number of blocks.
+     */
+    private static Block[] mineChain(int blocks) throws InterruptedException {
+        Block[] chain = new Block[blocks + 1];
+        ArrayList<Transaction> genesis = new ArrayList<>();
+        genesis.add(new Transaction(new String[] {"A:5000"}, new Output[] {new Output(5000, 0, "genesis tx")}));
+        chain[0] = new Block(genesis, new Header(Hash256.ZERO, genesis, 0));
+        MiningEngine engine = MiningEngine.getInstance();
+        for (int height = 1; height <= blocks; height++) {
+            ArrayList<Transaction> txList = new ArrayList<>(TXS_PER_BLOCK);
+            for (int i = 0; i < TXS_PER_BLOCK; i++) {
+                txList.add(new Transaction(new String[] {"B" + height + ":" + (1000 + i)},
+                    new Output[] {new Output(900, 0, "block " + height)}));
+            }
+            BlockTemplate template = new BlockTemplate(chain[height - 1].getHash(), txList);
+            chain[height] = template.block((int) engine.mine(template.getBinaryHeader(), Header.target()));
+        }
+        return chain;
+    }
+
+} // end ContentionBenchmarks
@@ -0,0 +1,414 @@
+package jchain.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Measures operations that run at the same time on shared state, the way a
+ * microbenchmark harness measures a group of threads: every Role runs its
+ * operation on its own threads, all roles start together, run through a
+ * warmup period and are then measured for a fixed period.<br>
+ * Every call is timed, so besides the throughput of each role the results
+ * hold latency percentiles, which is where lock contention shows first.
+ * The latencies are recorded into a LatencyHistogram per thread, the
+ * threads share nothing but the state under test and the phase flag.<br>
+ * An operation reports whether it did its work or missed (e.g. an empty
+ * pool or a duplicate transaction), misses are timed like any other call
+ * and counted separately. An operation that runs out of input ends the
+ * measurement early, the throughput covers the shortened period.
+ */
+public class ContentionRunner {
+
+    //
+    // CONSTANTS
+    //
+
+    // The outcomes of an operation
+    public static final int OK = 0;
+    public static final int MISS = 1;
+    public static final int DONE = 2;
+
+    // The phases of a run, the threads only record while measuring
+    private static final int WARMUP = 0;
+    private static final int MEASURE = 1;
+    private static final int STOP = 2;
+
+    // The percentiles reported for every role
+    public static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    //
+    // FIELDS
+    //
+
+    private final long nWarmupMillis;
+    private final long nMeasureMillis;
+    // Only groups whose name matches are run, null runs all
+    private final Pattern mFilter;
+    // Everything measured so far, in order
+    private final ArrayList<Result> mResults = new ArrayList<>();
+    // The phase of the current run, read by every role thread on every call
+    private volatile int nPhase;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a ContentionRunner.
+     * @param warmupMillis The length of the warmup period in milliseconds.
+     * @param measureMillis The length of the measured period in milliseconds.
+     * @param filter A regular expression group names must contain to be
+     *  run, null to run every group.
+     * @exception IllegalArgumentException If warmupMillis is negative or
+     *  measureMillis is not positive.
+     */
+    public ContentionRunner(int warmupMillis, int measureMillis, String filter) {
+        if (warmupMillis < 0 || measureMillis < 1) {
+            throw new IllegalArgumentException("Error: Contention benchmarks must be measured for at least 1 ms!");
+        }
+        nWarmupMillis = warmupMillis;
+        nMeasureMillis = measureMillis;
+        mFilter = (filter == null) ? null : Pattern.compile(filter);
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the results of every group run so far, one per role.
+     * @return The results in the order they were measured, the list cannot be modified.
+     */
+    public List<Result> getResults() {
+        return Collections.unmodifiableList(mResults);
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Determines whether a group passes the filter, so its fixture only
+     * has to be built if it does.
+     * @param group The name of the group.
+     * @return True if the group would be run, false otherwise.
+     */
+    public boolean accepts(String group) {
+        return mFilter == null || mFilter.matcher(group).find();
+    }
+
+    /**
+     * Runs the roles of a group against each other and prints a result per role.
+     * @param group The name of the group, usually the class under test.
+     * @param param The configuration the fixture was built for, "-" if none.
+     * @param roles The roles, roles without threads are skipped.
+     * @return The results, one per role with threads, empty if the group
+     *  does not pass the filter.
+     * @throws InterruptedException If interrupted while waiting on the role threads.
+     * @exception IllegalStateException If an operation throws.
+     */
+    public List<Result> run(String group, String param, Role... roles) throws InterruptedException {
+        ArrayList<Result> results = new ArrayList<>();
+        if (!accepts(group)) {
+            return results;
+        }
+        System.gc();
+        ArrayList<Worker> workers = new ArrayList<>();
+        for (Role role : roles) {
+            for (int i = 0; i < role.nThreads; i++) {
+                workers.add(new Worker(role, i));
+            }
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        // counted down by the first worker to stop on its own, which ends the run
+        CountDownLatch finished = new CountDownLatch(1);
+        Thread[] threads = new Thread[workers.size()];
+        nPhase = WARMUP;
+        for (int i = 0; i < threads.length; i++) {
+            Worker worker = workers.get(i);
+            threads[i] = new Thread(() -> worker.loop(start, finished), "jchain-bench-" + worker.mRole.sName + "-" + worker.nIndex);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        start.countDown();
+        finished.await(nWarmupMillis, TimeUnit.MILLISECONDS);
+        long started = System.nanoTime();
+        nPhase = MEASURE;
+        finished.await(nMeasureMillis, TimeUnit.MILLISECONDS);
+        long elapsed = System.nanoTime() - started;
+        nPhase = STOP;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Worker worker : workers) {
+            if (worker.mFailure != null) {
+                throw new IllegalStateException("Error: Contention benchmark " + group + " failed in " + worker.mRole.sName + "!", worker.mFailure);
+            }
+            if (worker.bOutOfInputInWarmup) {
+                throw new IllegalStateException("Error: Contention benchmark " + group + " ran out of input during warmup!");
+            }
+        }
+        for (Role role : roles) {
+            if (role.nThreads == 0) {
+                continue;
+            }
+            LatencyHistogram latencies = new LatencyHistogram();
+            long misses = 0;
+            for (Worker worker : workers) {
+                if (worker.mRole == role) {
+                    latencies.add(worker.mLatencies);
+                    misses += worker.nMisses;
+                }
+            }
+            Result result = new Result(group, param, role, latencies, misses, elapsed);
+            results.add(result);
+            mResults.add(result);
+            System.out.println(result);
+        }
+        return results;
+    }
+
+    /**
+     * Prints the header line of the result table.
+     */
+    public void printHeader() {
+        System.out.println(String.format("%-16s %-12s %-22s %4s %12s %6s %10s %10s %10s %10s %10s",
+            "Group", "Param", "Role", "Thr", "ops/s", "miss%", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "max ns"));
+    }
+
+    /**
+     * Writes every result so far to a CSV file.
+     * @param file The file to write, it is replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("group,param,role,threads,ops_per_s,misses,p50_ns,p90_ns,p99_ns,p999_ns,max_ns,seconds");
+            for (Result result : mResults) {
+                out.println(String.format("%s,%s,%s,%d,%.1f,%d,%d,%d,%d,%d,%d,%.3f", result.getGroup(), result.getParam(),
+                    result.getRole(), result.getThreads(), result.getThroughput(), result.getMisses(),
+                    result.getPercentile(50), result.getPercentile(90), result.getPercentile(99),
+                    result.getPercentile(99.9), result.getMax(), result.getSeconds()));
+            }
+        }
+    }
+
+    /**
+     * An operation run over and over by the threads of a role.
+     */
+    @FunctionalInterface
+    public interface Operation {
+
+        /**
+         * Runs the operation once.
+         * @return OK if it did its work, MISS if it had nothing to do or
+         *  was rejected, DONE if it ran out of input.
+         * @throws Exception If the operation failed, the run is aborted.
+         */
+        int run() throws Exception;
+
+    } // end Operation
+
+    /**
+     * A kind of thread in a group: a name, a number of threads and the
+     * operation each of them runs.
+     */
+    public static final class Role {
+
+        private final String sName;
+        private final int nThreads;
+        private final IntFunction<Operation> mFactory;
+
+        /**
+         * Returns an instance of a Role.
+         * @param name The name of the role, usually the method under test.
+         * @param threads The number of threads, 0 leaves the role out.
+         * @param factory Creates the operation of every thread from the
+         *  thread's index in the role, so each thread can have its own state.
+         * @exception IllegalArgumentException If threads is negative.
+         */
+        public Role(String name, int threads, IntFunction<Operation> factory) {
+            if (threads < 0) {
+                throw new IllegalArgumentException("Error: A role cannot have a negative number of threads!");
+            }
+            sName = name;
+            nThreads = threads;
+            mFactory = factory;
+        }
+
+    } // end Role
+
+    /**
+     * One thread of a role and what it measured.
+     */
+    private final class Worker {
+
+        private final Role mRole;
+        private final int nIndex;
+        private final LatencyHistogram mLatencies = new LatencyHistogram();
+        private long nMisses = 0;
+        private Exception mFailure = null;
+        private boolean bOutOfInputInWarmup = false;
+
+        private Worker(Role role, int index) {
+            mRole = role;
+            nIndex = index;
+        }
+
+        private void loop(CountDownLatch start, CountDownLatch finished) {
+            try {
+                Operation operation = mRole.mFactory.apply(nIndex);
+                start.await();
+                int phase;
+                while ((phase = nPhase) != STOP) {
+                    long started = System.nanoTime();
+                    int outcome = operation.run();
+                    long latency = System.nanoTime() - started;
+                    if (outcome == DONE) {
+                        bOutOfInputInWarmup = phase == WARMUP;
+                        break;
+                    }
+                    if (phase == MEASURE) {
+                        mLatencies.record(latency);
+                        if (outcome == MISS) {
+                            nMisses++;
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                mFailure = ex;
+            } finally {
+                // a worker that stops on its own ends the run for everyone
+                finished.countDown();
+            }
+        }
+
+    } // end Worker
+
+    /**
+     * The measurements of one role of a group.
+     */
+    public static final class Result {
+
+        private final String sGroup;
+        private final String sParam;
+        private final String sRole;
+        private final int nThreads;
+        private final LatencyHistogram mLatencies;
+        private final long nMisses;
+        private final long nElapsedNanos;
+
+        private Result(String group, String param, Role role, LatencyHistogram latencies, long misses, long elapsedNanos) {
+            sGroup = group;
+            sParam = param;
+            sRole = role.sName;
+            nThreads = role.nThreads;
+            mLatencies = latencies;
+            nMisses = misses;
+            nElapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Gets the name of the group.
+         * @return The group name.
+         */
+        public String getGroup() {
+            return sGroup;
+        }
+
+        /**
+         * Gets the configuration the group was measured at.
+         * @return The configuration, "-" if the group has none.
+         */
+        public String getParam() {
+            return sParam;
+        }
+
+        /**
+         * Gets the name of the role.
+         * @return The role name.
+         */
+        public String getRole() {
+            return sRole;
+        }
+
+        /**
+         * Gets the number of threads that ran the role.
+         * @return The thread count.
+         */
+        public int getThreads() {
+            return nThreads;
+        }
+
+        /**
+         * Gets the number of calls made by all threads of the role while measuring.
+         * @return The number of calls.
+         */
+        public long getOperations() {
+            return mLatencies.getCount();
+        }
+
+        /**
+         * Gets the number of those calls that missed.
+         * @return The number of misses.
+         */
+        public long getMisses() {
+            return nMisses;
+        }
+
+        /**
+         * Gets the length of the measured period.
+         * @return The length in seconds.
+         */
+        public double getSeconds() {
+            return nElapsedNanos / 1e9;
+        }
+
+        /**
+         * Gets the calls per second of all threads of the role together.
+         * @return The throughput in operations per second.
+         */
+        public double getThroughput() {
+            return getOperations() / getSeconds();
+        }
+
+        /**
+         * Gets a latency percentile of the calls.
+         * @param percentile The percentile in [0, 100].
+         * @return The latency in nanoseconds, see LatencyHistogram.getPercentile.
+         */
+        public long getPercentile(double percentile) {
+            return mLatencies.getPercentile(percentile);
+        }
+
+        /**
+         * Gets the largest latency of any call.
+         * @return The latency in nanoseconds.
+         */
+        public long getMax() {
+            return mLatencies.getMax();
+        }
+
+        @Override
+        public String toString() {
+            double missed = (getOperations() == 0) ? 0.0 : 100.0 * nMisses / getOperations();
+            StringBuilder sb = new StringBuilder(String.format("%-16s %-12s %-22s %4d %12.1f %6.1f",
+                sGroup, sParam, sRole, nThreads, getThroughput(), missed));
+            for (double percentile : PERCENTILES) {
+                sb.append(String.format(" %10d", getPercentile(percentile)));
+            }
+            return sb.append(String.format(" %10d", getMax())).toString();
+        }
+
+    } // end Result
+
+} // end ContentionRunner
@@ -0,0 +1,176 @@
+package jchain.bench;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import jchain.bc.Block;
+import jchain.bc.Header;
+import jchain.bc.Output;
+import jchain.bc.Transaction;
+import jchain.util.BCUtil;
+import jchain.util.Hash256;
+import jchain.util.MerkleTree;
+
+/**
+ * Benchmarks of the hashing and Merkle tree paths every block goes through:
+ * BCUtil.doubleHash, MerkleTree construction and lookups, Header and Block
+ * construction and Transaction hashing and sizing. Each benchmark runs at
+ * the parameter values that matter for it (message size, number of
+ * leaves, number of transactions or inputs), every fixture is built before
+ * its benchmark and is not part of the measured time.<br>
+ * Usage: java -cp out jchain.bench.CoreBenchmarks [options]
+ * <ul>
+ * <li>-filter {regex}: only runs the benchmarks whose name contains a match.</li>
+ * <li>-csv {file}: also writes the results to a CSV file.</li>
+ * <li>-warmup {n}, -iterations {n}, -time {ms}: warmup iterations,
+ * measured iterations and the length of an iteration.</li>
+ * <li>-quick: a short run for a smoke test, the numbers are not reliable.</li>
+ * </ul>
+ */
+public class CoreBenchmarks {
+
+    //
+    // CONSTANTS
+    //
+
+    // Message sizes: a block header, a typical transaction, a large transaction
+    public static final int[] MESSAGE_SIZES = {80, 1024, 16384};
+    // Merkle tree sizes
+    public static final int[] LEAF_COUNTS = {10000, 50000, 100000};
+    // Block sizes in transactions
+    public static final int[] TX_COUNTS = {10, 1000};
+    // Transaction sizes in inputs
+    public static final int[] INPUT_COUNTS = {1, 16};
+
+    public static final int DEFAULT_WARMUP_ITERATIONS = 5;
+    public static final int DEFAULT_ITERATIONS = 10;
+    public static final int DEFAULT_ITERATION_MILLIS = 500;
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Runs the benchmarks.
+     * @param args The options, see the class description.
+     * @throws IOException If the CSV file cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        int warmup = DEFAULT_WARMUP_ITERATIONS;
+        int iterations = DEFAULT_ITERATIONS;
+        int millis = DEFAULT_ITERATION_MILLIS;
+        String filter = null;
+        String csv = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-filter":
+                    filter = args[++i];
+                    break;
+                case "-csv":
+                    csv = args[++i];
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-time":
+                    millis = Integer.parseInt(args[++i]);
+                    break;
+                case "-quick":
+                    warmup = 1;
+                    iterations = 3;
+                    millis = 100;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Error: Unknown benchmark option " + args[i] + "!");
+            }
+        }
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, millis, filter);
+        System.out.println(String.format("%d warmup and %d measured iterations of %d ms, %s %s, %d processor(s)",
+            warmup, iterations, millis, System.getProperty("java.vm.name"), System.getProperty("java.version"),
+            Runtime.getRuntime().availableProcessors()));
+        runner.printHeader();
+        run(runner);
+        if (csv != null) {
+            runner.writeCsv(Paths.get(csv));
+        }
+    }
+
+    /**
+     * Runs every benchmark that passes the runner's filter.
+     * @param runner The runner to measure with.
+     */
+    public static void run(BenchmarkRunner runner) {
+        BCUtil util = BCUtil.getInstance();
+        for (int size : MESSAGE_SIZES) {
+            byte[] message = new byte[size];
+            Arrays.fill(message, (byte) size);
+            runner.run("BCUtil.doubleHash", size + "B", () -> util.doubleHash(message));
+        }
+        for (int leaves : LEAF_COUNTS) {
+            if (!accepts(runner, "MerkleTree.<init>", "MerkleTree.contains", "MerkleTree.get")) {
+                break;
+            }
+            ArrayList<Transaction> txList = transactions(leaves, 1);
+            runner.run("MerkleTree.<init>", String.valueOf(leaves), () -> new MerkleTree<>(txList));
+            MerkleTree<Transaction> tree = new MerkleTree<>(txList);
+            Hash256[] hashes = new Hash256[leaves];
+            for (int i = 0; i < leaves; i++) {
+                hashes[i] = txList.get(i).getHash();
+            }
+            // walk the leaves in order, one lookup per call
+            int[] next = {0};
+            runner.run("MerkleTree.contains", String.valueOf(leaves), () -> tree.contains(hashes[next[0]++ % leaves]));
+            runner.run("MerkleTree.get", String.valueOf(leaves), () -> tree.get(hashes[next[0]++ % leaves]));
+        }
+        Hash256 root = util.doubleHash256(new byte[] {1});
+        runner.run("Header.<init>(root)", "-", () -> new Header(Hash256.ZERO, root, 0, BCUtil.now()));
+        for (int count : TX_COUNTS) {
+            if (!accepts(runner, "Header.<init>(txs)", "Block.<init>")) {
+                break;
+            }
+            ArrayList<Transaction> txList = transactions(count, 1);
+            runner.run("Header.<init>(txs)", String.valueOf(count), () -> new Header(Hash256.ZERO, txList, 0));
+            Header header = new Header(Hash256.ZERO, txList, 0);
+            runner.run("Block.<init>", String.valueOf(count), () -> new Block(txList, header));
+        }
+        for (int inputs : INPUT_COUNTS) {
+            Transaction tx = transactions(1, inputs).get(0);
+            runner.run("Transaction.computeHash", inputs + "in", () -> tx.computeHash());
+            runner.run("Transaction.bytes", inputs + "in", () -> tx.bytes());
+        }
+    }
+
+    /**
+     * Determines whether any of the benchmarks sharing a fixture will run,
+     * the fixture is not built otherwise.
+     */
+    private static boolean accepts(BenchmarkRunner runner, String... names) {
+        for (String name : names) {
+            if (runner.accepts(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates distinct transactions with the indicated number of inputs and two outputs each.
+     */
+    private static ArrayList<Transaction> transactions(int count, int inputs) {
+        ArrayList<Transaction> txList = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String[] in = new String[inputs];
+            for (int j = 0; j < inputs; j++) {
+                in[j] = "bench" + i + "-" + j + ":" + (1000 + j);
+            }
+            txList.add(new Transaction(in, new Output[] {new Output(600, 0, "bench"), new Output(400, 1, "bench")}));
+        }
+        return txList;
+    }
+
+} // end CoreBenchmarks
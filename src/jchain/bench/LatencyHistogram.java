@@ -0,0 +1,138 @@
+package jchain.bench;
+
+import java.util.Arrays;
+
+/**
+ * Counts latencies in logarithmic buckets so percentiles can be read from
+ * millions of samples without keeping them.<br>
+ * Values below 32 have a bucket each. Above that, every power of two is
+ * split into 16 buckets, so a reported percentile is at most 1/16 above
+ * the latency it stands for. Recording a value is an array increment and
+ * never allocates. A LatencyHistogram is not thread-safe, every thread
+ * records into its own and the histograms are merged afterwards.
+ */
+public class LatencyHistogram {
+
+    //
+    // CONSTANTS
+    //
+
+    // The number of bits of a value that select its bucket
+    private static final int SUB_BITS = 5;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    // Enough buckets for any positive long
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    //
+    // FIELDS
+    //
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long nCount = 0;
+    private long nMax = 0;
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the number of values recorded.
+     * @return The count.
+     */
+    public long getCount() {
+        return nCount;
+    }
+
+    /**
+     * Gets the largest value recorded, exactly.
+     * @return The largest value, 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return nMax;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Records a value.
+     * @param value The value, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts[bucket(value)]++;
+        nCount++;
+        if (value > nMax) {
+            nMax = value;
+        }
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     * @param other The histogram to add, it is not changed.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        nCount += other.nCount;
+        nMax = Math.max(nMax, other.nMax);
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        nCount = 0;
+        nMax = 0;
+    }
+
+    /**
+     * Gets the value below or at which the indicated share of the recorded
+     * values lie.
+     * @param percentile The share in percent, in [0, 100].
+     * @return The upper end of the bucket holding the percentile, never
+     *  above the largest value, 0 if nothing was recorded.
+     * @exception IllegalArgumentException If percentile is not in [0, 100].
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Error: Percentile must be between 0 and 100!");
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * nCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), nMax);
+            }
+        }
+        return nMax;
+    }
+
+    /**
+     * Gets the bucket of a value: the value itself below 2 * HALF, else
+     * the top SUB_BITS bits of the value offset by its magnitude.
+     */
+    private static int bucket(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * Gets the largest value that falls into a bucket.
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < 2 * HALF) {
+            return bucket;
+        }
+        int shift = bucket / HALF - 1;
+        long top = bucket - shift * HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+} // end LatencyHistogram
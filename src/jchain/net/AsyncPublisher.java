@@ -0,0 +1,323 @@
+package jchain.net;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import jchain.net.Publisher;
+import jchain.net.Subscriber;
+
+/**
+ * A Publisher that delivers items asynchronously. Every subscriber gets its
+ * own bounded queue, push() only enqueues and returns, and a small shared
+ * pool of delivery threads calls receive().<br>
+ * A queue is drained by at most one delivery thread at a time, so each
+ * subscriber still sees items one at a time and in push order. A thread
+ * delivers at most BATCH_SIZE items before moving on to the next queue, so
+ * a slow subscriber only delays itself, not the subscribers behind it.
+ * This lets hundreds of subscribers share a handful of threads.<br>
+ * What happens when a subscriber's queue is full is set by the Overflow
+ * policy. Items that are dropped or rejected are counted and passed to an
+ * optional overflow listener.
+ */
+public class AsyncPublisher<V> implements Publisher<V>, Closeable {
+
+    //
+    // CONSTANTS
+    //
+
+    // The default capacity of a subscriber queue
+    public static final int DEFAULT_CAPACITY = 1024;
+    // A delivery thread hands a queue back after this many items
+    public static final int BATCH_SIZE = 64;
+
+    /**
+     * What push() does when a subscriber's queue is full.
+     */
+    public enum Overflow {
+        // Wait for the subscriber to make room, nothing is lost
+        BLOCK,
+        // Discard the oldest queued item to make room
+        DROP_OLDEST,
+        // Do not queue the new item
+        REJECT
+    }
+
+    //
+    // FIELDS
+    //
+
+    private final int nCapacity;
+    private final Overflow mOverflow;
+    // Runs the delivery of every subscriber queue
+    private final ExecutorService mDelivery;
+    private final ConcurrentHashMap<Subscriber<V>, Mailbox> mMailboxes = new ConcurrentHashMap<>();
+    // Told about every item that was dropped or rejected, may be null
+    private volatile BiConsumer<Subscriber<V>, V> mOverflowListener;
+    // The number of items dropped or rejected
+    private final LongAdder mOverflowed = new LongAdder();
+    private volatile boolean bClosed = false;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of an AsyncPublisher with the default queue
+     * capacity that blocks when a queue is full.
+     */
+    public AsyncPublisher() {
+        this(DEFAULT_CAPACITY, Overflow.BLOCK);
+    }
+
+    /**
+     * Returns an instance of an AsyncPublisher with one delivery thread per
+     * available processor, but at least two.
+     * @param capacity The capacity of each subscriber queue.
+     * @param overflow What to do when a subscriber queue is full.
+     */
+    public AsyncPublisher(int capacity, Overflow overflow) {
+        this(capacity, overflow, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Returns an instance of an AsyncPublisher.
+     * @param capacity The capacity of each subscriber queue.
+     * @param overflow What to do when a subscriber queue is full.
+     * @param threads The number of delivery threads.
+     * @exception IllegalArgumentException If capacity or threads is less than one, or overflow is null.
+     */
+    public AsyncPublisher(int capacity, Overflow overflow, int threads) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Error: Subscriber queue capacity must be at least one!");
+        }
+        if (overflow == null) {
+            throw new IllegalArgumentException("Error: Cannot create publisher without an overflow policy!");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Error: Publisher requires at least one delivery thread!");
+        }
+        nCapacity = capacity;
+        mOverflow = overflow;
+        mDelivery = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "jchain-publisher");
+            // don't keep the JVM alive just for deliveries
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Sets the listener told about every item that was dropped or rejected
+     * because a subscriber's queue was full.
+     * @param listener A listener, or null to remove it.
+     */
+    public void setOverflowListener(BiConsumer<Subscriber<V>, V> listener) {
+        mOverflowListener = listener;
+    }
+
+    /**
+     * Gets the number of items dropped or rejected so far.
+     * @return The number of items that overflowed a subscriber queue.
+     */
+    public long getOverflowCount() {
+        return mOverflowed.sum();
+    }
+
+    /**
+     * Gets the number of items waiting for delivery to a subscriber.
+     * @param subscriber A subscriber.
+     * @return The number of queued items, 0 if the subscriber is not subscribed.
+     */
+    public int getPending(Subscriber<V> subscriber) {
+        Mailbox mailbox = mMailboxes.get(subscriber);
+        return (mailbox == null) ? 0 : mailbox.mQueue.size();
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Queues an item for every subscriber.
+     * @param item The item to push.
+     */
+    @Override
+    public void push(V item) {
+        publish(item);
+    }
+
+    /**
+     * Queues an item for every subscriber.
+     * @param item The item to publish.
+     * @return The number of subscribers the item was queued for, with the
+     * REJECT policy this is less than the number of subscribers when
+     * queues were full.
+     * @exception IllegalArgumentException If item is null.
+     * @exception IllegalStateException If the publisher is closed.
+     */
+    public int publish(V item) {
+        if (item == null) {
+            throw new IllegalArgumentException("Error: Cannot publish a null item!");
+        }
+        if (bClosed) {
+            throw new IllegalStateException("Error: Cannot publish, publisher is closed!");
+        }
+        int queued = 0;
+        for (Mailbox mailbox : mMailboxes.values()) {
+            if (mailbox.offer(item)) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Subscribes the subscriber to receive items pushed by the publisher.
+     * @param subscriber A Subscriber to subscribe.
+     */
+    @Override
+    public void subscribe(Subscriber<V> subscriber) {
+        if (subscriber != null) {
+            mMailboxes.computeIfAbsent(subscriber, Mailbox::new);
+        }
+    }
+
+    /**
+     * Unsubscribes the subscriber, items still queued for it are discarded.
+     * @param subscriber A Subscriber to unsubscribe.
+     */
+    @Override
+    public void unsubscribe(Subscriber<V> subscriber) {
+        if (subscriber != null) {
+            Mailbox mailbox = mMailboxes.remove(subscriber);
+            if (mailbox != null) {
+                mailbox.mQueue.clear();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting items. Items already queued are still delivered, the
+     * delivery threads exit once the queues are empty.
+     */
+    @Override
+    public void close() {
+        bClosed = true;
+        mDelivery.shutdown();
+    }
+
+    private void overflowed(Subscriber<V> subscriber, V item) {
+        mOverflowed.increment();
+        BiConsumer<Subscriber<V>, V> listener = mOverflowListener;
+        if (listener != null) {
+            listener.accept(subscriber, item);
+        }
+    }
+
+    /**
+     * The queue of one subscriber and its delivery state.
+     */
+    private class Mailbox {
+
+        private final Subscriber<V> mSubscriber;
+        private final ArrayBlockingQueue<V> mQueue = new ArrayBlockingQueue<>(nCapacity);
+        // Set while a delivery thread owns this mailbox or is about to
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+
+        private Mailbox(Subscriber<V> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        /**
+         * Queues the item according to the overflow policy.
+         * @return True if the item was queued, false if it was rejected.
+         */
+        private boolean offer(V item) {
+            boolean queued = true;
+            switch (mOverflow) {
+                case BLOCK:
+                    try {
+                        while (!mQueue.offer(item, 10, TimeUnit.MILLISECONDS)) {
+                            // the subscriber is behind, make sure it is being served
+                            if (bClosed) {
+                                return false;
+                            }
+                            schedule();
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!mQueue.offer(item)) {
+                        V dropped = mQueue.poll();
+                        if (dropped != null) {
+                            overflowed(mSubscriber, dropped);
+                        }
+                    }
+                    break;
+                default:
+                    queued = mQueue.offer(item);
+                    if (!queued) {
+                        overflowed(mSubscriber, item);
+                    }
+                    break;
+            }
+            schedule();
+            return queued;
+        }
+
+        /**
+         * Hands the mailbox to a delivery thread unless one already owns it.
+         */
+        private void schedule() {
+            if (!mQueue.isEmpty() && mScheduled.compareAndSet(false, true)) {
+                try {
+                    mDelivery.execute(this::deliver);
+                } catch (RejectedExecutionException ex) {
+                    // the publisher was closed, deliver what is left on this thread
+                    deliver();
+                }
+            }
+        }
+
+        /**
+         * Delivers up to BATCH_SIZE items, then reschedules if more are queued.
+         */
+        private void deliver() {
+            try {
+                for (int i = 0; i < BATCH_SIZE || bClosed; i++) {
+                    V item = mQueue.poll();
+                    if (item == null) {
+                        break;
+                    }
+                    try {
+                        mSubscriber.receive(item);
+                    } catch (RuntimeException ex) {
+                        System.err.println("AsyncPublisher: Subscriber " + mSubscriber + " failed to receive item!");
+                        System.err.println(ex);
+                    }
+                }
+            } finally {
+                mScheduled.set(false);
+            }
+            // an item may have been queued after the last poll
+            schedule();
+        }
+
+    } // end Mailbox
+
+} // END AsyncPublisher
@@ -2,19 +2,20 @@ package jchain.net;
 
 import jchain.bc.BC;
 import jchain.bc.Block;
+import jchain.bc.BlockTemplate;
 import jchain.bc.Header;
 import jchain.bc.Output;
 import jchain.bc.Transaction;
+import jchain.net.MiningEngine;
+import jchain.net.MiningScheduler;
 import jchain.net.Subscriber;
 import jchain.net.TxnMemoryPool;
-import jchain.util.BCUtil;
-import jchain.util.IllegalOperationException;
 
-import java.math.BigInteger;
 import java.util.LinkedList;
 
 /**
- * Represents a miner in the jchain system. A Miner runs on its own thread of execution.
+ * Represents a miner in the jchain system. A Miner does not own a thread, 
+ * its mining rounds are run by a MiningScheduler.
  * @author Christen Ford
  * @since 4/15/2019
  */
@@ -38,8 +39,8 @@ public class Miner implements Subscriber<Transaction> {
     //  a chain that is longer than its own
     private BC mBC;
 
-    // The miners mining thread
-    private Thread mThread = null;
+    // Runs this miner's mining rounds
+    private MiningScheduler mScheduler;
     
     //
     // CONSTRUCTORS
@@ -61,10 +62,23 @@ public class Miner implements Subscriber<Transaction> {
      * @param poolSize A transaction pool size.
      */
     public Miner(BC chain, int poolSize) {
-        if (chain == null || chain.getHeight() == 0) {
+        this(chain, poolSize, MiningScheduler.getInstance());
+    }
+
+    /**
+     * Returns a new instance of a Miner with the specified pool size whose 
+     * mining is run by the given scheduler. Several miners may share one 
+     * scheduler.
+     * @param chain The Miners initial blockchain.
+     * @param poolSize A transaction pool size.
+     * @param scheduler The scheduler that runs the mining rounds.
+     */
+    public Miner(BC chain, int poolSize, MiningScheduler scheduler) {
+        if (chain == null || chain.getHeight() == 0 || scheduler == null) {
             throw new IllegalArgumentException();
         }
         mBC = chain;
+        mScheduler = scheduler;
         try {
             mPool = new TxnMemoryPool(poolSize);
         } catch (Exception ex) {
@@ -77,6 +91,14 @@ public class Miner implements Subscriber<Transaction> {
     // METHODS
     //
 
+    /**
+     * Gets the blockchain the miner extends.
+     * @return The miner's blockchain.
+     */
+    public BC getBlockchain() {
+        return mBC;
+    }
+
     /**
      * Receives broadcasted transactions and adds them to the pool.
      * @param tx A transaction to add to the pool.
@@ -86,13 +108,10 @@ public class Miner implements Subscriber<Transaction> {
             try {
                 System.out.println(String.format("Miner %s: Adding transaction with hash %s to the mining pool.", this, tx.getHash()));
                 mPool.add(tx);
-                // check if the mining thread needs (re)started
-                // Periodically wake up the miner
-                if ((mThread == null || !mThread.isAlive()) && 
-                        //mPool.size() >= MIN_TXNS
-                        Math.random() > .625) {
-                    mThread = new Thread(new MiningThread());
-                    mThread.start();
+                // Periodically wake up the miner, the scheduler ignores 
+                //  the call if this miner is already mining
+                if (Math.random() > .625) {
+                    mScheduler.wake(this);
                 }
             } catch (Exception ex) {
                 System.out.println("Transaction not added to pool:");
@@ -102,118 +121,122 @@ public class Miner implements Subscriber<Transaction> {
     }
 
     /**
-     * Defines a runnable object that performs mining as long as the 
-     * mining pool is not empty. Once empty the thread will terminate.
-     *
-     * Users of this runnable object should verify that the thread is dead using 
-     * instance.isAlive() to create a new runnable if necessary.
+     * Generates a coinbase transaction that is to be included in each block.
+     * @return Transaction A coinbase transaction.
      */
-    private class MiningThread implements Runnable {
+    public Transaction genCoinbaseTx() {
+        String[] inputs = new String[] {
+            "A:50000"
+        };
+        Output[] outputs = new Output[] {
+            new Output(50000, 0, "coinbase tx")
+        };
+        return new Transaction(inputs, outputs);
+    }
 
-        /**
-         * Generates a coinbase transaction that is to be included in each block.
-         * @return Transaction A coinbase transaction.
-         */
-        public Transaction genCoinbaseTx() {
-            String[] inputs = new String[] {
-                "A:50000"
-            };
-            Output[] outputs = new Output[] {
-                new Output(50000, 0, "coinbase tx")
-            };
-            return new Transaction(inputs, outputs);
+    /**
+     * Determines whether the miner has enough transactions to mine a block.
+     * @return True if the pool holds at least MIN_TXNS available transactions.
+     */
+    boolean hasWork() {
+        return mPool.count() >= MIN_TXNS;
+    }
+
+    /**
+     * Reserves transactions from the pool and builds a block template on 
+     * the current lead block. Called by the MiningScheduler.
+     * @return A round to mine, or null if the pool has no work.
+     */
+    Round prepare() {
+        if (!hasWork()) {
+            return null;
+        }
+        LinkedList<Transaction> txList = new LinkedList<Transaction>();
+        // generate the coinbase transaction
+        txList.add(genCoinbaseTx());
+        int txns = 0;
+        // Not entirely sure why +2 works here but it does, probably has to do with the coinbase transaction
+        if (mPool.count() < Block.MAX_TXNS-1) {
+            txns = (int)(mPool.count() * Math.random()) + 2;
+        } else {
+            txns = (int)((Block.MAX_TXNS-1) * Math.random()) + 2;
+        }
+        // reserve the best transactions in one go, they stay in the 
+        //  pool until the block is found or the template abandoned
+        TxnMemoryPool.Reservation reservation = mPool.reserve(txns - txList.size(), 
+            (Block.BLOCK_SIZE / 8) - txList.getFirst().bytes());
+        if (reservation.isEmpty()) {
+            return null;
         }
+        txList.addAll(reservation.getTransactions());
+        try {
+            // everything but the nonce is fixed for this template, so 
+            //  the Merkle root and the binary header midstate are built once
+            return new Round(new BlockTemplate(mBC.getLeadBlock().getHash(), txList), reservation);
+        } catch (RuntimeException ex) {
+            reservation.release();
+            throw ex;
+        }
+    }
 
-        // implements Proof-of-Work
-        public void run() {
-            // only mine if the pool is not empty
-            LinkedList<Transaction> mTxList = new LinkedList<Transaction>();
-            // nonce runs from min 0 to max int value
-            int nonce = 0;
-            // used for controlling the mining loop
-            boolean blockFound = false;
-            // loop until the number of blocks in the pool is less 
-            //  than the limit - 1 (because of coinbase)
-            while (mPool.count() >= MIN_TXNS) {
-                // reset the header information
-                mTxList.clear();
-                nonce = 0;
-                // reset control information
-                blockFound = false;
-                // generate the coinbase transaction
-                mTxList.add(genCoinbaseTx());
-                int txns = 0;
-                // Not entirely sure why +2 works here but it does, probably has to do with the coinbase transaction
-                if (mPool.count() < Block.MAX_TXNS-1) {
-                    txns = (int)(mPool.count() * Math.random()) + 2;
+    /**
+     * Finishes a round once its nonce search is over. Called by the 
+     * MiningScheduler.
+     * @param round The round prepared by prepare().
+     * @param nonce The winning nonce, or MiningEngine.NO_SOLUTION.
+     */
+    void complete(Round round, long nonce) {
+        try {
+            // Perform POW check
+            // a nonce found after the tip moved is worthless, skip building the block
+            if (nonce != MiningEngine.NO_SOLUTION 
+                    && round.getTemplate().getPreviousBlockHash().equals(mBC.getLeadBlock().getHash())) {
+                // create the block for the winning nonce, add it to bc, 
+                //  if another miner extended the chain first it only 
+                //  starts a side branch
+                Block block = round.getTemplate().block((int) nonce);
+                if (mBC.addBlock(block)) {
+                    // the transactions are mined, drop them from the pool
+                    round.mReservation.commit();
+                    // notify that a new block was found
+                    //  in reality this would be a broadcast
+                    System.out.println(String.format("Miner: Found new block with hash: %s, TX Count: %d", block.getHash(), block.getTransactionCount()));
                 } else {
-                    txns = (int)((Block.MAX_TXNS-1) * Math.random()) + 2;
-                }
-                // pull transactions till we reach the tx limit
-                while (mTxList.size() < txns) {
-                    try {
-                        mTxList.add(mPool.get());
-                    } catch (IllegalOperationException e) {
-                        System.err.println(e);
-                        e.printStackTrace();
-                        // dump all of the txs back into the pool
-                        for (Transaction tx : mTxList) {
-                            try {
-                                mPool.add(tx);
-                            } catch (IllegalOperationException f) {
-                                System.err.println(f);
-                            }
-                        }
-                        return;
-                    }
-                }
-                // step through the nonce values 
-                while (!blockFound && nonce < Integer.MAX_VALUE) {
-                    // generate a header
-                    Header header = new Header(
-                        mBC.getLeadBlock().getHash(),
-                        mTxList,
-                        // notice that the nonce is the only 
-                        //  value that changes here
-                        nonce
-                    );
-                    // check if header hash is less than target
-                    BigInteger hashVal = new BigInteger(header.getMiningHash(), 16);
-                    BigInteger target = Header.target();
-                    // NOTE: This is a debug statement, pull it out
-                    //  when done
-                    //System.out.println(String.format("Miner: POW %d < %d", hashVal, target));
-                    // Perform POW check
-                    if (hashVal.compareTo(target) < 0) {
-                        // set blockFound
-                        blockFound = true;
-                        // create a new block, add it to bc
-                        mBC.addBlock(new Block(mTxList, header));
-                        // notify that a new block was found
-                        //  in reality this would be a broadcast
-                        System.out.println(String.format("Miner: Found new block with hash: %s, TX Count: %d", mBC.getLeadBlock().getHash(), mBC.getLeadBlock().getTransactionCount()));
-                    }
-                    // increment the nonce
-                    nonce++;
-                }
-                // if blockfound is false, then we ran out of nonces
-                //  add the transactions back to the pool since 
-                //  TxnMemoryPool.get() removes them
-                if (!blockFound) {
-                    for (Transaction tx : mTxList) {
-                        try {
-                            mPool.add(tx);
-                        } catch (IllegalOperationException ex) {
-                            System.err.println("Miner.MiningThread: An exception occurred when adding transactions back to the pool!");
-                            continue;
-                        }
-                    }
+                    System.out.println(String.format("Miner %s: Block with hash %s was added to a side branch.", this, block.getHash()));
                 }
             }
-            // let go of the reference to help GC
-            mTxList = null;
+        } catch (IllegalArgumentException ex) {
+            System.out.println(String.format("Miner %s: %s", this, ex.getMessage()));
+        } finally {
+            // if the block did not make it onto the active chain (we ran 
+            //  out of nonces, the round was cancelled or the block was 
+            //  rejected), the transactions go back to the pool in their 
+            //  original order
+            round.mReservation.release();
         }
-
     }
 
+    /**
+     * One block template being mined and the transactions reserved for it.
+     */
+    static class Round {
+
+        private final BlockTemplate mTemplate;
+        private final TxnMemoryPool.Reservation mReservation;
+
+        private Round(BlockTemplate template, TxnMemoryPool.Reservation reservation) {
+            mTemplate = template;
+            mReservation = reservation;
+        }
+
+        /**
+         * Gets the block template of the round.
+         * @return The block template.
+         */
+        BlockTemplate getTemplate() {
+            return mTemplate;
+        }
+
+    } // end Round
+
 } // END MINER CLASS
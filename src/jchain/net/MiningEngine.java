@@ -0,0 +1,360 @@
+package jchain.net;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jchain.bc.BinaryHeader;
+import jchain.bc.Target;
+import jchain.util.SHA256;
+
+/**
+ * Searches the nonce space of a block template on a fixed pool of worker
+ * threads. The 32-bit nonce space is split into one contiguous range per
+ * worker, the first worker to find a nonce whose header hash is below the
+ * target wins and every other worker of that job stops.<br>
+ * The engine may be shared by several miners, each call to submit()
+ * creates an independent Job.
+ */
+public class MiningEngine {
+
+    //
+    // CONSTANTS
+    //
+
+    // Returned by Job.await() when no nonce was found
+    public static final long NO_SOLUTION = -1L;
+    // The number of nonces in the search space (the nonce is an unsigned 32-bit value)
+    public static final long NONCE_SPACE = 1L << 32;
+    // Workers publish their hash counts in batches of this size to avoid contention on the counter
+    private static final int REPORT_INTERVAL = 4096;
+
+    private static final MiningEngine mInstance = new MiningEngine();
+
+    //
+    // FIELDS
+    //
+
+    // Runs the nonce range workers
+    private final ExecutorService mWorkers;
+    // The number of ranges each template is split into
+    private final int nWorkers;
+    // Total hashes computed by this engine
+    private final LongAdder mHashes = new LongAdder();
+    // Guards the busy time below, jobs overlap so their times cannot simply be added up
+    private final Object mBusyLock = new Object();
+    // The number of jobs that have not finished yet
+    private int nActiveJobs = 0;
+    // When the engine last went from idle to running a job
+    private long nBusySince = 0;
+    // Total wall-clock time with at least one job running, in nanoseconds
+    private long nBusyNanos = 0;
+    // Set by shutdown(), checked by the workers between hash reports
+    private volatile boolean bShutdown = false;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a MiningEngine with one worker per available processor.
+     */
+    public MiningEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns an instance of a MiningEngine with the indicated number of workers.
+     * @param workers The number of worker threads.
+     * @exception IllegalArgumentException If workers is less than one.
+     */
+    public MiningEngine(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Error: Mining engine requires at least one worker!");
+        }
+        nWorkers = workers;
+        mWorkers = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "jchain-miner");
+            // don't keep the JVM alive just for the miners
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Returns the shared MiningEngine, sized to the number of available processors.
+     * @return A shared MiningEngine instance.
+     */
+    public static MiningEngine getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Gets the number of worker threads in this engine.
+     * @return The number of worker threads.
+     */
+    public int getWorkerCount() {
+        return nWorkers;
+    }
+
+    /**
+     * Gets the total number of hashes computed by this engine.
+     * @return The number of hashes computed so far.
+     */
+    public long getHashCount() {
+        return mHashes.sum();
+    }
+
+    /**
+     * Gets the aggregate hashrate of this engine across all workers,
+     * measured over the wall-clock time the engine had at least one job
+     * running. Time during which several jobs ran is only counted once.
+     * @return The hashrate in hashes per second.
+     */
+    public double getHashRate() {
+        long nanos;
+        synchronized (mBusyLock) {
+            nanos = nBusyNanos + ((nActiveJobs > 0) ? System.nanoTime() - nBusySince : 0);
+        }
+        if (nanos == 0) {
+            return 0.0;
+        }
+        return mHashes.sum() / (nanos / 1e9);
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Searches the template for a nonce whose hash is below target and
+     * blocks until one is found or the nonce space is exhausted.
+     * @param template The block template to mine.
+     * @param target The proof-of-work target.
+     * @return The winning nonce as an unsigned value, or NO_SOLUTION.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public long mine(BinaryHeader template, Target target) throws InterruptedException {
+        return submit(template, target).await();
+    }
+
+    /**
+     * Starts searching the template for a nonce whose hash is below target.
+     * @param template The block template to mine.
+     * @param target The proof-of-work target.
+     * @return A Job that tracks the search.
+     * @exception IllegalArgumentException If the template or target is null.
+     */
+    public Job submit(BinaryHeader template, Target target) {
+        if (template == null || target == null) {
+            throw new IllegalArgumentException("Error: Cannot mine without a template and a target!");
+        }
+        Job job = new Job(template, target);
+        long chunk = NONCE_SPACE / nWorkers;
+        for (int i = 0; i < nWorkers; i++) {
+            long start = i * chunk;
+            // the last worker picks up the remainder of the space
+            long end = (i == nWorkers - 1) ? NONCE_SPACE : start + chunk;
+            try {
+                mWorkers.execute(new Range(job, start, end));
+            } catch (RejectedExecutionException ex) {
+                // the engine was shut down, the range is never searched
+                job.finish();
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Stops the worker threads, running jobs are cancelled. Ranges that
+     * were still queued are never searched, their jobs finish without them
+     * so nobody waits on them forever.
+     */
+    public void shutdown() {
+        bShutdown = true;
+        for (Runnable task : mWorkers.shutdownNow()) {
+            if (task instanceof Range) {
+                ((Range) task).mJob.finish();
+            }
+        }
+    }
+
+    private void jobStarted() {
+        synchronized (mBusyLock) {
+            if (nActiveJobs++ == 0) {
+                nBusySince = System.nanoTime();
+            }
+        }
+    }
+
+    private void jobFinished() {
+        synchronized (mBusyLock) {
+            if (--nActiveJobs == 0) {
+                nBusyNanos += System.nanoTime() - nBusySince;
+            }
+        }
+    }
+
+    /**
+     * The nonce range of one job searched by one worker.
+     */
+    private static final class Range implements Runnable {
+
+        private final Job mJob;
+        private final long nStart;
+        private final long nEnd;
+
+        private Range(Job job, long start, long end) {
+            mJob = job;
+            nStart = start;
+            nEnd = end;
+        }
+
+        @Override
+        public void run() {
+            mJob.search(nStart, nEnd);
+        }
+
+    } // end Range
+
+    /**
+     * Tracks the search of one block template across the workers.
+     */
+    public class Job {
+
+        private final BinaryHeader mTemplate;
+        private final Target mTarget;
+        // The number of workers still searching their range
+        private final AtomicInteger mRemaining = new AtomicInteger(nWorkers);
+        // Released once the last worker is done
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        // Completed with the result once the last worker is done
+        private final CompletableFuture<Long> mResult = new CompletableFuture<>();
+        // Holds the winning nonce, set once by the first worker to find one
+        private final AtomicLong mNonce = new AtomicLong(NO_SOLUTION);
+        // Hashes computed by this job
+        private final LongAdder mJobHashes = new LongAdder();
+        private final long nStarted = System.nanoTime();
+        private volatile long nElapsed = -1;
+        // Checked by the workers on every nonce
+        private volatile boolean bStopped = false;
+
+        private Job(BinaryHeader template, Target target) {
+            mTemplate = template;
+            mTarget = target;
+            jobStarted();
+        }
+
+        /**
+         * Searches the nonces in [start, end).
+         */
+        private void search(long start, long end) {
+            SHA256 sha = new SHA256();
+            byte[] hash = new byte[SHA256.DIGEST_BYTES];
+            int unreported = 0;
+            try {
+                for (long nonce = start; nonce < end && !bStopped; nonce++) {
+                    mTemplate.hash((int) nonce, sha, hash);
+                    if (++unreported == REPORT_INTERVAL) {
+                        report(unreported);
+                        unreported = 0;
+                        if (bShutdown) {
+                            break;
+                        }
+                    }
+                    if (mTarget.isMetBy(hash)) {
+                        // only the first worker to get here wins
+                        if (mNonce.compareAndSet(NO_SOLUTION, nonce)) {
+                            bStopped = true;
+                        }
+                        break;
+                    }
+                }
+            } finally {
+                report(unreported);
+                finish();
+            }
+        }
+
+        private void report(int hashes) {
+            mJobHashes.add(hashes);
+            mHashes.add(hashes);
+        }
+
+        private void finish() {
+            // the last worker out records the job time and releases the waiters
+            if (mRemaining.decrementAndGet() == 0) {
+                nElapsed = System.nanoTime() - nStarted;
+                jobFinished();
+                mFinished.countDown();
+                mResult.complete(mNonce.get());
+            }
+        }
+
+        /**
+         * Blocks until every worker has finished its range.
+         * @return The winning nonce as an unsigned value, or NO_SOLUTION.
+         * @throws InterruptedException If the calling thread is interrupted while waiting.
+         */
+        public long await() throws InterruptedException {
+            mFinished.await();
+            return mNonce.get();
+        }
+
+        /**
+         * Gets a future that completes once every worker has finished its
+         * range, so callers can react to the result without blocking a thread.
+         * @return A future of the winning nonce as an unsigned value, or NO_SOLUTION.
+         */
+        public CompletableFuture<Long> getResult() {
+            return mResult;
+        }
+
+        /**
+         * Stops all workers of this job, await() returns NO_SOLUTION unless
+         * a nonce was already found.
+         */
+        public void cancel() {
+            bStopped = true;
+        }
+
+        /**
+         * Determines whether every worker of this job has finished.
+         * @return True if the job is done, false otherwise.
+         */
+        public boolean isDone() {
+            return mFinished.getCount() == 0;
+        }
+
+        /**
+         * Gets the number of hashes computed by this job so far.
+         * @return The number of hashes computed.
+         */
+        public long getHashCount() {
+            return mJobHashes.sum();
+        }
+
+        /**
+         * Gets the aggregate hashrate of this job across all workers.
+         * @return The hashrate in hashes per second.
+         */
+        public double getHashRate() {
+            long nanos = (nElapsed < 0) ? System.nanoTime() - nStarted : nElapsed;
+            if (nanos == 0) {
+                return 0.0;
+            }
+            return mJobHashes.sum() / (nanos / 1e9);
+        }
+
+    } // end Job
+
+} // end MiningEngine
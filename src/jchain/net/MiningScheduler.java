@@ -0,0 +1,358 @@
+package jchain.net;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import jchain.bc.Block;
+import jchain.bc.Header;
+import jchain.net.Miner;
+import jchain.net.MiningEngine;
+
+/**
+ * Owns the mining work of every Miner. Hashing runs on the bounded worker
+ * pool of a MiningEngine, everything else (reserving transactions, building
+ * templates, adding found blocks) runs as short steps on a small pool of
+ * coordination threads. No step ever waits for a job, the next step of a
+ * miner is chained onto the completion of its current job instead, so any
+ * number of miners can share a few coordination threads and one CPU-sized
+ * hashing pool.<br>
+ * Every miner has at most one round (one template) in flight. Miners ask
+ * for work with wake(), a round keeps following the previous one for as
+ * long as the miner has transactions. A miner whose transactions are all
+ * reserved by other miners tries again after RETRY_MILLIS instead of
+ * spinning on a coordination thread. A miner that fails to prepare a
+ * round backs off exponentially, wake() is ignored meanwhile, and after
+ * MAX_FAILURES failures in a row it is parked until the next wake().<br>
+ * The scheduler listens for tip changes on the chain of every miner. When
+ * the tip moves, every job mining on the old tip is cancelled on the spot
+ * and its miner starts over with a template on the new tip.
+ */
+public class MiningScheduler {
+
+    //
+    // CONSTANTS
+    //
+
+    /**
+     * The lifecycle state of the scheduler.
+     */
+    public enum State {
+        // Rounds are started whenever a miner has work
+        RUNNING,
+        // Running jobs are cancelled and no rounds are started, miners stay registered
+        PAUSED,
+        // Like PAUSED, but miners are forgotten
+        STOPPED
+    }
+
+    // The number of coordination threads of the shared scheduler
+    public static final int COORDINATION_THREADS = 2;
+    // The delay before a miner with nothing to reserve tries again, and the first backoff after a failure
+    public static final long RETRY_MILLIS = 50;
+    // The longest backoff after failures
+    public static final long MAX_RETRY_MILLIS = 5000;
+    // The number of failures in a row after which a miner is parked
+    public static final int MAX_FAILURES = 8;
+
+    private static final MiningScheduler mInstance = new MiningScheduler(MiningEngine.getInstance(), COORDINATION_THREADS);
+
+    //
+    // FIELDS
+    //
+
+    // Searches the nonce space of every round
+    private final MiningEngine mEngine;
+    // Runs the coordination steps
+    private final ExecutorService mCoordinator;
+    // The mining state of every miner that asked for work
+    private final ConcurrentHashMap<Miner, Slot> mSlots = new ConcurrentHashMap<>();
+    private volatile State mState = State.RUNNING;
+    // The number of jobs cancelled because the tip moved under them
+    private final LongAdder mStale = new LongAdder();
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a running MiningScheduler.
+     * @param engine The engine that does the hashing.
+     * @param threads The number of coordination threads.
+     * @exception IllegalArgumentException If engine is null or threads is less than one.
+     */
+    public MiningScheduler(MiningEngine engine, int threads) {
+        if (engine == null) {
+            throw new IllegalArgumentException("Error: Cannot create mining scheduler without a mining engine!");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Error: Mining scheduler requires at least one coordination thread!");
+        }
+        mEngine = engine;
+        mCoordinator = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "jchain-mining-scheduler");
+            // don't keep the JVM alive just for the miners
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Returns the shared MiningScheduler, it mines on the shared MiningEngine.
+     * @return A shared MiningScheduler instance.
+     */
+    public static MiningScheduler getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Gets the lifecycle state of the scheduler.
+     * @return The current state.
+     */
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Gets the engine the scheduler hashes on.
+     * @return The mining engine.
+     */
+    public MiningEngine getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Gets the number of miners that currently have a round in flight.
+     * @return The number of active miners.
+     */
+    public int getActiveCount() {
+        int active = 0;
+        for (Slot slot : mSlots.values()) {
+            if (slot.mJob != null) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Gets the number of jobs cancelled because their template no longer
+     * extended the tip of the chain.
+     * @return The number of stale jobs.
+     */
+    public long getStaleCount() {
+        return mStale.sum();
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Starts (or resumes) the scheduler, every registered miner is woken.
+     */
+    public void start() {
+        mState = State.RUNNING;
+        for (Slot slot : mSlots.values()) {
+            slot.bParked = false;
+            schedule(slot);
+        }
+    }
+
+    /**
+     * Pauses the scheduler. Running jobs are cancelled, their transactions
+     * go back to the miners' pools, and no round starts until start().
+     */
+    public void pause() {
+        mState = State.PAUSED;
+        cancelAll();
+    }
+
+    /**
+     * Stops the scheduler. Running jobs are cancelled and every miner is
+     * forgotten, miners register again the next time they call wake().
+     */
+    public void stop() {
+        mState = State.STOPPED;
+        cancelAll();
+        for (Slot slot : mSlots.values()) {
+            slot.mMiner.getBlockchain().removeTipListener(slot.mTipListener);
+        }
+        mSlots.clear();
+    }
+
+    /**
+     * Asks the scheduler to mine for the miner. Returns immediately, the
+     * miner is registered if this is its first call and a round is started
+     * unless one is already in flight, the miner is backing off after a
+     * failure or the scheduler is not running. A parked miner gets another
+     * try.
+     * @param miner The miner that has work.
+     */
+    public void wake(Miner miner) {
+        if (miner == null) {
+            throw new NullPointerException();
+        }
+        Slot slot = mSlots.computeIfAbsent(miner, key -> {
+            Slot created = new Slot(key);
+            key.getBlockchain().addTipListener(created.mTipListener);
+            return created;
+        });
+        slot.bParked = false;
+        schedule(slot);
+    }
+
+    private void cancelAll() {
+        for (Slot slot : mSlots.values()) {
+            MiningEngine.Job job = slot.mJob;
+            if (job != null) {
+                job.cancel();
+            }
+        }
+    }
+
+    /**
+     * Starts a round for the slot on a coordination thread unless it
+     * already has one or is backing off or parked.
+     */
+    private void schedule(Slot slot) {
+        if (mState == State.RUNNING && !slot.bBackingOff && !slot.bParked
+                && slot.mScheduled.compareAndSet(false, true)) {
+            mCoordinator.execute(() -> round(slot));
+        }
+    }
+
+    /**
+     * Schedules the slot again after a delay, without holding a
+     * coordination thread meanwhile.
+     */
+    private void retryLater(Slot slot, long millis) {
+        CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS, mCoordinator).execute(() -> {
+            slot.bBackingOff = false;
+            schedule(slot);
+        });
+    }
+
+    /**
+     * Prepares a round and hands it to the engine, the completion of the
+     * job runs the next step. Runs on a coordination thread.
+     */
+    private void round(Slot slot) {
+        Miner.Round round = null;
+        if (mState == State.RUNNING) {
+            try {
+                round = slot.mMiner.prepare();
+            } catch (RuntimeException ex) {
+                System.err.println("MiningScheduler: Miner " + slot.mMiner + " failed to prepare a round!");
+                System.err.println(ex);
+                failed(slot);
+                return;
+            }
+        }
+        if (round == null) {
+            slot.mScheduled.set(false);
+            // the miner may have received work after prepare() looked, or
+            //  its work may all be reserved by other miners, which only
+            //  release it when their rounds end
+            if (mState == State.RUNNING && slot.mMiner.hasWork()) {
+                retryLater(slot, RETRY_MILLIS);
+            }
+            return;
+        }
+        slot.nFailures = 0;
+        Miner.Round current = round;
+        MiningEngine.Job job = mEngine.submit(current.getTemplate().getBinaryHeader(), Header.target());
+        slot.mRound = current;
+        slot.mJob = job;
+        // the scheduler may have been paused or the tip may have moved 
+        //  since the template was built, the listener missed this job
+        if (mState != State.RUNNING) {
+            job.cancel();
+        } else if (isStale(current, slot.mMiner.getBlockchain().getLeadBlock())) {
+            mStale.increment();
+            job.cancel();
+        }
+        job.getResult().thenAcceptAsync(nonce -> {
+            slot.mJob = null;
+            slot.mRound = null;
+            try {
+                slot.mMiner.complete(current, nonce);
+            } catch (RuntimeException ex) {
+                System.err.println("MiningScheduler: Miner " + slot.mMiner + " failed to complete a round!");
+                System.err.println(ex);
+            }
+            round(slot);
+        }, mCoordinator);
+    }
+
+    /**
+     * Backs the slot off after prepare() failed, or parks it if it failed
+     * too often in a row. Runs on a coordination thread.
+     */
+    private void failed(Slot slot) {
+        int failures = ++slot.nFailures;
+        if (failures >= MAX_FAILURES) {
+            System.err.println("MiningScheduler: Miner " + slot.mMiner + " failed " + failures + " times in a row, parked until it is woken again!");
+            slot.bParked = true;
+            slot.mScheduled.set(false);
+            return;
+        }
+        slot.bBackingOff = true;
+        slot.mScheduled.set(false);
+        retryLater(slot, Math.min(MAX_RETRY_MILLIS, RETRY_MILLIS << (failures - 1)));
+    }
+
+    /**
+     * Cancels the job of the slot if it is mining on a parent other than
+     * the new tip. Runs on the thread that added the block.
+     */
+    private void tipChanged(Slot slot, Block tip) {
+        MiningEngine.Job job = slot.mJob;
+        Miner.Round round = slot.mRound;
+        if (job != null && round != null && !job.isDone() && isStale(round, tip)) {
+            mStale.increment();
+            job.cancel();
+        }
+    }
+
+    private static boolean isStale(Miner.Round round, Block tip) {
+        return !round.getTemplate().getPreviousBlockHash().equals(tip.getHash());
+    }
+
+    /**
+     * The mining state of one miner.
+     */
+    private class Slot {
+
+        private final Miner mMiner;
+        // Registered with the miner's chain while the miner is known
+        private final Consumer<Block> mTipListener = tip -> tipChanged(this, tip);
+        // Set while the miner has a round in flight or about to start
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        // The job of the round in flight, null between rounds
+        private volatile MiningEngine.Job mJob;
+        // The round the job is mining, null between rounds
+        private volatile Miner.Round mRound;
+        // The number of times in a row prepare() failed, only used by the round in flight
+        private int nFailures = 0;
+        // Set while the miner waits out a backoff after a failure
+        private volatile boolean bBackingOff = false;
+        // Set once the miner failed MAX_FAILURES times in a row, cleared by wake()
+        private volatile boolean bParked = false;
+
+        private Slot(Miner miner) {
+            mMiner = miner;
+        }
+
+    } // end Slot
+
+} // end MiningScheduler
@@ -1,25 +1,56 @@
 package jchain.net;
 
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import jchain.bc.Transaction;
-import jchain.util.BCUtil;
+import jchain.util.Hash256;
 import jchain.util.IllegalOperationException;
 
 /**
- * Synchronized transaction pool used by miners to track seen transactions.
+ * Thread-safe transaction pool used by miners to track seen transactions.<br>
+ * Transactions are indexed by hash, so membership checks and removals by
+ * hash are O(1), and kept in a tree ordered by fee rate (highest first,
+ * ties in arrival order), so taking the most valuable transaction is
+ * O(log n). When the pool is full a transaction paying a higher fee rate
+ * evicts the cheapest one.<br>
+ * The pool is split into shards by the top bits of the transaction hash,
+ * each with its own lock, and only the total size is shared. A pool with
+ * one shard (the default) orders and evicts exactly. With more shards,
+ * producers adding different transactions rarely contend, at the cost of
+ * get() having to compare the best entry of every shard and eviction only
+ * considering the shard of the incoming transaction. Arrival order only
+ * breaks fee rate ties within a shard.<br>
+ * Miners take transactions in bulk with reserve(). Reserved transactions
+ * stay in the pool, so they are still deduplicated and can never be
+ * evicted, but get() and other reservations skip them until the
+ * reservation is committed (they were mined) or released (they go back
+ * exactly where they were).
  * @author Christen Ford
  */
 public class TxnMemoryPool {
-    
+
     // declare a min pool size for efficiencies sake
     public static final int MIN_POOL_SIZE = 128;
-    // only allow storing up to 2048 transactions in memory at a time
-    public static final int MAX_POOL_SIZE = 2048;
-    
-    // stores the transactions for the transaction pool object
-    private volatile LinkedList<Transaction> mTxPool;
+    // the pool grows on demand, so the limit only bounds memory use
+    public static final int MAX_POOL_SIZE = 1 << 20;
+    // the largest number of shards a pool can be split into
+    public static final int MAX_SHARDS = 256;
+
+    // the shards of the pool, selected by the top bits of the transaction hash
+    private Shard[] mShards;
+    // the number of hash bits used to select a shard
+    private int nShardBits;
+    // the current number of transactions in the pool, across all shards
+    private AtomicInteger mCount = new AtomicInteger();
+    // the number of those transactions held by open reservations
+    private AtomicInteger mReserved = new AtomicInteger();
     // the current size of the pool
     private int nPoolSize;
 
@@ -32,13 +63,27 @@ public class TxnMemoryPool {
     }
 
     /**
-     * Returns a new instance of a TxnMemoryPool with a specified pool size. 
+     * Returns a new instance of a TxnMemoryPool with a specified pool size.
      * If the pool size is less than MIN_POOL_SIZE, then the pool is initialized
-     * to size MIN_POOL_SIZE. If the pool size is greater than MAX_POOL_SIZE, 
+     * to size MIN_POOL_SIZE. If the pool size is greater than MAX_POOL_SIZE,
      * then the pool is initialized to size MAX_POOL_SIZE.
      * @param poolSize The size of the transaction pool.
      */
     public TxnMemoryPool(int poolSize) {
+        this(poolSize, 1);
+    }
+
+    /**
+     * Returns a new instance of a TxnMemoryPool split into shards for
+     * concurrent use. The pool size is clamped as for TxnMemoryPool(int).
+     * @param poolSize The size of the transaction pool.
+     * @param shards The number of shards, a power of two in [1, MAX_SHARDS].
+     * @exception IllegalArgumentException If shards is not a power of two in range.
+     */
+    public TxnMemoryPool(int poolSize, int shards) {
+        if (shards < 1 || shards > MAX_SHARDS || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("Error: Shard count must be a power of two between 1 and " + MAX_SHARDS + "!");
+        }
         if (poolSize < MIN_POOL_SIZE) {
             poolSize = MIN_POOL_SIZE;
         } else if (poolSize > MAX_POOL_SIZE) {
@@ -46,26 +91,44 @@ public class TxnMemoryPool {
         }
         // initialize the pool size
         nPoolSize = poolSize;
-        // initialize the synchronized transaction pool to capacity
-        // cant win here really, either use a linkedlist and lose fast random access, or use an arraylist and have holes in the list
-        // ... maybe I can use a better data structure here that allows fast random access and maintains its structure
-        mTxPool = new LinkedList<Transaction>();
+        nShardBits = Integer.numberOfTrailingZeros(shards);
+        mShards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            mShards[i] = new Shard();
+        }
     }
 
     /**
      * Adds the transaction tx to the transaction pool onliy if the tx is valid, and the pool is not full.
+     * If the pool is full, tx replaces the transaction with the lowest fee rate if it pays a higher one.
      * @param tx A transaction to add to the pool.
-     * @throws IllegalOperationException If the indicated transaction is null or the pool is full.
+     * @throws IllegalOperationException If the indicated transaction is null, already in the pool or the pool is full.
      */
-    public synchronized void add(Transaction tx) throws IllegalOperationException {
+    public void add(Transaction tx) throws IllegalOperationException {
         if (tx == null) {
             throw new IllegalOperationException("Add TX to Pool", "Unable to add tx to pool, tx is not valid!");
         }
-        // block until unlocked
-        if (mTxPool.size() == nPoolSize) {
-            throw new IllegalOperationException("Add TX to Pool", "Transaction tx was ignored, txpool is full!");
+        Shard shard = shard(tx.getHash());
+        long feeRate = tx.getFeeRate();
+        int bytes = tx.bytes();
+        shard.mLock.lock();
+        try {
+            Entry entry = new Entry(tx, feeRate, bytes, shard.nSequence++);
+            if (shard.mIndex.containsKey(tx.getHash())) {
+                throw new IllegalOperationException("Add TX to Pool", "Transaction tx was ignored, it is already in the txpool!");
+            }
+            if (mCount.incrementAndGet() > nPoolSize) {
+                // make room by evicting the cheapest transaction of the shard, if tx is worth more
+                if (shard.mQueue.isEmpty() || entry.compareTo(shard.mQueue.last()) > 0) {
+                    mCount.decrementAndGet();
+                    throw new IllegalOperationException("Add TX to Pool", "Transaction tx was ignored, txpool is full!");
+                }
+                shard.remove(shard.mQueue.last());
+            }
+            shard.add(entry);
+        } finally {
+            shard.mLock.unlock();
         }
-        mTxPool.add(tx);
     }
 
     /**
@@ -73,40 +136,153 @@ public class TxnMemoryPool {
      * @param tx A transaction to check for.
      * @return True if the transaction is in the pool, false otherwise.
      */
-    public synchronized boolean contains(Transaction tx) {
-        return mTxPool.contains(tx);
+    public boolean contains(Transaction tx) {
+        return tx != null && contains(tx.getHash());
     }
-    
+
     /**
-     * Return the number of transactions in the pool.
+     * Determines if the transaction pool contains a transaction with the indicated hash.
+     * @param txHash A transaction hash.
+     * @return True if the transaction is in the pool, false otherwise.
      */
-    public synchronized int count() {
-        return mTxPool.size();
+    public boolean contains(Hash256 txHash) {
+        Shard shard = shard(txHash);
+        shard.mLock.lock();
+        try {
+            return shard.mIndex.containsKey(txHash);
+        } finally {
+            shard.mLock.unlock();
+        }
     }
 
     /**
-     * Return a random transaction in the list.
+     * Return the number of transactions in the pool that are not reserved.
+     */
+    public int count() {
+        return mCount.get() - mReserved.get();
+    }
+
+    /**
+     * Removes and returns the transaction with the highest fee rate,
+     * transactions with equal fee rates are returned in arrival order.
+     * With several shards the order is only exact while no other thread
+     * changes the pool.
      * @return A Transaction from the pool.
      * @throws IllegalOperationException If the pool is empty.
      */
-    public synchronized Transaction get() throws IllegalOperationException {
-        if (mTxPool.size() == 0) {
-            throw new IllegalOperationException("Cannot get tx from txpool, pool is empty!");
-        }
-        // generate a random position to pull from, this is where we pay for using a linked list, although since the transaction pool is limited in size, it `should` be ok
+    public Transaction get() throws IllegalOperationException {
         // TODO: this should follow the rule of k confirmations, but it is okay for now since we are working at getting mining working on a single node
-        int pos = BCUtil.getInstance().randRange(mTxPool.size());
-        Transaction tx = mTxPool.get(pos);
-        mTxPool.remove(tx);
-        return tx;
+        while (true) {
+            // find the shard holding the best entry
+            Shard best = null;
+            Entry bestEntry = null;
+            for (Shard shard : mShards) {
+                Entry entry;
+                shard.mLock.lock();
+                try {
+                    entry = shard.mQueue.isEmpty() ? null : shard.mQueue.first();
+                } finally {
+                    shard.mLock.unlock();
+                }
+                if (entry != null && (bestEntry == null || entry.compareTo(bestEntry) < 0)) {
+                    best = shard;
+                    bestEntry = entry;
+                }
+            }
+            if (best == null) {
+                throw new IllegalOperationException("Cannot get tx from txpool, pool is empty!");
+            }
+            // another thread may have taken the entry in the meantime, look again if so
+            best.mLock.lock();
+            try {
+                if (!best.mQueue.isEmpty() && best.mQueue.first() == bestEntry) {
+                    best.remove(bestEntry);
+                    return bestEntry.mTx;
+                }
+            } finally {
+                best.mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Selects and reserves the best transactions in one step. Transactions 
+     * are taken in priority order until maxTxs are taken or the next one 
+     * would push the total size (Transaction.bytes()) past maxBytes. All 
+     * shards are locked while selecting.
+     * @param maxTxs The largest number of transactions to reserve.
+     * @param maxBytes The largest total size of the reserved transactions.
+     * @return A reservation, possibly holding no transactions.
+     */
+    public Reservation reserve(int maxTxs, long maxBytes) {
+        ArrayList<Entry> entries = new ArrayList<>(Math.max(0, Math.min(maxTxs, 64)));
+        for (Shard shard : mShards) {
+            shard.mLock.lock();
+        }
+        try {
+            // merge the shard queues, they are each already in priority order
+            ArrayList<Iterator<Entry>> iterators = new ArrayList<>(mShards.length);
+            Entry[] heads = new Entry[mShards.length];
+            for (int i = 0; i < mShards.length; i++) {
+                iterators.add(mShards[i].mQueue.iterator());
+                heads[i] = iterators.get(i).hasNext() ? iterators.get(i).next() : null;
+            }
+            long bytes = 0;
+            while (entries.size() < maxTxs) {
+                int best = -1;
+                for (int i = 0; i < heads.length; i++) {
+                    if (heads[i] != null && (best < 0 || heads[i].compareTo(heads[best]) < 0)) {
+                        best = i;
+                    }
+                }
+                if (best < 0 || bytes + heads[best].nBytes > maxBytes) {
+                    break;
+                }
+                bytes += heads[best].nBytes;
+                entries.add(heads[best]);
+                heads[best] = iterators.get(best).hasNext() ? iterators.get(best).next() : null;
+            }
+            // take the selected entries out of the queues, but keep them indexed
+            for (Entry entry : entries) {
+                shard(entry.mTx.getHash()).mQueue.remove(entry);
+                entry.bReserved = true;
+            }
+            mReserved.addAndGet(entries.size());
+        } finally {
+            for (Shard shard : mShards) {
+                shard.mLock.unlock();
+            }
+        }
+        return new Reservation(entries);
     }
-    
+
     /**
-     * Determines whether the pool contains transactions or not.
-     * @return boolean - True if the pool contains at least one transaction, false otherwise.
+     * Removes the transaction with the indicated hash, e.g. once it has been mined by another node.
+     * The transaction is also removed if it is reserved.
+     * @param txHash A transaction hash.
+     * @return The removed transaction, or null if it was not in the pool.
      */
-    public synchronized boolean isEmpty() {
-        return mTxPool.isEmpty();
+    public Transaction remove(Hash256 txHash) {
+        Shard shard = shard(txHash);
+        shard.mLock.lock();
+        try {
+            Entry entry = shard.mIndex.get(txHash);
+            if (entry == null) {
+                return null;
+            }
+            shard.remove(entry);
+            return entry.mTx;
+        } finally {
+            shard.mLock.unlock();
+        }
+    }
+
+    /**
+     * Determines whether the pool contains transactions that are not reserved.
+     * @return boolean - True if the pool contains at least one available transaction, false otherwise.
+     */
+    public boolean isEmpty() {
+        return count() == 0;
     }
 
     /**
@@ -117,4 +293,170 @@ public class TxnMemoryPool {
         return nPoolSize;
     }
 
+    /**
+     * Returns the number of shards the pool is split into.
+     * @return The number of shards.
+     */
+    public int shards() {
+        return mShards.length;
+    }
+
+    private Shard shard(Hash256 txHash) {
+        if (nShardBits == 0) {
+            return mShards[0];
+        }
+        return mShards[(int) (txHash.getLong(0) >>> (64 - nShardBits))];
+    }
+
+    /**
+     * A set of transactions reserved by reserve(). Exactly one of commit() 
+     * and release() takes effect, later calls do nothing.
+     */
+    public class Reservation {
+
+        private final List<Entry> mEntries;
+        private final List<Transaction> mTxs;
+        private boolean bOpen = true;
+
+        private Reservation(List<Entry> entries) {
+            mEntries = entries;
+            ArrayList<Transaction> txs = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                txs.add(entry.mTx);
+            }
+            mTxs = Collections.unmodifiableList(txs);
+        }
+
+        /**
+         * Gets the reserved transactions in priority order.
+         * @return A read-only list of the reserved transactions.
+         */
+        public List<Transaction> getTransactions() {
+            return mTxs;
+        }
+
+        /**
+         * Determines whether the reservation holds no transactions.
+         * @return True if nothing was reserved, false otherwise.
+         */
+        public boolean isEmpty() {
+            return mEntries.isEmpty();
+        }
+
+        /**
+         * Determines whether the reservation has not been committed or released yet.
+         * @return True if the reservation is open, false otherwise.
+         */
+        public synchronized boolean isOpen() {
+            return bOpen;
+        }
+
+        /**
+         * Removes the reserved transactions from the pool, e.g. once they were mined.
+         */
+        public void commit() {
+            finish(true);
+        }
+
+        /**
+         * Returns the reserved transactions to the pool, they keep their
+         * original priority and arrival order.
+         */
+        public void release() {
+            finish(false);
+        }
+
+        private synchronized void finish(boolean commit) {
+            if (!bOpen) {
+                return;
+            }
+            bOpen = false;
+            for (Entry entry : mEntries) {
+                Shard shard = shard(entry.mTx.getHash());
+                shard.mLock.lock();
+                try {
+                    // the transaction may have been removed in the meantime
+                    if (!entry.bReserved) {
+                        continue;
+                    }
+                    entry.bReserved = false;
+                    mReserved.decrementAndGet();
+                    if (commit) {
+                        shard.remove(entry);
+                    } else {
+                        shard.mQueue.add(entry);
+                    }
+                } finally {
+                    shard.mLock.unlock();
+                }
+            }
+        }
+
+    } // end Reservation
+
+    /**
+     * One independently locked part of the pool.
+     */
+    private class Shard {
+
+        // guards the shard
+        private final ReentrantLock mLock = new ReentrantLock();
+
+        // maps a transaction hash to its pool entry
+        private final HashMap<Hash256, Entry> mIndex = new HashMap<>();
+        // the pool entries ordered by priority, the first entry is mined next
+        private final TreeSet<Entry> mQueue = new TreeSet<>();
+        // the arrival number of the next transaction, breaks fee rate ties
+        private long nSequence = 0;
+
+        private void add(Entry entry) {
+            mIndex.put(entry.mTx.getHash(), entry);
+            mQueue.add(entry);
+        }
+
+        private void remove(Entry entry) {
+            mIndex.remove(entry.mTx.getHash());
+            if (entry.bReserved) {
+                entry.bReserved = false;
+                mReserved.decrementAndGet();
+            } else {
+                mQueue.remove(entry);
+            }
+            mCount.decrementAndGet();
+        }
+
+    } // end Shard
+
+    /**
+     * A pooled transaction with its cached fee rate, size and arrival number.
+     */
+    private static class Entry implements Comparable<Entry> {
+
+        private final Transaction mTx;
+        private final long nFeeRate;
+        private final int nBytes;
+        private final long nSequence;
+        // set while the entry is held by a reservation, guarded by the shard lock
+        private boolean bReserved = false;
+
+        private Entry(Transaction tx, long feeRate, int bytes, long sequence) {
+            mTx = tx;
+            nFeeRate = feeRate;
+            nBytes = bytes;
+            nSequence = sequence;
+        }
+
+        /**
+         * Orders entries by descending fee rate, then by arrival.
+         */
+        @Override
+        public int compareTo(Entry entry) {
+            if (nFeeRate != entry.nFeeRate) {
+                return Long.compare(entry.nFeeRate, nFeeRate);
+            }
+            return Long.compare(nSequence, entry.nSequence);
+        }
+
+    } // end Entry
+
 }
@@ -0,0 +1,128 @@
+package jchain.tests;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jchain.util.BCUtil;
+
+/**
+ * Checks that BCUtil.doubleHash stays correct with an increasing number of
+ * threads. Each thread hashes its own message and checks every result against
+ * a single threaded reference, so the test catches digests that are shared
+ * between threads. The throughput of every run is printed for information
+ * only, it depends on the machine and its load too much to pass or fail on.
+ * How fast hashing is is measured by jchain.bench.CoreBenchmarks.
+ */
+public class HashThroughputTest {
+
+    //
+    // CONSTANTS
+    //
+
+    // The size of the hashed messages, roughly a serialized block header
+    public static final int MESSAGE_SIZE = 80;
+
+    //
+    // FIELDS
+    //
+
+    // The number of hashes every thread computes per run
+    private int nHashes;
+
+    // The largest number of threads to measure with
+    private int nMaxThreads;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Creates an instance of a HashThroughputTest that measures up to one thread per available processor.
+     * @param hashes The number of hashes every thread computes per run.
+     */
+    public HashThroughputTest(int hashes) {
+        this(hashes, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an instance of a HashThroughputTest.
+     * @param hashes The number of hashes every thread computes per run.
+     * @param maxThreads The largest number of threads to measure with.
+     */
+    public HashThroughputTest(int hashes, int maxThreads) {
+        if (hashes < 1) {
+            throw new IllegalArgumentException("Error: Hash throughput test must compute at least one hash!");
+        }
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("Error: Hash throughput test must use at least one thread!");
+        }
+        nHashes = hashes;
+        nMaxThreads = maxThreads;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Hashes with 1, 2, 4, ... up to the maximum number of threads and prints
+     * the throughput of each run.
+     * @return True if every hash of every run was correct, false otherwise.
+     * @throws InterruptedException If interrupted while waiting on the hashing threads.
+     */
+    public boolean run() throws InterruptedException {
+        // warm up so the first run isn't measuring the JIT
+        measure(1);
+        boolean passed = true;
+        for (int threads = 1; threads <= nMaxThreads; threads *= 2) {
+            double rate = measure(threads);
+            if (rate < 0) {
+                System.out.println(String.format("Hash throughput: %d thread(s): wrong hashes!", threads));
+                passed = false;
+            } else {
+                System.out.println(String.format("Hash throughput: %d thread(s): %.0f hashes/s", threads, rate));
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Hashes with the indicated number of threads.
+     * @param threads The number of hashing threads.
+     * @return The aggregate hashes per second, or -1 if a hash was wrong.
+     */
+    private double measure(int threads) throws InterruptedException {
+        AtomicBoolean correct = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            byte[] message = new byte[MESSAGE_SIZE];
+            Arrays.fill(message, (byte) i);
+            byte[] expected = BCUtil.getInstance().doubleHash(message);
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < nHashes; j++) {
+                        if (!Arrays.equals(expected, BCUtil.getInstance().doubleHash(message))) {
+                            correct.set(false);
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    correct.set(false);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - started;
+        if (!correct.get()) {
+            return -1;
+        }
+        return ((double) threads * nHashes) / (elapsed / 1e9);
+    }
+
+} // END HashThroughputTest
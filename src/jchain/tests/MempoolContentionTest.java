@@ -0,0 +1,178 @@
+package jchain.tests;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jchain.bc.Output;
+import jchain.bc.Transaction;
+import jchain.net.TxnMemoryPool;
+import jchain.util.Hash256;
+import jchain.util.IllegalOperationException;
+
+/**
+ * Checks that TxnMemoryPool stays correct under concurrent producers and
+ * consumers, for a pool behind a single lock and for a sharded pool. Every
+ * producer adds its own transactions, then the same number of consumers
+ * drains the pool. The test checks that every transaction went in and came
+ * out exactly once. How fast the two pools are under contention is measured
+ * by jchain.bench.ContentionBenchmarks, not here.
+ */
+public class MempoolContentionTest {
+
+    //
+    // CONSTANTS
+    //
+
+    // The number of shards of the concurrent pool
+    public static final int SHARDS = 16;
+
+    //
+    // FIELDS
+    //
+
+    // The number of transactions every producer adds per run
+    private int nTxs;
+
+    // The largest number of producer threads to run with
+    private int nMaxThreads;
+
+    // The transactions of every producer, generated once up front
+    private Transaction[][] mTxs;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Creates an instance of a MempoolContentionTest that runs up to one
+     * producer per available processor, but at least two.
+     * @param txs The number of transactions every producer adds per run.
+     */
+    public MempoolContentionTest(int txs) {
+        this(txs, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates an instance of a MempoolContentionTest.
+     * @param txs The number of transactions every producer adds per run.
+     * @param maxThreads The largest number of producer threads to run with.
+     */
+    public MempoolContentionTest(int txs, int maxThreads) {
+        if (txs < 1) {
+            throw new IllegalArgumentException("Error: Mempool contention test must add at least one transaction!");
+        }
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("Error: Mempool contention test must use at least one thread!");
+        }
+        if ((long) txs * maxThreads > TxnMemoryPool.MAX_POOL_SIZE) {
+            throw new IllegalArgumentException("Error: Mempool contention test cannot add more than TxnMemoryPool.MAX_POOL_SIZE transactions!");
+        }
+        nTxs = txs;
+        nMaxThreads = maxThreads;
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Fills and drains a single lock pool and a sharded pool with 1, 2, 4,
+     * ... up to the maximum number of threads.
+     * @return True if every run added and drained every transaction exactly
+     * once, false otherwise.
+     * @throws InterruptedException If interrupted while waiting on the pool threads.
+     */
+    public boolean run() throws InterruptedException {
+        generate();
+        boolean passed = true;
+        for (int threads = 1; threads <= nMaxThreads; threads *= 2) {
+            for (int shards : new int[] {1, SHARDS}) {
+                if (!fillAndDrain(threads, shards)) {
+                    System.out.println(String.format("Mempool: %d producer(s), %d shard(s): transactions were lost or duplicated!",
+                        threads, shards));
+                    passed = false;
+                }
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Generates distinct transactions for every producer.
+     */
+    private void generate() {
+        mTxs = new Transaction[nMaxThreads][nTxs];
+        Random random = new Random(nTxs);
+        for (int t = 0; t < nMaxThreads; t++) {
+            for (int i = 0; i < nTxs; i++) {
+                // vary the fee so the pool has something to order by
+                mTxs[t][i] = new Transaction(new String[] {"P" + t + ":" + (1000 + random.nextInt(10000))},
+                    new Output[] {new Output(1000, 0, "tx " + i)});
+            }
+        }
+    }
+
+    /**
+     * Fills a new pool with the indicated number of producers, then drains
+     * it with as many consumers.
+     * @param threads The number of producer and consumer threads.
+     * @param shards The number of shards of the pool.
+     * @return True if every transaction went in and came out exactly once,
+     * false otherwise.
+     */
+    private boolean fillAndDrain(int threads, int shards) throws InterruptedException {
+        int total = threads * nTxs;
+        TxnMemoryPool pool = new TxnMemoryPool(total, shards);
+        AtomicBoolean correct = new AtomicBoolean(true);
+        // fill
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Transaction[] txs = mTxs[t];
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (Transaction tx : txs) {
+                        pool.add(tx);
+                    }
+                } catch (InterruptedException | IllegalOperationException ex) {
+                    correct.set(false);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        if (pool.count() != total) {
+            correct.set(false);
+        }
+        // drain, every transaction must come out exactly once
+        Set<Hash256> drained = ConcurrentHashMap.newKeySet();
+        CountDownLatch drainedAll = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    while (!pool.isEmpty()) {
+                        if (!drained.add(pool.get().getHash())) {
+                            correct.set(false);
+                        }
+                    }
+                } catch (IllegalOperationException ex) {
+                    // another consumer took the last transaction
+                } finally {
+                    drainedAll.countDown();
+                }
+            }).start();
+        }
+        drainedAll.await();
+        if (drained.size() != total || !pool.isEmpty()) {
+            correct.set(false);
+        }
+        return correct.get();
+    }
+
+} // END MempoolContentionTest
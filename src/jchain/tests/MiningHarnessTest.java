@@ -1,7 +1,5 @@
 package jchain.tests;
 
-import java.util.LinkedList;
-
 import jchain.bc.*;
 import jchain.net.*;
 import jchain.util.BCUtil;
@@ -17,9 +15,9 @@ public class MiningHarnessTest implements Publisher<Transaction> {
     // FIELDS
     //
 
-    // Stores subscribed miners.
-    private LinkedList<Subscriber<Transaction>> mSubscribers 
-        = new LinkedList<Subscriber<Transaction>>();
+    // Delivers transactions to the subscribed miners, each miner 
+    //  receives on its own queue so a slow miner doesn't hold up the others
+    private AsyncPublisher<Transaction> mPublisher = new AsyncPublisher<>();
 
     // The number of transactions to generate in this test harness
     private int nTxAmt;
@@ -149,10 +147,7 @@ public class MiningHarnessTest implements Publisher<Transaction> {
             throw new IllegalArgumentException("Error: Cannot push transaction, transaction is null!");
         }
         // Broadcasts the received transaction to each subscribed miner
-        for (Subscriber<Transaction> subscriber : 
-            mSubscribers) {
-            subscriber.receive(tx);
-        }
+        mPublisher.push(tx);
     }
 
     /**
@@ -185,10 +180,7 @@ public class MiningHarnessTest implements Publisher<Transaction> {
      */
     public void subscribe(
         Subscriber<Transaction> subscriber) {
-        if (subscriber != null && !
-            mSubscribers.contains(subscriber)) {
-            mSubscribers.add(subscriber);
-        }
+        mPublisher.subscribe(subscriber);
     }
 
     /**
@@ -197,10 +189,7 @@ public class MiningHarnessTest implements Publisher<Transaction> {
      */
     public void unsubscribe(
         Subscriber<Transaction> subscriber) {
-        if (subscriber != null && 
-            mSubscribers.contains(subscriber)) {
-            mSubscribers.remove(subscriber);
-        }
+        mPublisher.unsubscribe(subscriber);
     }
 
 } // END MiningTestHarness
@@ -0,0 +1,141 @@
+package jchain.tests;
+
+import java.util.LinkedList;
+
+import jchain.bc.BC;
+import jchain.bc.Block;
+import jchain.bc.BlockTemplate;
+import jchain.bc.Header;
+import jchain.bc.OutPoint;
+import jchain.bc.Output;
+import jchain.bc.Transaction;
+import jchain.net.MiningEngine;
+import jchain.util.Hash256;
+import jchain.util.NoSuchTransactionException;
+
+/**
+ * Checks that a BC with the UTXO set enabled reorganizes onto a side
+ * branch whose second block spends an output created by its first, with
+ * and without the transaction index, and that a branch failing its checks
+ * part way leaves the active chain, the UTXO set and the index as they
+ * were.
+ */
+public class ReorgTest {
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Runs the reorganizations.
+     * @return True if every reorganization ended in the expected state,
+     * false otherwise.
+     * @throws InterruptedException If interrupted while mining the blocks.
+     */
+    public boolean run() throws InterruptedException {
+        boolean passed = true;
+        for (boolean indexed : new boolean[] {false, true}) {
+            if (!spendWithinBranch(indexed)) {
+                System.out.println(String.format("Reorg: txindex=%b: branch spending its own output was not connected!", indexed));
+                passed = false;
+            }
+            if (!rollBack(indexed)) {
+                System.out.println(String.format("Reorg: txindex=%b: failed branch was not rolled back!", indexed));
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Genesis, a1 on genesis, then the side branch b1 (creates T) and b2
+     * (spends T:0), which takes over.
+     */
+    private boolean spendWithinBranch(boolean indexed) throws InterruptedException {
+        Transaction genesisTx = tx("G:5000", 5000, "genesis tx");
+        BC bc = chain(genesisTx, indexed);
+        Transaction a = tx("A:50", 50, "a1");
+        Block a1 = mine(bc.getLeadBlock().getHash(), a);
+        Transaction t = tx("T:50", 50, "b1");
+        Block b1 = mine(bc.getLeadBlock().getHash(), t);
+        Transaction spend = spend(t, 50, "b2");
+        Block b2 = mine(b1.getHash(), spend);
+        if (!bc.addBlock(a1) || bc.addBlock(b1) || !bc.addBlock(b2)) {
+            return false;
+        }
+        return bc.getLeadBlock().equals(b2) && bc.getHeight() == 3
+            && !bc.isUnspent(new OutPoint(t.getHash(), 0))
+            && bc.isUnspent(new OutPoint(spend.getHash(), 0))
+            && !bc.isUnspent(new OutPoint(a.getHash(), 0))
+            && bc.isUnspent(new OutPoint(genesisTx.getHash(), 0))
+            && bc.getUnspentCount() == 2;
+    }
+
+    /**
+     * Genesis, a1 and a2 on the active chain, then the side branch c1
+     * (creates T), c2 (spends T:0) and c3, which would take over but
+     * spends T:0 again.
+     */
+    private boolean rollBack(boolean indexed) throws InterruptedException {
+        Transaction genesisTx = tx("G:5000", 5000, "genesis tx");
+        BC bc = chain(genesisTx, indexed);
+        Transaction a = tx("A:50", 50, "a1");
+        Block a1 = mine(bc.getLeadBlock().getHash(), a);
+        Block a2 = mine(a1.getHash(), tx("A:60", 60, "a2"));
+        Transaction t = tx("T:50", 50, "c1");
+        Block c1 = mine(bc.getLeadBlock().getHash(), t);
+        Block c2 = mine(c1.getHash(), spend(t, 50, "c2"));
+        Block c3 = mine(c2.getHash(), spend(t, 50, "c3"));
+        if (!bc.addBlock(a1) || !bc.addBlock(a2) || bc.addBlock(c1) || bc.addBlock(c2)) {
+            return false;
+        }
+        try {
+            bc.addBlock(c3);
+            return false;
+        } catch (IllegalArgumentException ex) {
+            // c3 spends an output c2 already spent
+        }
+        boolean restored = bc.getLeadBlock().equals(a2) && bc.getHeight() == 3
+            && bc.isUnspent(new OutPoint(a.getHash(), 0))
+            && !bc.isUnspent(new OutPoint(t.getHash(), 0))
+            && bc.getUnspentCount() == 3;
+        if (indexed) {
+            try {
+                restored &= bc.getTransactionHeight(a.getHash()) == 1;
+                bc.getTransactionHeight(t.getHash());
+                restored = false;
+            } catch (NoSuchTransactionException ex) {
+                // c1 is off the active chain again
+            }
+        }
+        return restored;
+    }
+
+    private static BC chain(Transaction genesisTx, boolean indexed) {
+        LinkedList<Transaction> txList = new LinkedList<>();
+        txList.add(genesisTx);
+        BC bc = new BC(new Block(txList, new Header(Hash256.ZERO, txList, 0)));
+        if (indexed) {
+            bc.enableTransactionIndex();
+        }
+        bc.enableUtxoSet();
+        return bc;
+    }
+
+    private static Transaction tx(String input, int minis, String script) {
+        return new Transaction(new String[] {input}, new Output[] {new Output(minis, 0, script)});
+    }
+
+    private static Transaction spend(Transaction from, int minis, String script) {
+        return new Transaction(new String[] {new OutPoint(from.getHash(), 0).toInput(minis), script + ":1"},
+            new Output[] {new Output(minis, 0, script)});
+    }
+
+    private static Block mine(Hash256 previousHash, Transaction tx) throws InterruptedException {
+        LinkedList<Transaction> txList = new LinkedList<>();
+        txList.add(tx);
+        BlockTemplate template = new BlockTemplate(previousHash, txList);
+        return template.block((int) MiningEngine.getInstance().mine(template.getBinaryHeader(), Header.target()));
+    }
+
+} // END ReorgTest
@@ -1,6 +1,7 @@
 package jchain.util;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
@@ -23,29 +24,42 @@ public class BCUtil {
 
     // fields
 
-    private MessageDigest mDigest;
+    // every thread gets its own SHA-256 digest so hashing never 
+    //  serializes on a shared lock
+    private final ThreadLocal<MessageDigest> mDigest = ThreadLocal.withInitial(BCUtil::newDigest);
     private Random mRandom;
 
     // constructors
 
     /**
-     * Singleton constructor that returns an instance of a BCUtil object with a SHAR-256 digestor.
+     * Singleton constructor that returns an instance of a BCUtil object.
      * Will error out of the JVM if the SHA-256 hashing algorithm is not available on the local platform.
      * @return An instance of the BCUtil class.
      */
     private BCUtil() {
+        // make sure SHA-256 is available before anyone tries to hash
+        newDigest();
+        // initialize random to a seed based on time, should be good enough
+        mRandom = new Random((now() * 1000) % Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a SHA-256 MessageDigest.
+     * Will error out of the JVM if the SHA-256 hashing algorithm is not available on the local platform.
+     * @return A SHA-256 MessageDigest.
+     */
+    private static MessageDigest newDigest() {
         // try to get a SHA-256 MessageDigest
         try {
-            mDigest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } 
         // if it isn't supported by the runtime, error out of the system
         catch (NoSuchAlgorithmException ex) {
             System.err.println(ex.getMessage());
             ex.printStackTrace();
             System.exit(1);
+            return null;
         }
-        // initialize random to a seed based on time, should be good enough
-        mRandom = new Random((now() * 1000) % Long.MAX_VALUE);
     }
 
     // methods
@@ -100,37 +114,148 @@ public class BCUtil {
         return new String(hexChars);
     }
 
+    /**
+     * Converts a hexstring to a byte array.
+     * @param hex The hexstring to convert, must have an even length.
+     * @return The bytes represented by hex.
+     * @exception IllegalArgumentException If hex is null, empty, has an 
+     * odd length or contains non-hex characters.
+     */
+    public static byte[] hexToBytes(String hex) {
+        if (hex == null || hex.length() == 0 || hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Error: Cannot convert hexstring! Hexstring must not be null and have an even length!");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Error: Cannot convert hexstring! Hexstring contains non-hex characters!");
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
     /**
      * Return a SHA-256 double hash of the indicated String.
      * @param value A string to double hash.
      * @return A double SHA-256 hash as a hexstring.
      */
-    public synchronized String doubleHash(String value) {
-        // make sure the digest is initialized, error out if its not
-        if (mDigest == null) {
-            System.err.println("Error: MessageDigest not initialized, cannot generate hashes!");
-            System.exit(1);
-        }
+    public String doubleHash(String value) {
         // make sure value is valid and contains data
         // throw IllegalArgumentException if not
         if (value == null || value.length() == 0) {
             throw new IllegalArgumentException("Error: Cannot hash value, value is invalid!");
         }
-        try {
-            // update the digest
-            mDigest.update(value.getBytes("UTF-8"));
-        } catch (UnsupportedEncodingException ex) {
-            System.err.println(ex.getMessage());
-            ex.printStackTrace();
-            System.exit(-1);
-        }
-        // get the single hash, update the digest with it
-        byte[] hash = mDigest.digest();
-        mDigest.update(hash);
         // convert the hash to a hexstring and return it
-        return bytesToHex(mDigest.digest());
+        return bytesToHex(doubleHash(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Return a SHA-256 double hash of the indicated bytes.
+     * @param data The bytes to double hash.
+     * @return A 32 byte double SHA-256 hash.
+     */
+    public byte[] doubleHash(byte[] data) {
+        if (data == null) {
+            throw new IllegalArgumentException("Error: Cannot hash bytes, bytes are null!");
+        }
+        return doubleHash(data, 0, data.length);
+    }
+
+    /**
+     * Return a SHA-256 double hash of a range of the indicated bytes.
+     * @param data The bytes to double hash.
+     * @param offset The offset of the first byte to hash.
+     * @param length The number of bytes to hash.
+     * @return A 32 byte double SHA-256 hash.
+     */
+    public byte[] doubleHash(byte[] data, int offset, int length) {
+        if (data == null) {
+            throw new IllegalArgumentException("Error: Cannot hash bytes, bytes are null!");
+        }
+        MessageDigest digest = mDigest.get();
+        digest.update(data, offset, length);
+        // get the single hash, hash it again
+        return digest.digest(digest.digest());
+    }
+
+    /**
+     * Return a SHA-256 double hash of the remaining bytes in the indicated 
+     * buffer. The buffer's position is advanced to its limit.
+     * @param buffer The buffer to double hash.
+     * @return A 32 byte double SHA-256 hash.
+     */
+    public byte[] doubleHash(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Error: Cannot hash buffer, buffer is null!");
+        }
+        MessageDigest digest = mDigest.get();
+        digest.update(buffer);
+        // get the single hash, hash it again
+        return digest.digest(digest.digest());
     }
     
+    /**
+     * Return a SHA-256 double hash of the indicated bytes as a Hash256.
+     * @param data The bytes to double hash.
+     * @return A double SHA-256 hash.
+     */
+    public Hash256 doubleHash256(byte[] data) {
+        return Hash256.of(doubleHash(data));
+    }
+
+    /**
+     * Return a SHA-256 double hash of the remaining bytes in the indicated 
+     * buffer as a Hash256. The buffer's position is advanced to its limit.
+     * @param buffer The buffer to double hash.
+     * @return A double SHA-256 hash.
+     */
+    public Hash256 doubleHash256(ByteBuffer buffer) {
+        return Hash256.of(doubleHash(buffer));
+    }
+
+    /**
+     * Gets the number of bytes putString() writes for the indicated String.
+     * @param value A String, may be null.
+     * @return The serialized size of value in bytes.
+     */
+    public static int stringSize(String value) {
+        return 4 + ((value == null) ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /**
+     * Writes a String to the buffer as its UTF-8 length followed by its 
+     * UTF-8 bytes. A null String is written as length -1.
+     * @param buffer The buffer to write to.
+     * @param value The String to write, may be null.
+     */
+    public static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a String written by putString() from the buffer.
+     * @param buffer The buffer to read from.
+     * @return The String read, may be null.
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     /**
      * Takes a whole integer value and breaks it into a coin value.
      * @param value A value to mint coins from.
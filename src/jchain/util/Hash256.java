@@ -0,0 +1,218 @@
+package jchain.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An immutable 256-bit hash value, such as a SHA-256 double hash.<br>
+ * The 32 bytes are stored as four longs, so equality is four comparisons
+ * and the Java hashCode is taken straight from the (already uniformly
+ * distributed) hash bits. A hexstring is only produced by toString() for
+ * display purposes.
+ */
+public final class Hash256 implements Comparable<Hash256> {
+
+    //
+    // CONSTANTS
+    //
+
+    // The size of a hash in bytes
+    public static final int SIZE = 32;
+
+    // The all zero hash, used as the previous block hash of a genesis block
+    public static final Hash256 ZERO = new Hash256(0L, 0L, 0L, 0L);
+
+    //
+    // FIELDS
+    //
+
+    // The hash bytes, big-endian, most significant long first
+    private final long l0;
+    private final long l1;
+    private final long l2;
+    private final long l3;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    private Hash256(long w0, long w1, long w2, long w3) {
+        l0 = w0;
+        l1 = w1;
+        l2 = w2;
+        l3 = w3;
+    }
+
+    /**
+     * Returns a Hash256 containing the 32 bytes at the indicated offset.
+     * @param bytes A byte array.
+     * @param offset The offset of the first hash byte.
+     * @return A Hash256 holding a copy of the bytes.
+     * @exception IllegalArgumentException If there are fewer than 32 bytes at offset.
+     */
+    public static Hash256 of(byte[] bytes, int offset) {
+        if (bytes == null || offset < 0 || bytes.length - offset < SIZE) {
+            throw new IllegalArgumentException("Error: Cannot create hash, 32 bytes are required!");
+        }
+        return new Hash256(readLong(bytes, offset), readLong(bytes, offset + 8),
+            readLong(bytes, offset + 16), readLong(bytes, offset + 24));
+    }
+
+    /**
+     * Returns a Hash256 containing the indicated 32 bytes.
+     * @param bytes A 32 byte array.
+     * @return A Hash256 holding a copy of the bytes.
+     * @exception IllegalArgumentException If bytes is not 32 bytes long.
+     */
+    public static Hash256 of(byte[] bytes) {
+        if (bytes == null || bytes.length != SIZE) {
+            throw new IllegalArgumentException("Error: Cannot create hash, 32 bytes are required!");
+        }
+        return of(bytes, 0);
+    }
+
+    /**
+     * Reads a Hash256 from the next 32 bytes of the buffer.
+     * @param buffer The buffer to read from.
+     * @return A Hash256 holding the bytes read.
+     */
+    public static Hash256 read(ByteBuffer buffer) {
+        return new Hash256(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Parses a Hash256 from a 64 character hexstring.
+     * @param hex A hexstring.
+     * @return The Hash256 represented by hex.
+     * @exception IllegalArgumentException If hex is not a 64 character hexstring.
+     */
+    public static Hash256 fromHex(String hex) {
+        if (hex == null || hex.length() != SIZE * 2) {
+            throw new IllegalArgumentException("Error: Cannot parse hash, a 64 character hexstring is required!");
+        }
+        return of(BCUtil.hexToBytes(hex));
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Returns one of the four 64-bit words of the hash.
+     * @param index The word index in [0, 4), 0 being the most significant.
+     * @return The word at index.
+     */
+    public long getLong(int index) {
+        switch (index) {
+            case 0: return l0;
+            case 1: return l1;
+            case 2: return l2;
+            case 3: return l3;
+            default: throw new IndexOutOfBoundsException(index);
+        }
+    }
+
+    /**
+     * Copies the hash bytes into the indicated array.
+     * @param dest The array to copy into.
+     * @param offset The offset of the first byte in dest.
+     */
+    public void copyTo(byte[] dest, int offset) {
+        writeLong(dest, offset, l0);
+        writeLong(dest, offset + 8, l1);
+        writeLong(dest, offset + 16, l2);
+        writeLong(dest, offset + 24, l3);
+    }
+
+    /**
+     * Writes the hash bytes to the buffer.
+     * @param buffer The buffer to write to.
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.putLong(l0).putLong(l1).putLong(l2).putLong(l3);
+    }
+
+    /**
+     * Returns a copy of the hash bytes.
+     * @return A 32 byte array.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[SIZE];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Compares the hashes as unsigned 256-bit big-endian numbers.
+     * @param other The hash to compare against.
+     * @return A negative number, zero or a positive number if this hash is
+     * less than, equal to or greater than other.
+     */
+    @Override
+    public int compareTo(Hash256 other) {
+        int cmp = Long.compareUnsigned(l0, other.l0);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = Long.compareUnsigned(l1, other.l1);
+        if (cmp != 0) {
+            return cmp;
+        }
+        cmp = Long.compareUnsigned(l2, other.l2);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return Long.compareUnsigned(l3, other.l3);
+    }
+
+    /**
+     * Determines if an object is equal to this Hash256.
+     * @param obj An object to determine equality against.
+     * @return True if obj is a Hash256 with the same bytes, false otherwise.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Hash256)) {
+            return false;
+        }
+        Hash256 other = (Hash256) obj;
+        return l0 == other.l0 && l1 == other.l1 && l2 == other.l2 && l3 == other.l3;
+    }
+
+    /**
+     * Determines the Java hashCode for this Hash256. The hash bits are
+     * already uniformly distributed so the low word is used as is.
+     * @return A hashCode for this Hash256.
+     */
+    @Override
+    public int hashCode() {
+        return (int) (l3 ^ (l3 >>> 32));
+    }
+
+    /**
+     * Returns the hash as a hexstring.
+     * @return A 64 character hexstring.
+     */
+    @Override
+    public String toString() {
+        return BCUtil.getInstance().bytesToHex(toBytes());
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+}
@@ -1,6 +1,8 @@
 package jchain.util;
 
+import jchain.util.Hash256;
+
 public interface Hashable {
-    String computeHash();
-    String getHash();
+    Hash256 computeHash();
+    Hash256 getHash();
 }
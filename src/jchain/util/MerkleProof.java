@@ -0,0 +1,189 @@
+package jchain.util;
+
+import java.nio.ByteBuffer;
+
+import jchain.util.Hash256;
+import jchain.util.MerkleTree;
+
+/**
+ * An inclusion proof for one leaf of a MerkleTree: the leaf's position and
+ * the hashes of its siblings on the path up to the root. Anyone holding only
+ * the Merkle root (for example from a block header) can check the proof with
+ * one hash per level, without seeing the other leaves.
+ */
+public class MerkleProof {
+
+    //
+    // CONSTANTS
+    //
+
+    // The deepest a proof can be, leaf positions are ints
+    public static final int MAX_DEPTH = 32;
+
+    //
+    // FIELDS
+    //
+
+    // The hash of the proven leaf
+    private Hash256 mLeafHash;
+    // The position of the leaf in the tree
+    private int nIndex;
+    // The sibling hashes from the leaf level up to just below the root
+    private Hash256[] mSiblings;
+
+    //
+    // CONSTRUCTORS
+    //
+
+    /**
+     * Returns an instance of a MerkleProof.
+     * @param leafHash The hash of the proven leaf.
+     * @param index The position of the leaf in the tree.
+     * @param siblings The sibling hashes ordered from the leaf level upward.
+     */
+    public MerkleProof(Hash256 leafHash, int index, Hash256[] siblings) {
+        if (leafHash == null || siblings == null) {
+            throw new IllegalArgumentException("Error: Cannot create Merkle proof without a leaf hash and siblings!");
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Error: Merkle proof index must be >= 0.");
+        }
+        mLeafHash = leafHash;
+        nIndex = index;
+        mSiblings = siblings.clone();
+    }
+
+    //
+    // ACCESSORS/MUTATORS
+    //
+
+    /**
+     * Gets the hash of the proven leaf.
+     * @return The leaf hash.
+     */
+    public Hash256 getLeafHash() {
+        return mLeafHash;
+    }
+
+    /**
+     * Gets the position of the proven leaf in the tree.
+     * @return The leaf position.
+     */
+    public int getIndex() {
+        return nIndex;
+    }
+
+    /**
+     * Gets the sibling hashes of the proof.
+     * @return A copy of the sibling hashes ordered from the leaf level upward.
+     */
+    public Hash256[] getSiblings() {
+        return mSiblings.clone();
+    }
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Recomputes the Merkle root implied by this proof.
+     * @return The root hash the proof leads to.
+     */
+    public Hash256 computeRoot() {
+        Hash256 hash = mLeafHash;
+        int index = nIndex;
+        for (Hash256 sibling : mSiblings) {
+            // an even index is a left child, an odd index a right child
+            if ((index & 1) == 0) {
+                hash = MerkleTree.hashPair(hash, sibling);
+            } else {
+                hash = MerkleTree.hashPair(sibling, hash);
+            }
+            index >>>= 1;
+        }
+        return hash;
+    }
+
+    /**
+     * Checks the proof against a Merkle root. A proof whose index does not
+     * fit the number of levels it claims is rejected, otherwise the same
+     * path could be presented under several positions.
+     * @param root The expected Merkle root, e.g. from a block.
+     * @return True if the proof leads to root, false otherwise.
+     */
+    public boolean verify(Hash256 root) {
+        if (root == null || (mSiblings.length < MAX_DEPTH && nIndex >= (1L << mSiblings.length))) {
+            return false;
+        }
+        return computeRoot().equals(root);
+    }
+
+    /**
+     * Checks that a leaf is included under a Merkle root.
+     * @param leafHash The hash the caller expects to be included.
+     * @param proof A proof for that leaf.
+     * @param root The expected Merkle root.
+     * @return True if the proof is for leafHash and leads to root, false otherwise.
+     */
+    public static boolean verify(Hash256 leafHash, MerkleProof proof, Hash256 root) {
+        return proof != null && proof.getLeafHash().equals(leafHash) && proof.verify(root);
+    }
+
+    /**
+     * Gets the number of bytes serialize() writes for this proof.
+     * @return The serialized size of the proof in bytes.
+     */
+    public int serializedSize() {
+        return Hash256.SIZE + (4 * 2) + (mSiblings.length * Hash256.SIZE);
+    }
+
+    /**
+     * Writes the proof to the buffer.
+     * @param buffer The buffer to write to.
+     */
+    public void serialize(ByteBuffer buffer) {
+        mLeafHash.write(buffer);
+        buffer.putInt(nIndex);
+        buffer.putInt(mSiblings.length);
+        for (Hash256 sibling : mSiblings) {
+            sibling.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a proof written by serialize() from the buffer.
+     * @param buffer The buffer to read from.
+     * @return The proof read.
+     * @exception IllegalArgumentException If the sibling count is negative,
+     *  deeper than MAX_DEPTH or longer than the bytes left in the buffer.
+     */
+    public static MerkleProof deserialize(ByteBuffer buffer) {
+        Hash256 leafHash = Hash256.read(buffer);
+        int index = buffer.getInt();
+        int count = buffer.getInt();
+        // the count comes off the wire, check it before allocating for it
+        if (count < 0 || count > MAX_DEPTH || count > buffer.remaining() / Hash256.SIZE) {
+            throw new IllegalArgumentException("Error: Merkle proof has an invalid number of siblings (" + count + ")!");
+        }
+        Hash256[] siblings = new Hash256[count];
+        for (int i = 0; i < siblings.length; i++) {
+            siblings[i] = Hash256.read(buffer);
+        }
+        return new MerkleProof(leafHash, index, siblings);
+    }
+
+    /**
+     * Returns a String representation of the MerkleProof.
+     * @return A String representing the MerkleProof.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Leaf: ").append(mLeafHash).append(", Index: ").append(nIndex).append("\n");
+        for (Hash256 sibling : mSiblings) {
+            sb.append("   ").append(sibling).append("\n");
+        }
+        return sb.toString();
+    }
+
+}
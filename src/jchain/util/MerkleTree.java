@@ -1,27 +1,47 @@
 package jchain.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
-import jchain.bc.Transaction;
 import jchain.util.BCUtil;
+import jchain.util.Hash256;
 import jchain.util.Hashable;
+import jchain.util.MerkleProof;
 
 /**
- * Defines a generic MerkleTree structure that generates  root hashes for use in cryptographic operations.
- * I do not provide much documentation in this class as it is a dummy class. All the work is done in the MerkleNode class.
+ * Defines a generic MerkleTree structure that generates root hashes for use in cryptographic operations.<br>
+ * The tree is stored as one array of hashes per level, level 0 holding the leaf hashes and the last level
+ * holding the root. Nodes are paired Bitcoin-style: a parent is the double hash of its two children's bytes,
+ * and the last node of a level with an odd number of nodes is paired with itself. Interior hashes are cached,
+ * so computing the root is free and appending a leaf only rehashes the path from the new leaf to the root.
+ * A map from leaf hash to position makes contains() and get() constant time.
  * @param T The type to store in the tree, must implement the Hashable interface.
  * @author Christen Ford
  */
 public class MerkleTree<T extends Hashable> {
 
+    //
+    // CONSTANTS
+    //
+
+    // The initial capacity of the leaf level
+    private static final int INITIAL_CAPACITY = 16;
+
     //
     // FIELDS
     //
 
-    // The Merkle root node.
-    private MerkleNode mRoot;
+    // The leaves of the tree in the order they were added
+    private ArrayList<T> mLeaves = new ArrayList<>();
+    // Maps a leaf hash to the position of the leaf
+    private HashMap<Hash256, Integer> mPositions = new HashMap<>();
+    // The node hashes of every level, mLevels.get(0) are the leaf hashes
+    private ArrayList<Hash256[]> mLevels = new ArrayList<>();
 
     //
     // CONSTRUCTORS
@@ -46,18 +66,31 @@ public class MerkleTree<T extends Hashable> {
         if (!iterator.hasNext()) {
             throw new IllegalArgumentException("ERROR: Cannot create MerkleTree, list of transactions is empty!");
         }
-        // create the MerkleTree by iterating the iterator
-        mRoot = new MerkleNode(iterator.next());
-        // the tree wil have at least one item in it
+        // collect the leaves
+        Hash256[] leaves = new Hash256[hashableList.size()];
         while (iterator.hasNext()) {
             T iterable = iterator.next();
             // only add iterable if it isnt null, issue warning otherwise
             if (iterable != null) {
-                mRoot.add(iterable);
+                leaves[mLeaves.size()] = iterable.getHash();
+                mPositions.putIfAbsent(iterable.getHash(), mLeaves.size());
+                mLeaves.add(iterable);
             } else {
                 System.err.println("WARNING: Iterable not added to MerkleTree, iterable was null!");
             }
         }
+        // build the tree one level at a time, every node is hashed exactly once
+        mLevels.add(leaves);
+        int size = mLeaves.size();
+        for (int level = 0; size > 1; level++) {
+            Hash256[] children = mLevels.get(level);
+            Hash256[] parents = new Hash256[Math.max(INITIAL_CAPACITY, children.length / 2 + 1)];
+            for (int i = 0; i < size; i += 2) {
+                parents[i / 2] = hashPair(children[i], (i + 1 < size) ? children[i + 1] : children[i]);
+            }
+            mLevels.add(parents);
+            size = (size + 1) / 2;
+        }
     }
 
     //
@@ -66,45 +99,54 @@ public class MerkleTree<T extends Hashable> {
 
     /**
      * Adds an object implementing the Hashable interface to the MerkleTree.
+     * Only the hashes on the path from the new leaf to the root are recomputed.
      * @param hashable A hashable object.
      */
     public void add(T hashable) {
         if (hashable == null) {
             throw new NullPointerException();
         }
-        if (mRoot == null) {
-            mRoot = new MerkleNode(hashable);
-        } else {
-            // check if the hashable is the root node of the tree, exception if it is, otherwise, let the root node handle adding it
-            if (contains(hashable.getHash())) {
-                throw new IllegalArgumentException("Cannot add transaction! Transaction already in tree.");
-            } mRoot.add(hashable);
+        if (mPositions.containsKey(hashable.getHash())) {
+            throw new IllegalArgumentException("Cannot add transaction! Transaction already in tree.");
+        }
+        int index = mLeaves.size();
+        mPositions.put(hashable.getHash(), index);
+        mLeaves.add(hashable);
+        setNode(0, index, hashable.getHash());
+        // walk up the tree along the new leaf's path, the new node is always the last of its level
+        int size = mLeaves.size();
+        for (int level = 0; size > 1; level++) {
+            Hash256[] nodes = mLevels.get(level);
+            int left = index & ~1;
+            Hash256 right = (left + 1 < size) ? nodes[left + 1] : nodes[left];
+            index /= 2;
+            setNode(level + 1, index, hashPair(nodes[left], right));
+            size = (size + 1) / 2;
         }
     }
 
     /**
-     * Computes the root hash of the MerkleTree.
-     * @return A SHA-256 double hash hexstring representing the Merkle
-     *  root hash.
+     * Computes the root hash of the MerkleTree. The root is cached so this is constant time.
+     * @return A SHA-256 double hash representing the Merkle root hash.
      */
-    public String computeHash() {
-        if (mRoot == null) {
+    public Hash256 computeHash() {
+        if (mLeaves.isEmpty()) {
             throw new NullPointerException();
-        } return mRoot.computeHash();
+        } return mLevels.get(depth())[0];
     }
 
     /**
      * Determines whether the tree contains a hashable with the specified transaction hash.
-     * @param hash A SHA-256 double hash hextstring.
+     * @param hash A SHA-256 double hash.
      * @return True if the tree contains a hashable with the indicated hash, false otherwise.
      */
-    public boolean contains(String hash) {
-        if (hash == null || hash.length() == 0) {
+    public boolean contains(Hash256 hash) {
+        if (hash == null) {
             throw new IllegalArgumentException();
         }
-        if (mRoot == null) {
+        if (mLeaves.isEmpty()) {
             throw new NullPointerException();
-        } return mRoot.contains(hash);
+        } return mPositions.containsKey(hash);
     }
 
     /**
@@ -112,270 +154,162 @@ public class MerkleTree<T extends Hashable> {
      * @return The number of items in the tree.
      */
     public int count() {
-        if (mRoot == null) {
-            return 0;
-        } return mRoot.count();
+        return mLeaves.size();
     }
 
     /**
      * Attempts to retrieve a hashable from the tree using the indicated hash.
-     * @param hash A SHA-256 double hash hexstring.
+     * @param hash A SHA-256 double hash.
      * @return A hashable if one can be found with the given hash, null otherwise.
      */
-    public T get(String hash) {
-        if (hash == null || hash.length() == 0) {
+    public T get(Hash256 hash) {
+        if (hash == null) {
             throw new IllegalArgumentException();
         }
-        if (mRoot == null) {
+        if (mLeaves.isEmpty()) {
             throw new NullPointerException();
-        } return mRoot.get(hash);
+        }
+        Integer index = mPositions.get(hash);
+        if (index == null) {
+            return null;
+        } return mLeaves.get(index);
     }
 
     /**
-     * Returns a string representation of the MerkleTree.
-     * @return A string representation of the MerkleTree.
+     * Gets the hashable at the indicated position, positions number the
+     * hashables in the order they were added to the tree.
+     * @param index The position of the hashable.
+     * @return The hashable at index.
+     * @exception IndexOutOfBoundsException If index is not in [0, count()).
      */
-    public String toString() {
-        if (mRoot == null) {
-            return "No transactions to display in MerkleTree!";
-        } return mRoot.toString();
+    public T get(int index) {
+        return mLeaves.get(index);
     }
 
     /**
-     * Internal class that does the heavy lifting of manipulating the MerkleTree.
-     * Internal value is the data type assigned to the MerkleTree class.
-     * @author Christen Ford
+     * Gets the position of the hashable with the indicated hash.
+     * @param hash A SHA-256 double hash.
+     * @return The position of the hashable, or -1 if it is not in the tree.
      */
-    private class MerkleNode {
-        
-        //
-        // FIELDS
-        //
-
-        // The value stored in this node, will be null if this is an internal node
-        private T mHashable;
-        // The root of the left sub-tree
-        private MerkleNode mLeft;
-        // The root of the right sub-tree
-        private MerkleNode mRight;
-
-        //
-        // CONSTRUCTORS
-        //
+    public int indexOf(Hash256 hash) {
+        Integer index = mPositions.get(hash);
+        if (index == null) {
+            return -1;
+        } return index;
+    }
 
-        /**
-         * Returns an instance of a MerkleNode object containing the given
-         *  transaction.
-         * @param tx A Transaction object.
-         * @exception NullPointerException If the Transaction is null.
-         * @return An instance of a MerkleNode object.
-         */
-        public MerkleNode(T hashable) {
-            if (hashable == null) {
-                throw new NullPointerException();
-            }
-            mHashable = hashable;
+    /**
+     * Generates an inclusion proof for the hashable with the indicated hash.
+     * @param hash A SHA-256 double hash.
+     * @return A proof for the hashable, or null if it is not in the tree.
+     */
+    public MerkleProof getProof(Hash256 hash) {
+        if (hash == null) {
+            throw new IllegalArgumentException();
         }
+        int index = indexOf(hash);
+        if (index < 0) {
+            return null;
+        } return getProof(index);
+    }
 
-        //
-        // METHODS
-        //
-
-        /**
-         * Computes a SHA-256 double hash hexstring representing the MerkleNode.
-         * @return A SHA-256 double hash hexstring.
-         */
-        public String computeHash() {
-            // check for a leaf node
-            if (mHashable != null) {
-                return mHashable.getHash();
-            }
-            // build the hash
-            StringBuilder sb = new StringBuilder();
-            // compute the left and right sub-tree hashes, add them to the to-be-hashed stringbuilders content
-            if (mLeft != null) {
-                sb.append(mLeft.computeHash());
-            }
-            if (mRight != null) {
-                sb.append(mRight.computeHash());
-            }
-            // return the double hash to the caller
-            return BCUtil.getInstance().doubleHash(sb.toString());
+    /**
+     * Generates an inclusion proof for the hashable at the indicated position.
+     * The proof holds one sibling hash per level below the root.
+     * @param index The position of the hashable.
+     * @return A proof for the hashable.
+     * @exception IndexOutOfBoundsException If index is not in [0, count()).
+     */
+    public MerkleProof getProof(int index) {
+        if (index < 0 || index >= mLeaves.size()) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        Hash256[] siblings = new Hash256[depth()];
+        int position = index;
+        int size = mLeaves.size();
+        for (int level = 0; level < siblings.length; level++) {
+            Hash256[] nodes = mLevels.get(level);
+            int sibling = position ^ 1;
+            // the last node of an odd level is paired with itself
+            siblings[level] = (sibling < size) ? nodes[sibling] : nodes[position];
+            position /= 2;
+            size = (size + 1) / 2;
         }
+        return new MerkleProof(mLeaves.get(index).getHash(), index, siblings);
+    }
 
-        /**
-         * Adds a hashable object to the MerkleTree. This add method prevents the MerkleTree from ever being skewed.
-         * @param hashable An object implementing the Hashable interface.
-         * @exception IllegalArgumentException If the transaction is null.
-         */
-        public void add(T hashable) {
-            // check the transaction
-            if (hashable == null) {
-                throw new IllegalArgumentException();
-            }
-            // check for a leaf node, convert this guy to an internal node and push down the left and right sub-trees
-            if (mHashable != null) {
-                // left child will have the value of this node
-                mLeft = new MerkleNode(mHashable);
-                // right child will have the value that is being added
-                mRight = new MerkleNode(hashable);
-                mHashable = null;
-            }
-            // otherwise if were at an internal node, 'preserve' balance of the tree using the height() method
-            else {
-                // get the height of the left sub-tree
-                int left = Integer.MAX_VALUE;
-                if (mLeft != null) {
-                    left = mLeft.height();
-                }
-                // get the height of the right sub-tree
-                int right = Integer.MAX_VALUE;
-                if (mRight != null) {
-                    right = mRight.height();
-                }
-                // add to the tree with the lesser height
-                if (left <= right) {
-                    mLeft.add(hashable);
-                } else {
-                    mRight.add(hashable);
-                }
-            }
-        } // end add
+    /**
+     * Checks that a leaf is included under a Merkle root using log2(n) hashes.
+     * @param leafHash The hash of the leaf.
+     * @param proof An inclusion proof for the leaf.
+     * @param root The Merkle root to check against.
+     * @return True if the proof shows leafHash is included under root, false otherwise.
+     */
+    public static boolean verify(Hash256 leafHash, MerkleProof proof, Hash256 root) {
+        return MerkleProof.verify(leafHash, proof, root);
+    }
 
-        /**
-         * Determines if this sub-tree contains a specified hashable or not based on the indicated hash.
-         * @param hash A SHA-256 double hash hexstring.
-         * @exception IllegalArgumentException If the hashable hash is null or empty.
-         */
-        public boolean contains(String hash) {
-            // check txHash
-            if (hash == null || hash.length() == 0) {
-                throw new IllegalArgumentException();
-            }
-            // check for a leaf node
-            if (mHashable != null) {
-                if (mHashable.getHash().equals(hash)) {
-                    return true;
-                } return false;
-            }
-            // otherwise we are at an internal node
-            else {
-                // try the left sub-tree
-                boolean left = false;
-                if (mLeft != null) {
-                    left = mLeft.contains(hash);
-                }
-                // try the right sub-tree
-                boolean right = false;
-                if (mRight != null) {
-                    right = mRight.contains(hash);
-                }
-                // only one needs to be true to indicate we 
-                //   found the a node with the txhash
-                return left || right;
-            }
-        } // end contains
+    /**
+     * Returns the hashables stored in the tree in the order they were
+     * added. Rebuilding a tree from this list yields the same root hash.
+     * @return A read-only list containing the leaves of the tree.
+     */
+    public List<T> toList() {
+        return Collections.unmodifiableList(mLeaves);
+    }
 
-        /**
-         * Gets the number of hashables stored in the sub-tree.
-         * @return The number of hashables stored in the sub-tree.
-         */
-        public int count() {
-            // check for a leaf node
-            if (mHashable != null) {
-                return 1;
-            }
-            int left = 0, right = 0;
-            // get count of left if it exists
-            if (mLeft != null) {
-                left = mLeft.count();
-            }
-            // get count of right if it exists
-            if (mRight != null) {
-                right = mRight.count();
-            }
-            // return the sum of the left and right subtrees
-            return left + right;
+    /**
+     * Returns a string representation of the MerkleTree.
+     * @return A string representation of the MerkleTree.
+     */
+    public String toString() {
+        if (mLeaves.isEmpty()) {
+            return "No transactions to display in MerkleTree!";
         }
+        StringBuilder sb = new StringBuilder();
+        for (T leaf : mLeaves) {
+            sb.append(leaf.toString()).append("\n");
+        }
+        return sb.toString();
+    }
 
-        /**
-         * Attempts to get a hashable from the tree using the indicated hash.
-         * @param txHash A SHA-256 double hash hexstring.
-         */
-        public T get(String hash) {
-            // check the hash
-            if (hash == null || hash.length() == 0) {
-                throw new IllegalArgumentException();
-            }
-            // check for a leaf node
-            if (mHashable != null) {
-                if (mHashable.getHash().equals(hash)) {
-                    return mHashable;
-                } return null;
-            }
-            // otherwise we are at an internal node
-            else {
-                // try the left sub-tree
-                T hashable = null;
-                if (mLeft != null) {
-                    hashable = mLeft.get(hash);
-                    if (hashable != null) {
-                        if (hashable.getHash().equals(hash)) {
-                            return hashable;
-                        }
-                    }
-                }
-                // try the right sub-tree
-                if (mRight != null) {
-                    hashable = mRight.get(hash);
-                    if (hashable != null) {
-                        if (hashable.getHash().equals(hash)) {
-                            return hashable;
-                        }
-                    }
-                }
-                // otherwise no tx found with hash
-                return null;
-            }
-        } // end get
-
-        /**
-         * Gets the height of a sub-tree.
-         * @return The height of the sub-tree this method is called on.
-         */
-        public int height() {
-            if (mLeft == null && mRight == null) {
-                return 1;
-            }
-            int left = 0;
-            if (mLeft != null) {
-                left = mLeft.height() + 1;
-            }
-            int right = 0;
-            if (mRight != null) {
-                right = mRight.height() + 1;
-            }
-            return Math.max(left, right);
-        } // end height
+    /**
+     * Gets the index of the root level, the number of levels above the leaves.
+     */
+    private int depth() {
+        int depth = 0;
+        for (int size = mLeaves.size(); size > 1; size = (size + 1) / 2) {
+            depth++;
+        }
+        return depth;
+    }
 
-        /**
-         * Returns a String representation of the MerkleNode.
-         * @return A String representing the MerkleNode.
-         */
-        public String toString() {
-            if (mHashable != null) {
-                return mHashable.toString();
-            }
-            StringBuilder sb = new StringBuilder();
-            if (mLeft != null) {
-                sb.append(mLeft.toString()).append("\n");
-            }
-            if (mRight != null) {
-                sb.append(mRight.toString()).append("\n");
-            }
-            return sb.toString();
+    /**
+     * Stores a node hash, growing the level (or adding it) as needed.
+     */
+    private void setNode(int level, int index, Hash256 hash) {
+        if (level == mLevels.size()) {
+            mLevels.add(new Hash256[INITIAL_CAPACITY]);
+        }
+        Hash256[] nodes = mLevels.get(level);
+        if (index == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            mLevels.set(level, nodes);
         }
+        nodes[index] = hash;
+    }
 
-    } // end MerkleNode
+    /**
+     * Computes the parent hash of two nodes, the double hash of their concatenated bytes.
+     * @param left The left child hash.
+     * @param right The right child hash.
+     * @return The parent hash.
+     */
+    public static Hash256 hashPair(Hash256 left, Hash256 right) {
+        byte[] children = new byte[Hash256.SIZE * 2];
+        left.copyTo(children, 0);
+        right.copyTo(children, Hash256.SIZE);
+        return BCUtil.getInstance().doubleHash256(children);
+    }
 
 } // end MerkleTree
@@ -1,5 +1,7 @@
 package jchain.util;
 
+import jchain.util.Hash256;
+
 /**
  * Thrown when retrievals either by height or by hash are made for blocks and the block does not exist or there was some other error retreiveing the block.
  * @author Christen Ford
@@ -12,7 +14,7 @@ public class NoSuchBlockException extends Exception {
     //
 
     // the hash of the requested block
-    private String sHash = null;
+    private Hash256 mHash = null;
     // the height of the requested block
     private int nHeight = 0;
 
@@ -24,7 +26,7 @@ public class NoSuchBlockException extends Exception {
      * Creates an instance of a NoSuchBlockException containing the indicated block hash.
      * @param hash A SHA-256 double hash.
      */
-    public NoSuchBlockException(String hash) {
+    public NoSuchBlockException(Hash256 hash) {
         this(hash, "");
     }
 
@@ -41,9 +43,9 @@ public class NoSuchBlockException extends Exception {
      * @param hash A SHA-256 double hash.
      * @param msg A message associated with the exception.
      */
-    public NoSuchBlockException(String hash, String msg) {
+    public NoSuchBlockException(Hash256 hash, String msg) {
         super(msg);
-        sHash = hash;
+        mHash = hash;
     }
     
     /**
@@ -62,10 +64,10 @@ public class NoSuchBlockException extends Exception {
 
     /**
      * Returns the SHA-256 double hash that triggered the NoSuchBlockException.
-     * @return A SHA-256 double hash hexstring.
+     * @return A SHA-256 double hash.
      */
-    public String getBlockHash() {
-        return sHash;
+    public Hash256 getBlockHash() {
+        return mHash;
     }
 
     /**
@@ -86,10 +88,10 @@ public class NoSuchBlockException extends Exception {
      */
     @Override
     public String toString() {
-        if (sHash == null) {
+        if (mHash == null) {
             return String.format("NoSuchBlockException: Height %d is invalid!\nMessage: %s\n", nHeight, getMessage());
         } else {
-            return String.format("NoSuchBlockException: Hash %s is invalid!\nMessage: %s\n", getMessage());
+            return String.format("NoSuchBlockException: Hash %s is invalid!\nMessage: %s\n", mHash, getMessage());
         }
     }
 
@@ -1,5 +1,7 @@
 package jchain.util;
 
+import jchain.util.Hash256;
+
 /**
  * Thrown when a request is made for a Transaction via its hash and it is not found.
  * @author Christen Ford
@@ -12,7 +14,7 @@ public class NoSuchTransactionException extends Exception {
     //
 
     // A SHAR-256 double hash
-    private String sHash;
+    private Hash256 mHash;
 
     //
     // CONSTRUCTORS
@@ -22,7 +24,7 @@ public class NoSuchTransactionException extends Exception {
      * Returns an instance of a NoSuchTransactionException containing the indicated hash.
      * @param hash The SHA-256 double hash that triggered the exception.
      */
-    public NoSuchTransactionException(String hash) {
+    public NoSuchTransactionException(Hash256 hash) {
         this(hash, "");
     }
 
@@ -31,9 +33,9 @@ public class NoSuchTransactionException extends Exception {
      * @param hash The SHA-256 double hash that triggered the exception.
      * @param msg The message associated with the exception.
      */
-    public NoSuchTransactionException(String hash, String msg) {
+    public NoSuchTransactionException(Hash256 hash, String msg) {
         super(msg);
-        sHash = hash;
+        mHash = hash;
     }
 
     //
@@ -44,8 +46,8 @@ public class NoSuchTransactionException extends Exception {
      * Returns the hash that triggered the NoSuchTransactionException.
      * @return A SHA-256 double hash.
      */
-    public String getTransactionHash() {
-        return sHash;
+    public Hash256 getTransactionHash() {
+        return mHash;
     }
 
     //
@@ -58,7 +60,7 @@ public class NoSuchTransactionException extends Exception {
      */
     @Override
     public String toString() {
-        return String.format("NoSuchTransactionException: Hash %s not found!\nMessage: %s\n", sHash, getMessage());
+        return String.format("NoSuchTransactionException: Hash %s not found!\nMessage: %s\n", mHash, getMessage());
     }
 
 }
@@ -0,0 +1,186 @@
+package jchain.util;
+
+/**
+ * A minimal SHA-256 implementation that exposes the compression function
+ * directly. java.security.MessageDigest hides its internal state, which
+ * makes it impossible to precompute a midstate over the constant part of
+ * a block header and only rehash the chunk that carries the nonce.<br>
+ * Instances hold scratch buffers and are NOT thread-safe, each mining
+ * thread should own its own SHA256 object.
+ */
+public final class SHA256 {
+
+    //
+    // CONSTANTS
+    //
+
+    // SHA-256 processes the message in blocks of 64 bytes (16 words)
+    public static final int BLOCK_BYTES = 64;
+    // The size of a SHA-256 digest in bytes
+    public static final int DIGEST_BYTES = 32;
+
+    // The initial hash value H(0), see FIPS 180-4 section 5.3.3
+    private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+        0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    // The round constants K, see FIPS 180-4 section 4.2.2
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    //
+    // FIELDS
+    //
+
+    // The message schedule, reused between compressions
+    private final int[] mSchedule = new int[64];
+    // Scratch hash state used by the double hash helpers
+    private final int[] mState = new int[8];
+    // Scratch message block used by the double hash helpers
+    private final int[] mBlock = new int[16];
+
+    //
+    // METHODS
+    //
+
+    /**
+     * Computes the midstate of a message, that is, the hash state after
+     * compressing its first 64 byte block starting from the initial
+     * hash value.
+     * @param data The message bytes.
+     * @param offset The offset of the first block in data.
+     * @return The eight word hash state after the first block.
+     * @exception IllegalArgumentException If data does not contain a full
+     * block at offset.
+     */
+    public int[] midstate(byte[] data, int offset) {
+        if (data == null || offset < 0 || data.length - offset < BLOCK_BYTES) {
+            throw new IllegalArgumentException("Error: Cannot compute midstate, a full 64 byte block is required!");
+        }
+        int[] state = IV.clone();
+        for (int i = 0; i < 16; i++) {
+            mBlock[i] = readInt(data, offset + (i * 4));
+        }
+        compress(state, mBlock);
+        return state;
+    }
+
+    /**
+     * Finishes a double SHA-256 hash of an 80 byte message whose first
+     * block has already been compressed into midstate. The remaining 16
+     * bytes are passed as four big-endian words. No objects are allocated.
+     * @param midstate The state after compressing the first 64 bytes.
+     * @param w0 Message bytes 64-67.
+     * @param w1 Message bytes 68-71.
+     * @param w2 Message bytes 72-75.
+     * @param w3 Message bytes 76-79.
+     * @param out A 32 byte array that receives SHA-256(SHA-256(message)).
+     */
+    public void doubleHash80(int[] midstate, int w0, int w1, int w2, int w3, byte[] out) {
+        // finish the first hash: the tail of the message plus padding
+        //  for an 80 byte (640 bit) message
+        System.arraycopy(midstate, 0, mState, 0, 8);
+        mBlock[0] = w0;
+        mBlock[1] = w1;
+        mBlock[2] = w2;
+        mBlock[3] = w3;
+        mBlock[4] = 0x80000000;
+        for (int i = 5; i < 15; i++) {
+            mBlock[i] = 0;
+        }
+        mBlock[15] = 640;
+        compress(mState, mBlock);
+        // second hash: the 32 byte digest plus padding for a 256 bit message
+        System.arraycopy(mState, 0, mBlock, 0, 8);
+        mBlock[8] = 0x80000000;
+        for (int i = 9; i < 15; i++) {
+            mBlock[i] = 0;
+        }
+        mBlock[15] = 256;
+        System.arraycopy(IV, 0, mState, 0, 8);
+        compress(mState, mBlock);
+        // write out the digest big-endian
+        for (int i = 0; i < 8; i++) {
+            writeInt(out, i * 4, mState[i]);
+        }
+    }
+
+    /**
+     * Runs the SHA-256 compression function over one 16 word block.
+     * @param state The eight word hash state, updated in place.
+     * @param block The sixteen word message block.
+     */
+    public void compress(int[] state, int[] block) {
+        int[] w = mSchedule;
+        System.arraycopy(block, 0, w, 0, 16);
+        for (int t = 16; t < 64; t++) {
+            int x = w[t - 15];
+            int y = w[t - 2];
+            int s0 = Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+            int s1 = Integer.rotateRight(y, 17) ^ Integer.rotateRight(y, 19) ^ (y >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+
+    /**
+     * Reads a big-endian integer from a byte array.
+     * @param data The byte array to read from.
+     * @param offset The offset of the first byte.
+     * @return The integer stored at offset.
+     */
+    public static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+            | ((data[offset + 1] & 0xFF) << 16)
+            | ((data[offset + 2] & 0xFF) << 8)
+            | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Writes a big-endian integer into a byte array.
+     * @param data The byte array to write to.
+     * @param offset The offset of the first byte.
+     * @param value The integer to write.
+     */
+    public static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+}